@@ -0,0 +1,270 @@
+package net.joshdevins.hadoop.utils.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import net.joshdevins.hadoop.utils.io.LocalBlockCache.FileKey;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+
+/**
+ * A read-through {@link LocalBlockCache} in front of another, usually remote, filesystem. Only the data and index files
+ * of {@link MapFile}s are cached, everything else is passed straight through, as are all writes.
+ * 
+ * <p>
+ * A cached file is read a block at a time, and a block is only fetched from the underlying filesystem the first time
+ * it's read. The underlying file is not even opened until a block has to be fetched, so reads of a fully cached file
+ * cost one status check when it's opened and local disk reads after that.
+ * </p>
+ * 
+ * <p>
+ * Closing this filesystem does not close the underlying filesystem, which is usually shared.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class BlockCachingFileSystem extends FilterFileSystem {
+
+    private final LocalBlockCache cache;
+
+    public BlockCachingFileSystem(final FileSystem fs, final LocalBlockCache cache) {
+        super(fs);
+        this.cache = cache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // leave the shared, underlying filesystem open
+    }
+
+    public LocalBlockCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public FSDataInputStream open(final Path f, final int bufferSize) throws IOException {
+
+        if (!isCached(f)) {
+            return fs.open(f, bufferSize);
+        }
+
+        FileStatus status = fs.getFileStatus(f);
+        return new FSDataInputStream(new BlockCachingInputStream(f, bufferSize, cache.getKey(status)));
+    }
+
+    /**
+     * Only the files that are read over and over by lookups are worth the disk space.
+     */
+    private static boolean isCached(final Path f) {
+
+        String name = f.getName();
+        return MapFile.DATA_FILE_NAME.equals(name) || MapFile.INDEX_FILE_NAME.equals(name);
+    }
+
+    /**
+     * Reads a file through the cache, a block at a time. Sequential reads are served from the last block read, which is
+     * held on to, and positional reads go straight to the cached block on disk.
+     */
+    private final class BlockCachingInputStream extends FSInputStream {
+
+        private final Path path;
+
+        private final int bufferSize;
+
+        private final FileKey key;
+
+        private FSDataInputStream remote;
+
+        private long position;
+
+        /**
+         * The block that sequential reads are served from.
+         */
+        private final byte[] current;
+
+        private long currentBlock = -1;
+
+        private boolean closed;
+
+        private BlockCachingInputStream(final Path path, final int bufferSize, final FileKey key) {
+
+            this.path = path;
+            this.bufferSize = bufferSize;
+            this.key = key;
+
+            current = new byte[(int) Math.min(cache.getBlockSize(), Math.max(1, key.getLength()))];
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+
+            closed = true;
+            if (remote != null) {
+                remote.close();
+                remote = null;
+            }
+        }
+
+        @Override
+        public synchronized long getPos() {
+            return position;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+
+            if (!fill()) {
+                return -1;
+            }
+
+            int b = current[offsetInBlock(position)] & 0xff;
+            position++;
+
+            return b;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) throws IOException {
+
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!fill()) {
+                return -1;
+            }
+
+            int offset = offsetInBlock(position);
+            int read = Math.min(len, cache.getBlockLength(key, currentBlock) - offset);
+            System.arraycopy(current, offset, b, off, read);
+            position += read;
+
+            return read;
+        }
+
+        /**
+         * Reads from within a single block, without touching the stream position, so that any number of threads can
+         * read at once.
+         */
+        @Override
+        public int read(final long pos, final byte[] b, final int off, final int len) throws IOException {
+
+            if (pos >= key.getLength()) {
+                return -1;
+            }
+
+            if (len == 0) {
+                return 0;
+            }
+
+            long block = pos / cache.getBlockSize();
+            int offset = offsetInBlock(pos);
+
+            int read = cache.read(key, block, offset, b, off, len);
+            if (read >= 0) {
+                return read;
+            }
+
+            byte[] bytes = new byte[cache.getBlockLength(key, block)];
+            fetch(block, bytes);
+
+            read = Math.min(len, bytes.length - offset);
+            System.arraycopy(bytes, offset, b, off, read);
+
+            return read;
+        }
+
+        @Override
+        public void readFully(final long pos, final byte[] b, final int off, final int len) throws IOException {
+
+            int done = 0;
+            while (done < len) {
+
+                int read = read(pos + done, b, off + done, len - done);
+                if (read < 0) {
+                    throw new EOFException("End of file reached before reading fully: " + path);
+                }
+
+                done += read;
+            }
+        }
+
+        @Override
+        public synchronized void seek(final long pos) throws IOException {
+
+            if (pos < 0 || pos > key.getLength()) {
+                throw new IOException("Cannot seek outside of file: " + path + " position=" + pos);
+            }
+
+            position = pos;
+        }
+
+        @Override
+        public boolean seekToNewSource(final long targetPos) {
+            return false;
+        }
+
+        /**
+         * Makes sure the block at the current position is held for sequential reads.
+         * 
+         * @return false at the end of the file
+         */
+        private boolean fill() throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream is closed: " + path);
+            }
+
+            if (position >= key.getLength()) {
+                return false;
+            }
+
+            long block = position / cache.getBlockSize();
+            if (block == currentBlock) {
+                return true;
+            }
+
+            int length = cache.getBlockLength(key, block);
+            if (cache.read(key, block, 0, current, 0, length) < 0) {
+                fetch(block, current);
+            }
+
+            currentBlock = block;
+            return true;
+        }
+
+        /**
+         * Reads a whole block from the underlying filesystem and adds it to the cache.
+         */
+        private void fetch(final long block, final byte[] bytes) throws IOException {
+
+            int length = cache.getBlockLength(key, block);
+            openRemote().readFully(block * cache.getBlockSize(), bytes, 0, length);
+
+            cache.put(key, block, bytes, length);
+        }
+
+        private synchronized FSDataInputStream openRemote() throws IOException {
+
+            if (closed) {
+                throw new IOException("Stream is closed: " + path);
+            }
+
+            if (remote == null) {
+                remote = fs.open(path, bufferSize);
+            }
+
+            return remote;
+        }
+
+        private int offsetInBlock(final long pos) {
+            return (int) (pos % cache.getBlockSize());
+        }
+    }
+}
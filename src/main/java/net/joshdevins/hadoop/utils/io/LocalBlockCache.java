@@ -0,0 +1,395 @@
+package net.joshdevins.hadoop.utils.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * A cache of fixed-size blocks of remote files on local disk, bounded by the number of bytes held and evicted in
+ * least-recently-used order.
+ * 
+ * <p>
+ * Each block is a file of its own, named by a digest of the path, length and modification time of the file it came
+ * from, so a block can never be served for a file that has since been replaced: the replacement simply has different
+ * names. Blocks are written to a temporary file and renamed into place, so a block on disk is always complete. The
+ * cache directory is scanned on startup, so the blocks survive restarts, and any block not of the length its name says
+ * is thrown away.
+ * </p>
+ * 
+ * <p>
+ * Checksums are verified as blocks are read from the remote filesystem, but not again as they are read back from local
+ * disk.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class LocalBlockCache {
+
+    private static final Log LOG = LogFactory.getLog(LocalBlockCache.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Identifies the blocks of one version of a remote file.
+     */
+    public static final class FileKey {
+
+        private final String digest;
+
+        private final long length;
+
+        private FileKey(final String digest, final long length) {
+            this.digest = digest;
+            this.length = length;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    private final File dir;
+
+    private final long capacity;
+
+    private final int blockSize;
+
+    /**
+     * Sizes of the blocks held, by name, in access order.
+     */
+    private final LinkedHashMap<String, Integer> blocks = new LinkedHashMap<String, Integer>(1024, 0.75f, true);
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param dir
+     *        directory to hold the blocks in, created if needed
+     * @param capacity
+     *        maximum number of bytes of blocks to hold
+     * @param blockSize
+     *        size of each block, except the last block of a file
+     */
+    public LocalBlockCache(final File dir, final long capacity, final int blockSize) throws IOException {
+
+        Validate.notNull(dir, "Cache directory is required");
+        Validate.isTrue(capacity > 0, "Cache capacity must be positive");
+        Validate.isTrue(blockSize > 0, "Block size must be positive");
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create block cache directory: " + dir);
+        }
+
+        this.dir = dir;
+        this.capacity = capacity;
+        this.blockSize = blockSize;
+
+        recover();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the key for the blocks of the current version of a file.
+     */
+    public FileKey getKey(final FileStatus status) {
+
+        String identity = status.getPath().toString() + '\n' + status.getLen() + '\n' + status.getModificationTime()
+                + '\n' + blockSize;
+
+        return new FileKey(digest(identity), status.getLen());
+    }
+
+    /**
+     * Adds a block. The bytes are copied to disk, so can be reused afterwards.
+     * 
+     * @param length
+     *        number of bytes in the block, which must be the full block unless it is the last block of the file
+     */
+    public void put(final FileKey key, final long block, final byte[] bytes, final int length) throws IOException {
+
+        String name = blockName(key, block, length);
+        synchronized (this) {
+            if (blocks.containsKey(name)) {
+                return;
+            }
+        }
+
+        File file = blockFile(name);
+        File temp = new File(dir, name + '.' + Thread.currentThread().getId() + TEMP_SUFFIX);
+
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not move block into block cache: " + file);
+        }
+
+        add(name, length);
+    }
+
+    /**
+     * Reads part of a block.
+     * 
+     * @param offset
+     *        offset within the block to read from
+     * @return the number of bytes read or -1 if the block is not cached
+     */
+    public int read(final FileKey key, final long block, final int offset, final byte[] bytes, final int off,
+            final int len) throws IOException {
+
+        int blockLength = getBlockLength(key, block);
+        String name = blockName(key, block, blockLength);
+
+        synchronized (this) {
+            if (blocks.get(name) == null) {
+                misses.incrementAndGet();
+                return -1;
+            }
+        }
+
+        FileInputStream in;
+        try {
+            in = new FileInputStream(blockFile(name));
+
+        } catch (FileNotFoundException fnfe) {
+
+            // evicted since, or removed from underneath us
+            remove(name);
+            misses.incrementAndGet();
+            return -1;
+        }
+
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, off, Math.min(len, blockLength - offset));
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position() - off) < 0) {
+                    break;
+                }
+            }
+
+            if (!buffer.hasRemaining()) {
+                hits.incrementAndGet();
+                return buffer.position() - off;
+            }
+
+        } finally {
+            IOUtils.closeStream(in);
+        }
+
+        // cut short on disk, so drop it and have it read from the filesystem again
+        LOG.warn("Removing truncated block from block cache: " + name);
+        remove(name);
+        blockFile(name).delete();
+        misses.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * @return the number of bytes a block holds, which is short only for the last block of a file
+     */
+    public int getBlockLength(final FileKey key, final long block) {
+        return (int) Math.min(blockSize, key.length - block * blockSize);
+    }
+
+    /**
+     * @return the number of cached blocks
+     */
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    /**
+     * @return the number of bytes held
+     */
+    public synchronized long sizeInBytes() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalBlockCache [dir=" + dir + ", blocks=" + size() + ", bytes=" + sizeInBytes() + ", hits=" + hits
+                + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    private void add(final String name, final int length) {
+
+        List<String> evicted = new ArrayList<String>();
+
+        synchronized (this) {
+
+            if (blocks.put(name, length) == null) {
+                size += length;
+            }
+
+            Iterator<Map.Entry<String, Integer>> iter = blocks.entrySet().iterator();
+            while (size > capacity && iter.hasNext()) {
+
+                Map.Entry<String, Integer> victim = iter.next();
+                if (victim.getKey().equals(name)) {
+                    continue;
+                }
+
+                size -= victim.getValue();
+                evicted.add(victim.getKey());
+                iter.remove();
+            }
+        }
+
+        // readers that already have a block open can still finish reading it
+        for (String victim : evicted) {
+            blockFile(victim).delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized void remove(final String name) {
+
+        Integer length = blocks.remove(name);
+        if (length != null) {
+            size -= length;
+        }
+    }
+
+    private File blockFile(final String name) {
+        return new File(dir, name);
+    }
+
+    /**
+     * Picks up the blocks left by a previous run, oldest first so that they are the first to go.
+     */
+    private void recover() {
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> valid = new ArrayList<File>(files.length);
+        for (File file : files) {
+
+            String name = file.getName();
+            long length = parseBlockLength(name);
+
+            // not one of ours
+            if (length < 0 && !name.endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+
+            if (name.endsWith(TEMP_SUFFIX) || file.length() != length) {
+
+                LOG.info("Removing incomplete block from block cache: " + file);
+                file.delete();
+                continue;
+            }
+
+            valid.add(file);
+        }
+
+        Collections.sort(valid, new Comparator<File>() {
+
+            @Override
+            public int compare(final File o1, final File o2) {
+
+                long m1 = o1.lastModified();
+                long m2 = o2.lastModified();
+                return m1 < m2 ? -1 : m1 == m2 ? 0 : 1;
+            }
+        });
+
+        for (File file : valid) {
+            add(file.getName(), (int) file.length());
+        }
+
+        LOG.info("Recovered blocks from block cache: " + this);
+    }
+
+    private static String blockName(final FileKey key, final long block, final int length) {
+        return key.digest + '-' + block + '-' + length;
+    }
+
+    /**
+     * @return the length that a block file name says it has, or -1 if it is not a block file
+     */
+    private static long parseBlockLength(final String name) {
+
+        int index = name.lastIndexOf('-');
+        if (index < 0) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(name.substring(index + 1));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private static String digest(final String identity) {
+
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(identity.getBytes("UTF-8"));
+
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("MD5 is not available", nsae);
+
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException("UTF-8 is not available", uee);
+        }
+
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            builder.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return builder.toString();
+    }
+}
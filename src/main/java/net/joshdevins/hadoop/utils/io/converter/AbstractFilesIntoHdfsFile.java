@@ -55,9 +55,10 @@ public abstract class AbstractFilesIntoHdfsFile<W extends Closeable> extends Con
         File[] inputFiles = getInputFiles(input);
 
         // setup output file, no compression
+        FileSystem outputFS = null;
         W writer = null;
         try {
-            FileSystem outputFS = FileSystem.get(URI.create(output), getConf());
+            outputFS = FileSystem.get(URI.create(output), getConf());
             writer = createWriter(outputFS);
 
         } catch (IOException ioe) {
@@ -82,6 +83,13 @@ public abstract class AbstractFilesIntoHdfsFile<W extends Closeable> extends Con
 
         IOUtils.closeStream(writer);
 
+        try {
+            writerClosed(outputFS, writer);
+
+        } catch (IOException ioe) {
+            MainUtils.printStackTraceAndError("Failed to finish output file: " + output, ioe);
+        }
+
         return 0;
     }
 
@@ -91,6 +99,13 @@ public abstract class AbstractFilesIntoHdfsFile<W extends Closeable> extends Con
 
     protected abstract Class<?> getImplClass();
 
+    /**
+     * Called once all files have been written and the writer closed, does nothing by default.
+     */
+    protected void writerClosed(final FileSystem outputFS, final W writer) throws IOException {
+        // nothing to do
+    }
+
     private boolean appendFileToWriter(final File file, final W writer) {
 
         String key = file.getName();
@@ -5,14 +5,19 @@ import java.io.IOException;
 import net.joshdevins.hadoop.utils.MainUtils;
 
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BloomMapFile;
 import org.apache.hadoop.io.BloomMapFileWriter;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
 
 /**
- * Writes files in a directory to a {@link BloomMapFile}.
+ * Writes files in a directory to a {@link BloomMapFile}. The new {@link BloomMapFile} is also added to the
+ * {@link DataSetManifest} of the directory it was written in, as long as that directory has a manifest already or holds
+ * nothing else.
  * 
  * @see AbstractFilesIntoHdfsFile
  * 
@@ -39,6 +44,21 @@ public final class FilesIntoBloomMapFile extends AbstractFilesIntoHdfsFile<Bloom
         return FilesIntoBloomMapFile.class;
     }
 
+    @Override
+    protected void writerClosed(final FileSystem outputFS, final BloomMapFileWriter writer) throws IOException {
+
+        Path output = new Path(getOutput());
+        if (output.getParent() == null) {
+            return;
+        }
+
+        Part part = Part.summarize(outputFS, output, writer);
+        if (!DataSetManifest.update(outputFS, output.getParent(), part, Text.class, BytesWritable.class)) {
+            System.err.println("Not adding to dataset manifest, directory has other files without one: "
+                    + output.getParent());
+        }
+    }
+
     public static void main(final String[] args) throws Exception {
         MainUtils.toolRunner(new FilesIntoBloomMapFile(), args);
     }
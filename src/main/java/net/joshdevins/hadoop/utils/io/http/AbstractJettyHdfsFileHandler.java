@@ -87,20 +87,29 @@ public abstract class AbstractJettyHdfsFileHandler extends AbstractHandler imple
         try {
             handleWithExceptionTranslation(target, baseRequest, request, response);
         } catch (HttpErrorException hee) {
+            handleHttpErrorException(hee, request, response);
+            ((Request) request).setHandled(true);
+        }
+    }
 
-            response.setStatus(hee.getStatusCode());
+    /**
+     * Writes the response for an error, either an error page or a known image if one was asked for. Used by
+     * {@link #handle(String, Request, HttpServletRequest, HttpServletResponse)}, and by subclasses for errors in
+     * requests that they complete asynchronously.
+     */
+    protected void handleHttpErrorException(final HttpErrorException hee, final HttpServletRequest request,
+            final HttpServletResponse response) throws IOException {
 
-            // test to see if we just want to return a known image for this error
-            String errorParam = request.getParameter(String.valueOf(hee.getStatusCode()));
+        response.setStatus(hee.getStatusCode());
 
-            if (!StringUtils.isBlank(errorParam) && errorImages.containsKey(errorParam.toLowerCase(Locale.UK))) {
-                handleImageHttpErrorException(errorParam, hee, request, response);
+        // test to see if we just want to return a known image for this error
+        String errorParam = request.getParameter(String.valueOf(hee.getStatusCode()));
 
-            } else {
-                handleStandardHttpErrorException(hee, request, response);
-            }
+        if (!StringUtils.isBlank(errorParam) && errorImages.containsKey(errorParam.toLowerCase(Locale.UK))) {
+            handleImageHttpErrorException(errorParam, hee, request, response);
 
-            ((Request) request).setHandled(true);
+        } else {
+            handleStandardHttpErrorException(hee, request, response);
         }
     }
 
@@ -0,0 +1,154 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Bounds the number of requests reading from datasets at once, both across the whole server and for each dataset, so
+ * that one busy dataset can't take up all of the capacity. Requests over either bound are turned away straight away
+ * rather than queued, so a backlog never builds up under overload.
+ * 
+ * <p>
+ * Reads are counted by dataset name rather than by the open copy of the dataset, so the bound also holds for requests
+ * that have to wait for a dataset to open, and across a reload while reads on the old copy are still in flight.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+final class AdmissionControl {
+
+    private final int maxInFlight;
+
+    private final int maxInFlightPerDataSet;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Reads in flight by dataset name. Counters are kept once created, there is one for every dataset ever read from.
+     */
+    private final ConcurrentMap<String, AtomicInteger> inFlightByDataSet =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private final AtomicLong dataSetRejections = new AtomicLong();
+
+    /**
+     * @param maxInFlight
+     *        maximum number of reads across all datasets
+     * @param maxInFlightPerDataSet
+     *        maximum number of reads on any one dataset
+     */
+    AdmissionControl(final int maxInFlight, final int maxInFlightPerDataSet) {
+
+        Validate.isTrue(maxInFlight > 0, "Maximum in-flight reads must be positive");
+        Validate.isTrue(maxInFlightPerDataSet > 0, "Maximum in-flight reads per dataset must be positive");
+
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerDataSet = maxInFlightPerDataSet;
+    }
+
+    /**
+     * Admits a read, which must be finished with {@link #finish(String)} once done.
+     * 
+     * @param dataset
+     *        the name of the dataset to read from, whether or not it is open yet
+     * @return false if either bound has been reached and the request should be turned away
+     */
+    public boolean tryAdmit(final String dataset) {
+
+        Validate.notNull(dataset, "Dataset name is required");
+
+        if (!tryIncrement(inFlight, maxInFlight)) {
+            rejections.incrementAndGet();
+            return false;
+        }
+
+        if (!tryIncrement(getCounter(dataset), maxInFlightPerDataSet)) {
+            inFlight.decrementAndGet();
+            dataSetRejections.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Finishes a read admitted by {@link #tryAdmit(String)}, with the same dataset name.
+     */
+    public void finish(final String dataset) {
+        getCounter(dataset).decrementAndGet();
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return the number of reads in flight across all datasets
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of reads in flight on a dataset
+     */
+    public int getInFlight(final String dataset) {
+
+        AtomicInteger counter = inFlightByDataSet.get(dataset);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @return the number of requests turned away because a single dataset was at its bound
+     */
+    public long getDataSetRejectionCount() {
+        return dataSetRejections.get();
+    }
+
+    /**
+     * @return the number of requests turned away because the server was at its bound
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionControl [inFlight=" + inFlight + ", maxInFlight=" + maxInFlight + ", maxInFlightPerDataSet="
+                + maxInFlightPerDataSet + ", rejections=" + rejections + ", dataSetRejections=" + dataSetRejections
+                + "]";
+    }
+
+    private AtomicInteger getCounter(final String dataset) {
+
+        AtomicInteger counter = inFlightByDataSet.get(dataset);
+        if (counter == null) {
+
+            AtomicInteger created = new AtomicInteger();
+            counter = inFlightByDataSet.putIfAbsent(dataset, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+
+        return counter;
+    }
+
+    private static boolean tryIncrement(final AtomicInteger counter, final int max) {
+
+        while (true) {
+
+            int current = counter.get();
+            if (current >= max) {
+                return false;
+            }
+
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A single range from an HTTP Range header, like "bytes=0-499", "bytes=500-" or "bytes=-500". Requests for several
+ * ranges at once are not supported, and are served the whole file instead as HTTP allows.
+ * 
+ * @author Josh Devins
+ */
+final class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long first;
+
+    private final long last;
+
+    /**
+     * @param first
+     *        first byte, or -1 for the last bytes of the file
+     * @param last
+     *        last byte inclusive, or -1 for the rest of the file, or the number of bytes from the end if first is -1
+     */
+    private ByteRange(final long first, final long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @return the first byte of a resolved range
+     */
+    public long getFirst() {
+        return first;
+    }
+
+    /**
+     * @return the last byte of a resolved range, inclusive
+     */
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * @return the number of bytes in a resolved range
+     */
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return the value of the Content-Range header for a resolved range
+     */
+    public String getContentRange(final long length) {
+        return "bytes " + first + "-" + last + "/" + length;
+    }
+
+    /**
+     * Resolves this range against the length of a file.
+     * 
+     * @return the range of actual bytes, or null if none of them are in the file
+     */
+    public ByteRange resolve(final long length) {
+
+        if (first == -1) {
+
+            // the last n bytes of an empty file are still none
+            if (last == 0 || length == 0) {
+                return null;
+            }
+
+            return new ByteRange(Math.max(0, length - last), length - 1);
+        }
+
+        if (first >= length) {
+            return null;
+        }
+
+        return new ByteRange(first, last == -1 || last >= length ? length - 1 : last);
+    }
+
+    @Override
+    public String toString() {
+        return "ByteRange [first=" + first + ", last=" + last + "]";
+    }
+
+    /**
+     * Parses the value of a Range header.
+     * 
+     * @return the range or null if the header is not a single, valid byte range
+     */
+    static ByteRange parse(final String header) {
+
+        if (header == null || !StringUtils.startsWithIgnoreCase(header.trim(), BYTES_UNIT)) {
+            return null;
+        }
+
+        String spec = header.trim().substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+
+        String firstString = spec.substring(0, dash).trim();
+        String lastString = spec.substring(dash + 1).trim();
+
+        try {
+            if (firstString.length() == 0) {
+                return lastString.length() == 0 ? null : new ByteRange(-1, parseOffset(lastString));
+            }
+
+            long first = parseOffset(firstString);
+            long last = lastString.length() == 0 ? -1 : parseOffset(lastString);
+
+            if (last != -1 && last < first) {
+                return null;
+            }
+
+            return new ByteRange(first, last);
+
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    private static long parseOffset(final String value) {
+
+        // no signs, Long.parseLong would allow them
+        if (!StringUtils.isNumeric(value)) {
+            throw new NumberFormatException("Not a byte offset: " + value);
+        }
+
+        return Long.parseLong(value);
+    }
+}
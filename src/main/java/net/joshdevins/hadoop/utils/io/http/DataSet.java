@@ -0,0 +1,703 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.io.BloomMapFileReader;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.ValueLocation;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.lib.output.BloomMapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.DataSetHashIndex;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.mapreduce.lib.partition.TileRangePartitioner;
+
+/**
+ * A dataset that has been opened by the {@link JettyBloomMapFileHandler}. Holds the {@link BloomMapFileReader}s for all
+ * parts of the dataset, in sorted part order, and knows how to route a key to the reader(s) that could hold it.
+ * 
+ * <p>
+ * Each request holds a reference to the dataset while it uses the readers. Once the handler is done with a dataset,
+ * because it was deleted, expired or replaced by a newer version, it is retired and the readers are closed as soon as
+ * the last request using them has finished.
+ * </p>
+ * 
+ * <p>
+ * A dataset with a {@link DataSetHashIndex} looks keys up in the index first, whatever its {@link LookupMode}, and only
+ * falls back to the readers in the rare case that a key's fingerprint matches one it doesn't have.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+final class DataSet {
+
+    /**
+     * How keys are looked up across the readers of a dataset.
+     */
+    enum LookupMode {
+
+        /**
+         * The dataset was written by {@link BloomMapFileOutputFormat} with a known partitioner, a
+         * {@link HashPartitioner} or a {@link TileRangePartitioner}, or its parts hold key ranges that don't overlap
+         * (see {@link KeyRangePartitioner}), so a key is routed directly to the single reader that owns it.
+         */
+        PARTITIONED,
+
+        /**
+         * The layout of the dataset is unknown, so every reader is probed in turn.
+         */
+        SCAN
+    }
+
+    /**
+     * Receives the contents of files found by {@link DataSet#getValues(SortedSet, ValueCallback)}, as they are read.
+     */
+    interface ValueCallback {
+
+        /**
+         * @param value
+         *        a buffer of the contents, only valid until this returns
+         */
+        void found(Text key, ByteBuffer value) throws IOException;
+    }
+
+    /**
+     * The contents of a file that has been found but not necessarily read, so that just a range of it can be read.
+     */
+    static final class StoredValue {
+
+        private final BloomMapFileReader reader;
+
+        private final ValueLocation location;
+
+        private final ByteBuffer bytes;
+
+        private StoredValue(final BloomMapFileReader reader, final ValueLocation location) {
+            this.reader = reader;
+            this.location = location;
+            bytes = null;
+        }
+
+        private StoredValue(final ByteBuffer bytes) {
+            reader = null;
+            location = null;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the number of bytes in the file
+         */
+        public int getLength() {
+            return bytes == null ? location.getLength() : bytes.remaining();
+        }
+
+        /**
+         * Reads a range of the file, touching only the bytes in that range if the file is in the data file as is.
+         */
+        public ByteBuffer read(final long offset, final int length) throws IOException {
+
+            if (bytes == null) {
+                return reader.read(location.getRange(offset, length));
+            }
+
+            ByteBuffer range = bytes.duplicate();
+            range.position((int) offset);
+            range.limit((int) offset + length);
+
+            return range.slice();
+        }
+    }
+
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+
+    private final String name;
+
+    private final long version;
+
+    private final String cacheKey;
+
+    /**
+     * One reference for the handler plus one for each request in flight.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private final AtomicBoolean retired = new AtomicBoolean();
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    private final BloomMapFileReader[] readers;
+
+    private final LookupMode lookupMode;
+
+    private final Partitioner<Text, BytesWritable> partitioner;
+
+    /**
+     * Where every file is, or null if the dataset has no hash index.
+     */
+    private final DataSetHashIndex hashIndex;
+
+    private final NegativeCache notFoundFiles;
+
+    /**
+     * Where files have been found, or null if not remembered.
+     */
+    private final LocationCache foundFiles;
+
+    private final MemoryBudget pinnedMemory;
+
+    /**
+     * @param version
+     *        the version of the dataset that the readers were opened from
+     */
+    DataSet(final String name, final BloomMapFileReader[] readers, final LookupMode lookupMode,
+            final NegativeCache notFoundFiles, final long version) {
+        this(name, readers, lookupMode == LookupMode.PARTITIONED ? new HashPartitioner<Text, BytesWritable>() : null,
+                null, notFoundFiles, null, version, null);
+    }
+
+    /**
+     * @param partitioner
+     *        the partitioner the dataset was written with or null if keys have to be looked for in every reader
+     * @param hashIndex
+     *        the hash index of the dataset, or null if it has none
+     * @param foundFiles
+     *        remembers where files were found, or null to always look them up
+     * @param pinnedMemory
+     *        the budget that the memory of any pinned readers was reserved from, given back once they are closed
+     */
+    DataSet(final String name, final BloomMapFileReader[] readers, final Partitioner<Text, BytesWritable> partitioner,
+            final DataSetHashIndex hashIndex, final NegativeCache notFoundFiles, final LocationCache foundFiles,
+            final long version, final MemoryBudget pinnedMemory) {
+
+        this.name = name;
+        this.version = version;
+
+        // unique to this copy of the dataset, so nothing read from an older copy can be served from a cache
+        cacheKey = name + "@" + GENERATIONS.incrementAndGet();
+        this.readers = readers;
+        this.partitioner = partitioner;
+        this.hashIndex = hashIndex;
+
+        lookupMode = partitioner == null ? LookupMode.SCAN : LookupMode.PARTITIONED;
+        this.notFoundFiles = notFoundFiles;
+        this.foundFiles = foundFiles;
+        this.pinnedMemory = pinnedMemory;
+    }
+
+    /**
+     * Takes a reference to the dataset for a request, which must be released once the request is done with it.
+     * 
+     * @return false if the dataset has been retired and must not be used
+     */
+    public boolean acquire() {
+
+        if (retired.get()) {
+            return false;
+        }
+
+        while (true) {
+
+            int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void addNotFoundFile(final String filename) {
+        notFoundFiles.add(filename);
+    }
+
+    /**
+     * Releases a reference taken by {@link #acquire()}, closing the readers if the dataset has been retired and this
+     * was the last one.
+     */
+    public void release() {
+
+        if (references.decrementAndGet() == 0) {
+            cleanup();
+        }
+    }
+
+    /**
+     * Drops the handler's reference to the dataset. No new requests can use it, and the readers are closed once any
+     * requests in flight are done.
+     */
+    public void retire() {
+
+        if (retired.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Closes readers, general cleanup.
+     */
+    private void cleanup() {
+
+        if (pinnedMemory != null) {
+            pinnedMemory.release(getPinnedSize());
+        }
+
+        for (int i = 0; i < readers.length; i++) {
+            IOUtils.closeStream(readers[i]);
+            readers[i] = null;
+        }
+
+        notFoundFiles.clear();
+    }
+
+    /**
+     * Looks up a key in the dataset, filling in the value if it's found. In {@link LookupMode#PARTITIONED} mode only the
+     * owning reader is probed, otherwise every reader is probed in part order until one of them has the key.
+     * 
+     * @return true if the key was found, false otherwise
+     */
+    public boolean get(final Text key, final BytesWritable value) throws IOException {
+
+        if (lookupMode == LookupMode.PARTITIONED) {
+            return BloomMapFileOutputFormat.getEntry(readers, partitioner, key, value) != null;
+        }
+
+        for (BloomMapFileReader reader : readers) {
+
+            // internally this hits the bloom filter first
+            if (reader.get(key, value) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Looks up the contents of a file, probing readers the same way as {@link #get(Text, BytesWritable)}. Where the
+     * readers allow it the contents are not deserialized at all, just located and read, so the buffer can be a view
+     * straight onto a memory mapped data file. A file found before, or in the hash index, is read straight from where
+     * it is.
+     * 
+     * @return a buffer of the contents, which must not be modified, or null if the key was not found
+     */
+    public ByteBuffer getValue(final Text key) throws IOException {
+
+        lookups.incrementAndGet();
+        return lookUpValue(key);
+    }
+
+    /**
+     * Looks up the contents of many files at once. Keys are grouped by the reader that could hold them and each reader
+     * is read in key order, which for a {@link MapFile} is also the order of the values in the data file, so that the
+     * reads run forward through each data file instead of seeking back and forth. With a hash index, each key is read
+     * from where the index says it is.
+     * 
+     * @param keys
+     *        the keys to look up, in their natural order
+     * @return the keys that were not found, in order
+     */
+    public List<Text> getValues(final SortedSet<Text> keys, final ValueCallback callback) throws IOException {
+
+        lookups.addAndGet(keys.size());
+        List<Text> remaining = new ArrayList<Text>(keys);
+
+        if (hashIndex != null) {
+
+            List<Text> notFound = new ArrayList<Text>();
+            for (Text key : remaining) {
+
+                ByteBuffer value = lookUpValue(key);
+                if (value == null) {
+                    notFound.add(key);
+                } else {
+                    callback.found(key, value);
+                }
+            }
+
+            return notFound;
+        }
+
+        if (lookupMode == LookupMode.PARTITIONED) {
+
+            // still sorted within each partition
+            List<List<Text>> partitions = new ArrayList<List<Text>>(readers.length);
+            for (int i = 0; i < readers.length; i++) {
+                partitions.add(new ArrayList<Text>());
+            }
+
+            for (Text key : remaining) {
+                partitions.get(partitioner.getPartition(key, null, readers.length)).add(key);
+            }
+
+            remaining.clear();
+            for (int i = 0; i < readers.length; i++) {
+                remaining.addAll(getValues(i, partitions.get(i), callback));
+            }
+
+            Collections.sort(remaining);
+            return remaining;
+        }
+
+        for (int i = 0; i < readers.length; i++) {
+
+            if (remaining.isEmpty()) {
+                break;
+            }
+
+            remaining = getValues(i, remaining, callback);
+        }
+
+        return remaining;
+    }
+
+    /**
+     * Finds the contents of a file without reading them, so that a range of a large file can be served without reading
+     * all of it. Only the contents of {@link BytesWritable} values read with positional reads can be found this way,
+     * anything else is read whole.
+     * 
+     * @return the contents or null if the file is not in the dataset
+     */
+    public StoredValue locateValue(final Text key) throws IOException {
+
+        lookups.incrementAndGet();
+
+        if (hashIndex != null) {
+
+            DataSetHashIndex.Entry indexed = hashIndex.get(key);
+            if (indexed == null) {
+                return null;
+            }
+
+            if (readAt(key, indexed.getPart(), indexed.getLocation(), 4) != null) {
+                return newStoredValue(indexed.getPart(), indexed.getLocation());
+            }
+        }
+
+        LocationCache.Entry entry = foundFiles == null ? null : foundFiles.get(key.toString());
+        if (entry != null && readAt(key, entry.getPart(), entry.getLocation(), 4) != null) {
+            return newStoredValue(entry.getPart(), entry.getLocation());
+        }
+
+        if (lookupMode == LookupMode.PARTITIONED) {
+            return locateValue(partitioner.getPartition(key, null, readers.length), key);
+        }
+
+        for (int i = 0; i < readers.length; i++) {
+
+            StoredValue value = locateValue(i, key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the name of the dataset made unique to this copy of it, to key cached values by
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * @return the number of lookups that passed a Bloom filter of this copy of the dataset but were not in the part
+     */
+    public long getBloomFalsePositiveCount() {
+
+        long count = 0;
+        for (BloomMapFileReader reader : readers) {
+            if (reader != null) {
+                count += reader.getBloomFalsePositiveCount();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of Bloom filters checked by lookups on this copy of the dataset
+     */
+    public long getBloomProbeCount() {
+
+        long count = 0;
+        for (BloomMapFileReader reader : readers) {
+            if (reader != null) {
+                count += reader.getBloomProbeCount();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of bytes held in memory by pinned readers of this copy of the dataset
+     */
+    public long getPinnedSize() {
+
+        long size = 0;
+        for (BloomMapFileReader reader : readers) {
+            if (reader != null) {
+                size += reader.getPinnedSize();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the number of files looked up in the readers of this copy of the dataset
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * @return where files have been found, or null if not remembered
+     */
+    public LocationCache getFoundFiles() {
+        return foundFiles;
+    }
+
+    /**
+     * @return the hash index of the dataset, or null if it has none
+     */
+    public DataSetHashIndex getHashIndex() {
+        return hashIndex;
+    }
+
+    public NegativeCache getNotFoundFiles() {
+        return notFoundFiles;
+    }
+
+    public LookupMode getLookupMode() {
+        return lookupMode;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public BloomMapFileReader[] getReaders() {
+        return readers;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isKnownNotFoundFile(final String filename) {
+        return notFoundFiles.contains(filename);
+    }
+
+    /**
+     * @see #getValue(Text)
+     */
+    private ByteBuffer lookUpValue(final Text key) throws IOException {
+
+        if (hashIndex != null) {
+
+            DataSetHashIndex.Entry entry = hashIndex.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            ByteBuffer value = readAt(key, entry.getPart(), entry.getLocation(), entry.getLocation().getLength());
+            if (value != null) {
+                return toValue(value, key);
+            }
+
+            // a key that is not in the index but has the same fingerprint as one that is, the readers know for sure
+        }
+
+        ByteBuffer found = readFound(key);
+        if (found != null) {
+            return found;
+        }
+
+        if (lookupMode == LookupMode.PARTITIONED) {
+            return getValue(partitioner.getPartition(key, null, readers.length), key);
+        }
+
+        for (int i = 0; i < readers.length; i++) {
+
+            ByteBuffer value = getValue(i, key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Looks up a file in a single part, remembering where it was found.
+     */
+    private ByteBuffer getValue(final int part, final Text key) throws IOException {
+
+        BloomMapFileReader reader = readers[part];
+
+        // raw bytes can only be used where they are known to be a serialized BytesWritable
+        if (!reader.isPositionalReads() || reader.getValueClass() != BytesWritable.class) {
+
+            BytesWritable value = new BytesWritable();
+            if (reader.get(key, value) == null) {
+                return null;
+            }
+
+            return ByteBuffer.wrap(value.getBytes(), 0, value.getLength());
+        }
+
+        ValueLocation location = reader.locate(key);
+        if (location == null) {
+            return null;
+        }
+
+        rememberFound(key, part, location);
+        return toValue(reader.read(location), key);
+    }
+
+    /**
+     * @return the keys that were not found
+     */
+    private List<Text> getValues(final int part, final List<Text> keys, final ValueCallback callback)
+            throws IOException {
+
+        List<Text> notFound = new ArrayList<Text>();
+
+        for (Text key : keys) {
+
+            ByteBuffer value = getValue(part, key);
+            if (value == null) {
+                notFound.add(key);
+            } else {
+                callback.found(key, value);
+            }
+        }
+
+        return notFound;
+    }
+
+    private StoredValue locateValue(final int part, final Text key) throws IOException {
+
+        BloomMapFileReader reader = readers[part];
+        if (!reader.isPositionalReads() || reader.getValueClass() != BytesWritable.class) {
+
+            ByteBuffer value = getValue(part, key);
+            return value == null ? null : new StoredValue(value);
+        }
+
+        ValueLocation location = reader.locate(key);
+        if (location == null) {
+            return null;
+        }
+
+        if (location.getLength() < 4) {
+            throw new IOException("Corrupt value, record is too short: key=" + key);
+        }
+
+        // read just the length that a BytesWritable is serialized with
+        int length = reader.read(location.getRange(0, 4)).getInt();
+        if (length != location.getLength() - 4) {
+            throw new IOException("Corrupt value, length does not match record: key=" + key);
+        }
+
+        rememberFound(key, part, location);
+        return new StoredValue(reader, location.getRange(4, length));
+    }
+
+    /**
+     * Reads a file from where it was found before, if it was.
+     * 
+     * @return the contents, or null if the file is not known or not where it was
+     */
+    private ByteBuffer readFound(final Text key) throws IOException {
+
+        LocationCache.Entry entry = foundFiles == null ? null : foundFiles.get(key.toString());
+        if (entry == null) {
+            return null;
+        }
+
+        ByteBuffer value = readAt(key, entry.getPart(), entry.getLocation(), entry.getLocation().getLength());
+        return value == null ? null : toValue(value, key);
+    }
+
+    /**
+     * Reads the record at a remembered or indexed location, from the serialized key in front of the value through the
+     * first bytes of the value, and checks that the key is the one looked up. A fingerprint collision can therefore
+     * never serve the wrong file.
+     * 
+     * @param valueLength
+     *        number of bytes of the serialized value to read
+     * @return a buffer positioned at the start of the serialized value, or null if the record is for another key
+     */
+    private ByteBuffer readAt(final Text key, final int part, final ValueLocation location, final int valueLength)
+            throws IOException {
+
+        if (part >= readers.length) {
+            return null;
+        }
+
+        DataOutputBuffer serialized = new DataOutputBuffer();
+        key.write(serialized);
+
+        int keyLength = serialized.getLength();
+        long position = location.getPosition();
+        if (position < keyLength) {
+            return null;
+        }
+
+        ByteBuffer record = readers[part].read(new ValueLocation(position - keyLength, keyLength + valueLength));
+        byte[] keyBytes = serialized.getData();
+
+        for (int i = 0; i < keyLength; i++) {
+            if (record.get(record.position() + i) != keyBytes[i]) {
+                return null;
+            }
+        }
+
+        record.position(record.position() + keyLength);
+        return record;
+    }
+
+    /**
+     * The contents of a serialized {@link BytesWritable} at a known location.
+     */
+    private StoredValue newStoredValue(final int part, final ValueLocation location) {
+        return new StoredValue(readers[part], location.getRange(4, location.getLength() - 4));
+    }
+
+    private void rememberFound(final Text key, final int part, final ValueLocation location) {
+
+        if (foundFiles != null) {
+            foundFiles.put(key.toString(), part, location);
+        }
+    }
+
+    /**
+     * Strips the length that a BytesWritable is serialized with from a serialized value.
+     */
+    private static ByteBuffer toValue(final ByteBuffer serialized, final Text key) throws IOException {
+
+        int length = serialized.getInt(serialized.position());
+        if (length != serialized.remaining() - 4) {
+            throw new IOException("Corrupt value, length does not match record: key=" + key);
+        }
+
+        serialized.position(serialized.position() + 4);
+        return serialized.slice();
+    }
+}
@@ -0,0 +1,615 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.joshdevins.hadoop.utils.io.http.DataSet.LookupMode;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFile;
+import org.apache.hadoop.io.BloomMapFileReader;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.lib.output.BloomMapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.DataSetHashIndex;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.mapreduce.lib.partition.TileRangePartitioner;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Opens the {@link BloomMapFile}s of a dataset for the {@link JettyBloomMapFileHandler}. Checking each part and opening
+ * its reader (and so loading its Bloom filter) costs a few filesystem round-trips, so all the parts of a dataset are
+ * opened in parallel on a bounded, shared executor once one is set, and one after the other before then.
+ * 
+ * <p>
+ * A dataset with a {@link DataSetManifest} is opened straight from the parts it lists. Only without one is the dataset
+ * directory listed, and every entry in it listed again to check that it is a {@link BloomMapFile}. If the manifest
+ * comes with an up to date {@link DataSetHashIndex}, that is opened too, and the index of each part is then only loaded
+ * should a lookup ever need it. Without a partitioner that is known, keys are routed by the key ranges of the parts in
+ * the manifest, as long as they don't overlap.
+ * </p>
+ * 
+ * <p>
+ * The data files of pinned datasets are loaded into memory as they are opened, for as long as the memory budget
+ * shared by all pinned datasets lasts. Any part that doesn't fit is opened as usual.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+final class DataSetLoader {
+
+    /**
+     * Names of the parts written by the reducers of {@link BloomMapFileOutputFormat}, capturing the partition number.
+     * Map-only output is never partitioned.
+     */
+    private static final Pattern PART_NAME_PATTERN = Pattern.compile("part-r-(\\d+)");
+
+    private final FileSystem fileSystem;
+
+    private final Configuration conf;
+
+    /**
+     * For the readers of datasets with a hash index, which rarely need their own indexes.
+     */
+    private final Configuration lazyIndexConf;
+
+    private final String rootPathInFileSystem;
+
+    private volatile ExecutorService executor;
+
+    private final long notFoundCacheSize;
+
+    private final long notFoundCacheTtlMillis;
+
+    private final long foundCacheSize;
+
+    private final Set<String> pinnedDataSets;
+
+    private final MemoryBudget pinnedMemory;
+
+    private final boolean pinnedOffHeap;
+
+    /**
+     * @param foundCacheSize
+     *        bytes used to remember where files were found in each dataset, 0 to not remember
+     * @param pinnedDataSets
+     *        names of the datasets to pin in memory
+     * @param pinnedMemory
+     *        the budget shared by all pinned datasets
+     * @param pinnedOffHeap
+     *        hold copies of data files and hash indexes off of the heap, files on the local filesystem are always
+     *        mapped
+     */
+    DataSetLoader(final FileSystem fileSystem, final Configuration conf, final String rootPathInFileSystem,
+            final long notFoundCacheSize, final long notFoundCacheTtlMillis, final long foundCacheSize,
+            final Set<String> pinnedDataSets, final MemoryBudget pinnedMemory, final boolean pinnedOffHeap) {
+
+        this.fileSystem = fileSystem;
+        this.conf = conf;
+        lazyIndexConf = new Configuration(conf);
+        lazyIndexConf.setBoolean(BloomMapFileReader.LAZY_INDEX_KEY, true);
+        this.rootPathInFileSystem = rootPathInFileSystem;
+        this.notFoundCacheSize = notFoundCacheSize;
+        this.notFoundCacheTtlMillis = notFoundCacheTtlMillis;
+        this.foundCacheSize = foundCacheSize;
+        this.pinnedDataSets = pinnedDataSets;
+        this.pinnedMemory = pinnedMemory;
+        this.pinnedOffHeap = pinnedOffHeap;
+    }
+
+    /**
+     * @param executor
+     *        opens the parts of datasets in parallel, or null to open them in the calling thread
+     */
+    void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the current version of a dataset without opening it, so that a newer version can be detected. This is the
+     * modification time of its manifest or, without one, the latest modification time of the dataset directory and the
+     * parts in it.
+     * 
+     * @throws HttpErrorException
+     *         if the dataset does not exist or can't be checked
+     */
+    public long getVersion(final String dataset) {
+
+        Path datasetPath = new Path(rootPathInFileSystem + dataset);
+
+        FileStatus manifestStatus = getManifestStatus(dataset, datasetPath);
+        if (manifestStatus != null) {
+            return manifestStatus.getModificationTime();
+        }
+
+        FileStatus datasetStatus = getDataSetStatus(dataset, datasetPath);
+        return getDirectoryVersion(datasetStatus, listDataSet(dataset, datasetPath));
+    }
+
+    /**
+     * Opens all the readers of a dataset, from its {@link DataSetManifest} if it has one.
+     * 
+     * @throws HttpErrorException
+     *         if the dataset does not exist or can't be opened
+     */
+    public DataSet load(final String dataset) {
+
+        Path datasetPath = new Path(rootPathInFileSystem + dataset);
+
+        FileStatus manifestStatus = getManifestStatus(dataset, datasetPath);
+        if (manifestStatus != null) {
+
+            DataSetManifest manifest;
+            try {
+                manifest = DataSetManifest.read(fileSystem, datasetPath);
+
+            } catch (IOException ioe) {
+                throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "Could not read manifest of dataset: " + dataset, ioe);
+            }
+
+            // could have just been removed
+            if (manifest != null) {
+                return loadFromManifest(dataset, datasetPath, manifest, manifestStatus.getModificationTime());
+            }
+        }
+
+        return loadFromDirectory(dataset, datasetPath);
+    }
+
+    /**
+     * Opens the parts listed in the manifest, without touching the dataset directory at all.
+     */
+    private DataSet loadFromManifest(final String dataset, final Path datasetPath, final DataSetManifest manifest,
+            final long version) {
+
+        List<Part> parts = manifest.getParts();
+        Path[] paths = new Path[parts.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = new Path(datasetPath, parts.get(i).getName());
+        }
+
+        DataSetHashIndex hashIndex = openHashIndex(dataset, datasetPath, manifest);
+        BloomMapFileReader[] readers = openReaders(dataset, paths, false, hashIndex == null ? conf : lazyIndexConf);
+
+        // the manifest says how keys were partitioned, only parts written by a known partitioner can be routed to
+        Partitioner<Text, BytesWritable> partitioner = null;
+        if (getLookupMode(paths, readers) == LookupMode.PARTITIONED) {
+            partitioner = newPartitioner(manifest.getPartitionerClassName());
+        }
+
+        // whatever the parts were written with, if their key ranges don't overlap keys can be routed by those
+        if (partitioner == null) {
+            try {
+                partitioner = KeyRangePartitioner.fromManifest(manifest);
+
+            } catch (IOException ioe) {
+                Log.warn("Could not read key ranges from manifest of dataset: dataset=" + dataset, ioe);
+            }
+        }
+
+        return newDataSet(dataset, readers, partitioner, hashIndex, version, "manifest");
+    }
+
+    /**
+     * Lists the dataset directory and opens every {@link BloomMapFile} in it. Nothing records how the keys were
+     * partitioned, so they are only routed to a part if the partitioner is configured for the dataset, see
+     * {@link JettyBloomMapFileHandler#PARTITIONER_KEY_PREFIX}.
+     */
+    private DataSet loadFromDirectory(final String dataset, final Path datasetPath) {
+
+        FileStatus datasetStatus = getDataSetStatus(dataset, datasetPath);
+        FileStatus[] files = listDataSet(dataset, datasetPath);
+
+        // only directories can be BloomMapFiles, anything hidden is not part of the dataset
+        List<Path> dirs = new ArrayList<Path>(files.length);
+        for (FileStatus file : files) {
+
+            if (DataSetManifest.isHidden(file.getPath().getName())) {
+                continue;
+            }
+
+            if (!file.isDir()) {
+                Log.warn("Skipping non-BloomMapFile found in dataset: dataset=" + dataset + " file="
+                        + file.getPath().getName());
+                continue;
+            }
+
+            dirs.add(file.getPath());
+        }
+
+        // sort names, so that partition routing works
+        Path[] paths = dirs.toArray(new Path[dirs.size()]);
+        Arrays.sort(paths);
+
+        BloomMapFileReader[] readers = openReaders(dataset, paths, true, conf);
+
+        // drop the paths that were skipped
+        List<Path> mapFiles = new ArrayList<Path>(readers.length);
+        List<BloomMapFileReader> openReaders = new ArrayList<BloomMapFileReader>(readers.length);
+        for (int i = 0; i < readers.length; i++) {
+
+            if (readers[i] != null) {
+                mapFiles.add(paths[i]);
+                openReaders.add(readers[i]);
+            }
+        }
+
+        readers = openReaders.toArray(new BloomMapFileReader[openReaders.size()]);
+        // guessing wrong would send keys to the wrong part, so only route with a partitioner configured for the dataset
+        Partitioner<Text, BytesWritable> partitioner = null;
+        String partitionerClassName = conf.get(JettyBloomMapFileHandler.PARTITIONER_KEY_PREFIX + dataset);
+
+        if (partitionerClassName != null
+                && getLookupMode(mapFiles.toArray(new Path[mapFiles.size()]), readers) == LookupMode.PARTITIONED) {
+
+            partitioner = newPartitioner(partitionerClassName);
+            if (partitioner == null) {
+                Log.warn("Unknown partitioner configured for dataset: dataset=" + dataset + " partitioner="
+                        + partitionerClassName);
+            }
+        }
+
+        return newDataSet(dataset, readers, partitioner, null, getDirectoryVersion(datasetStatus, files),
+                "directory");
+    }
+
+    private DataSet newDataSet(final String dataset, final BloomMapFileReader[] readers,
+            final Partitioner<Text, BytesWritable> partitioner, final DataSetHashIndex hashIndex, final long version,
+            final String source) {
+
+        // the hash index already knows where every file is
+        LocationCache foundFiles = null;
+        if (hashIndex == null && foundCacheSize > 0) {
+            foundFiles = new LocationCache(foundCacheSize);
+        }
+
+        DataSet opened = new DataSet(dataset, readers, partitioner, hashIndex, new NegativeCache(notFoundCacheSize,
+                notFoundCacheTtlMillis), foundFiles, version, pinnedMemory);
+
+        Log.info("Opened dataset: dataset=" + dataset + " readers=" + readers.length + " mode="
+                + opened.getLookupMode() + " version=" + version + " source=" + source + " pinned="
+                + opened.getPinnedSize() + " hashIndex=" + (hashIndex == null ? 0 : hashIndex.getSizeInBytes()));
+
+        return opened;
+    }
+
+    /**
+     * @throws HttpErrorException
+     *         if the dataset directory does not exist
+     */
+    private FileStatus getDataSetStatus(final String dataset, final Path datasetPath) {
+
+        FileStatus status;
+        try {
+            status = fileSystem.getFileStatus(datasetPath);
+
+        } catch (FileNotFoundException fnfe) {
+            status = null;
+
+        } catch (IOException ioe) {
+            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Could not open dataset directory: " + dataset, ioe);
+        }
+
+        if (status == null || !status.isDir()) {
+            throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND, "Dataset directory does not exist: "
+                    + dataset);
+        }
+
+        return status;
+    }
+
+    /**
+     * @return the status of the manifest of the dataset or null if it has none
+     */
+    private FileStatus getManifestStatus(final String dataset, final Path datasetPath) {
+
+        try {
+            return fileSystem.getFileStatus(new Path(datasetPath, DataSetManifest.MANIFEST_FILE_NAME));
+
+        } catch (FileNotFoundException fnfe) {
+            return null;
+
+        } catch (IOException ioe) {
+            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Could not check manifest of dataset: " + dataset, ioe);
+        }
+    }
+
+    private FileStatus[] listDataSet(final String dataset, final Path datasetPath) {
+
+        try {
+            return fileSystem.listStatus(datasetPath);
+
+        } catch (IOException ioe) {
+            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Could not list map files in dataset: " + dataset, ioe);
+        }
+    }
+
+    /**
+     * Opens the hash index of a dataset, as long as lookups can read values from where it says they are.
+     * 
+     * @return the index or null if the dataset has none, or one that can't be used
+     */
+    private DataSetHashIndex openHashIndex(final String dataset, final Path datasetPath,
+            final DataSetManifest manifest) {
+
+        if (!conf.getBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, false)
+                || !Text.class.getName().equals(manifest.getKeyClassName())
+                || !BytesWritable.class.getName().equals(manifest.getValueClassName())) {
+            return null;
+        }
+
+        try {
+            return DataSetHashIndex.open(fileSystem, datasetPath, manifest, pinnedOffHeap);
+
+        } catch (IOException ioe) {
+
+            // still usable through the readers
+            Log.warn("Could not open hash index of dataset: dataset=" + dataset, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a reader for every path at once. When checking, directories that are not {@link BloomMapFile}s are skipped
+     * and have a null reader.
+     * 
+     * @return the readers, in the same order as the paths
+     */
+    private BloomMapFileReader[] openReaders(final String dataset, final Path[] paths, final boolean check,
+            final Configuration readerConf) {
+
+        final boolean pin = pinnedDataSets.contains(dataset);
+
+        ExecutorService current = executor;
+        List<Future<BloomMapFileReader>> futures = new ArrayList<Future<BloomMapFileReader>>(paths.length);
+        for (final Path path : paths) {
+
+            Callable<BloomMapFileReader> open = new Callable<BloomMapFileReader>() {
+
+                @Override
+                public BloomMapFileReader call() throws IOException {
+
+                    // skip any files that are not BloomMapFile directories
+                    if (check && !isBloomMapFile(path)) {
+
+                        Log.warn("Skipping non-BloomMapFile found in dataset: dataset=" + dataset + " file="
+                                + path.getName());
+                        return null;
+                    }
+
+                    BloomMapFileReader reader = new BloomMapFileReader(fileSystem, path.toString(), readerConf);
+                    if (pin) {
+                        pin(dataset, path, reader);
+                    }
+
+                    return reader;
+                }
+            };
+
+            if (current == null) {
+                FutureTask<BloomMapFileReader> task = new FutureTask<BloomMapFileReader>(open);
+                task.run();
+                futures.add(task);
+
+            } else {
+                futures.add(current.submit(open));
+            }
+        }
+
+        BloomMapFileReader[] readers = new BloomMapFileReader[paths.length];
+        HttpErrorException failure = null;
+
+        // wait for all of them, even after a failure or an interrupt, so that no reader is leaked
+        for (int i = 0; i < futures.size(); i++) {
+
+            try {
+                readers[i] = getUninterruptibly(futures.get(i));
+
+            } catch (ExecutionException ee) {
+
+                if (failure == null) {
+                    failure = new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                            "Could not create reader for map file: " + paths[i].toString(), ee.getCause());
+                }
+
+            } catch (CancellationException ce) {
+
+                if (failure == null) {
+                    failure = new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            "Stopped while opening dataset: " + dataset, ce);
+                }
+            }
+        }
+
+        if (failure == null && Thread.currentThread().isInterrupted()) {
+            failure = new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Interrupted while opening dataset: " + dataset);
+        }
+
+        if (failure != null) {
+
+            for (BloomMapFileReader reader : readers) {
+                IOUtils.closeStream(reader);
+            }
+
+            throw failure;
+        }
+
+        return readers;
+    }
+
+    /**
+     * Waits for a reader to be opened, even if interrupted meanwhile. The interrupt is restored once it's done.
+     */
+    private static <T> T getUninterruptibly(final Future<T> future) throws ExecutionException {
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Loads the data file of a reader into memory, if it fits in what is left of the budget. The size of the offset
+     * table is only known once the data file has been scanned, so it is reserved afterwards.
+     */
+    private void pin(final String dataset, final Path path, final BloomMapFileReader reader) throws IOException {
+
+        if (!reader.isPositionalReads()) {
+            Log.warn("Can't pin compressed part of dataset: dataset=" + dataset + " part=" + path.getName());
+            return;
+        }
+
+        long length = reader.getDataLength();
+        if (!pinnedMemory.tryReserve(length)) {
+            Log.warn("Not enough memory left to pin part of dataset: dataset=" + dataset + " part=" + path.getName()
+                    + " length=" + length + " " + pinnedMemory);
+            return;
+        }
+
+        boolean pinned = false;
+        try {
+            long size = reader.pin(pinnedOffHeap);
+            if (pinnedMemory.tryReserve(size - length)) {
+                pinned = true;
+            } else {
+
+                Log.warn("Not enough memory left to pin part of dataset: dataset=" + dataset + " part="
+                        + path.getName() + " size=" + size + " " + pinnedMemory);
+                reader.unpin();
+            }
+
+        } catch (IOException ioe) {
+
+            // still usable from the filesystem
+            Log.warn("Could not pin part of dataset: dataset=" + dataset + " part=" + path.getName(), ioe);
+            reader.unpin();
+
+        } finally {
+            if (!pinned) {
+                pinnedMemory.release(length);
+            }
+        }
+    }
+
+    /**
+     * Determine if a directory is actually a {@link BloomMapFile}. This is based on the existence of exactly three
+     * files named: bloom, index, data
+     */
+    private boolean isBloomMapFile(final Path path) throws IOException {
+
+        FileStatus[] files = fileSystem.listStatus(path);
+        Set<String> fileNames = new HashSet<String>(files.length);
+
+        for (FileStatus file : files) {
+
+            if (file.isDir()) {
+                return false;
+            }
+
+            fileNames.add(file.getPath().getName());
+        }
+
+        return fileNames.size() == 3 && fileNames.contains("bloom") && fileNames.contains("index")
+                && fileNames.contains("data");
+    }
+
+    /**
+     * Parts are written or replaced by creating files in them, which touches the part directories, and added or removed
+     * by touching the dataset directory.
+     */
+    private static long getDirectoryVersion(final FileStatus datasetStatus, final FileStatus[] files) {
+
+        long version = datasetStatus.getModificationTime();
+        for (FileStatus file : files) {
+
+            if (!DataSetManifest.isHidden(file.getPath().getName())) {
+                version = Math.max(version, file.getModificationTime());
+            }
+        }
+
+        return version;
+    }
+
+    /**
+     * Creates the partitioner named in a manifest, if it's one that lookups can be routed with.
+     * 
+     * @return the partitioner or null if the partitioner is unknown
+     */
+    private static Partitioner<Text, BytesWritable> newPartitioner(final String partitionerClassName) {
+
+        if (HashPartitioner.class.getName().equals(partitionerClassName)) {
+            return new HashPartitioner<Text, BytesWritable>();
+        }
+
+        if (TileRangePartitioner.class.getName().equals(partitionerClassName)) {
+            return new TileRangePartitioner<BytesWritable>();
+        }
+
+        return null;
+    }
+
+    /**
+     * Determines the {@link LookupMode} for a dataset from its sorted BloomMapFile directories. A dataset can only be
+     * routed by partition if it looks like the output of {@link BloomMapFileOutputFormat}, that is, every part is named
+     * by task partition number (part-r-00000, part-r-00001, ...) with no gaps, and the keys are {@link Text}.
+     */
+    private static LookupMode getLookupMode(final Path[] mapFiles, final BloomMapFileReader[] readers) {
+
+        if (mapFiles.length == 0) {
+            return LookupMode.SCAN;
+        }
+
+        for (int i = 0; i < mapFiles.length; i++) {
+
+            Matcher matcher = PART_NAME_PATTERN.matcher(mapFiles[i].getName());
+            if (!matcher.matches() || Integer.parseInt(matcher.group(1)) != i) {
+                return LookupMode.SCAN;
+            }
+
+            if (!Text.class.equals(readers[i].getKeyClass())) {
+                return LookupMode.SCAN;
+            }
+        }
+
+        return LookupMode.PARTITIONED;
+    }
+}
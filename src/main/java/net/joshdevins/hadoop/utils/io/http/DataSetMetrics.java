@@ -0,0 +1,287 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counts, latencies and bytes served for one dataset, or for all of them, kept across reloads of the dataset.
+ * Bloom filter counts are of the copy of the dataset currently open, since they come from its readers.
+ * 
+ * @author Josh Devins
+ */
+public final class DataSetMetrics implements DataSetMetricsMBean {
+
+    /**
+     * How a request ended.
+     */
+    public enum Outcome {
+
+        /**
+         * The file was served, from the cache or the readers.
+         */
+        HIT,
+
+        /**
+         * The file was looked for in the readers and not found.
+         */
+        MISS,
+
+        /**
+         * The file was already known not to exist.
+         */
+        CACHED_NOT_FOUND,
+
+        /**
+         * The client already had the current file.
+         */
+        NOT_MODIFIED,
+
+        /**
+         * A batch of files.
+         */
+        BATCH,
+
+        /**
+         * Anything else, like a failed read or a request that was turned away.
+         */
+        ERROR
+    }
+
+    private final String name;
+
+    private final LatencyHistogram[] latencies;
+
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final LatencyHistogram loadTimes = new LatencyHistogram();
+
+    private final AtomicLong lastLoadMillis = new AtomicLong();
+
+    private final Collection<DataSet> datasets;
+
+    private volatile DataSet dataset;
+
+    /**
+     * @param name
+     *        name of the dataset, or null for the totals of all datasets
+     * @param datasets
+     *        the open datasets that Bloom filter counts are summed over for totals, ignored otherwise
+     */
+    DataSetMetrics(final String name, final Collection<DataSet> datasets) {
+
+        this.name = name;
+        this.datasets = datasets;
+
+        latencies = new LatencyHistogram[Outcome.values().length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public long getBloomFalsePositiveCount() {
+
+        long count = 0;
+        for (DataSet open : getDataSets()) {
+            count += open.getBloomFalsePositiveCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getBloomProbeCount() {
+
+        long count = 0;
+        for (DataSet open : getDataSets()) {
+            count += open.getBloomProbeCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public double getBloomProbesPerLookup() {
+
+        long lookups = 0;
+        for (DataSet open : getDataSets()) {
+            lookups += open.getLookupCount();
+        }
+
+        return lookups == 0 ? 0.0 : (double) getBloomProbeCount() / lookups;
+    }
+
+    @Override
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    @Override
+    public long getCachedNotFoundCount() {
+        return getLatencies(Outcome.CACHED_NOT_FOUND).getCount();
+    }
+
+    @Override
+    public long getCachedNotFoundLatencyP50() {
+        return getLatencies(Outcome.CACHED_NOT_FOUND).getPercentile(0.5);
+    }
+
+    @Override
+    public long getCachedNotFoundLatencyP99() {
+        return getLatencies(Outcome.CACHED_NOT_FOUND).getPercentile(0.99);
+    }
+
+    @Override
+    public long getCachedNotFoundLatencyP999() {
+        return getLatencies(Outcome.CACHED_NOT_FOUND).getPercentile(0.999);
+    }
+
+    @Override
+    public long getErrorCount() {
+        return getLatencies(Outcome.ERROR).getCount();
+    }
+
+    @Override
+    public long getHitCount() {
+        return getLatencies(Outcome.HIT).getCount();
+    }
+
+    @Override
+    public long getHitLatencyP50() {
+        return getLatencies(Outcome.HIT).getPercentile(0.5);
+    }
+
+    @Override
+    public long getHitLatencyP99() {
+        return getLatencies(Outcome.HIT).getPercentile(0.99);
+    }
+
+    @Override
+    public long getHitLatencyP999() {
+        return getLatencies(Outcome.HIT).getPercentile(0.999);
+    }
+
+    @Override
+    public long getLastLoadMillis() {
+        return lastLoadMillis.get();
+    }
+
+    public LatencyHistogram getLatencies(final Outcome outcome) {
+        return latencies[outcome.ordinal()];
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loadTimes.getCount();
+    }
+
+    /**
+     * @return times taken to open the dataset, in microseconds
+     */
+    public LatencyHistogram getLoadTimes() {
+        return loadTimes;
+    }
+
+    @Override
+    public long getMaxLoadMillis() {
+        return loadTimes.getMax() / 1000;
+    }
+
+    @Override
+    public long getMissCount() {
+        return getLatencies(Outcome.MISS).getCount();
+    }
+
+    @Override
+    public long getMissLatencyP50() {
+        return getLatencies(Outcome.MISS).getPercentile(0.5);
+    }
+
+    @Override
+    public long getMissLatencyP99() {
+        return getLatencies(Outcome.MISS).getPercentile(0.99);
+    }
+
+    @Override
+    public long getMissLatencyP999() {
+        return getLatencies(Outcome.MISS).getPercentile(0.999);
+    }
+
+    /**
+     * @return name of the dataset, or null for the totals of all datasets
+     */
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getNotModifiedCount() {
+        return getLatencies(Outcome.NOT_MODIFIED).getCount();
+    }
+
+    @Override
+    public long getPinnedSizeInBytes() {
+
+        long size = 0;
+        for (DataSet open : getDataSets()) {
+            size += open.getPinnedSize();
+        }
+
+        return size;
+    }
+
+    @Override
+    public long getRequestCount() {
+
+        long count = 0;
+        for (LatencyHistogram histogram : latencies) {
+            count += histogram.getCount();
+        }
+
+        return count;
+    }
+
+    void addBytesServed(final long bytes) {
+        bytesServed.addAndGet(bytes);
+    }
+
+    void addCoalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    void record(final Outcome outcome, final long nanos) {
+        latencies[outcome.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordLoad(final long nanos) {
+        loadTimes.record(nanos, TimeUnit.NANOSECONDS);
+        lastLoadMillis.set(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * @param open
+     *        the copy of the dataset now being served, or null if it has been closed
+     */
+    void setDataSet(final DataSet open) {
+        dataset = open;
+    }
+
+    private Collection<DataSet> getDataSets() {
+
+        if (name == null) {
+            return datasets;
+        }
+
+        DataSet open = dataset;
+        return open == null ? Collections.<DataSet> emptyList() : Collections.singletonList(open);
+    }
+}
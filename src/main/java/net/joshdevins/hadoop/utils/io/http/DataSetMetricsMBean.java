@@ -0,0 +1,60 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+/**
+ * JMX view of {@link DataSetMetrics}. Latencies are in microseconds.
+ * 
+ * @author Josh Devins
+ */
+public interface DataSetMetricsMBean {
+
+    long getBloomFalsePositiveCount();
+
+    long getBloomProbeCount();
+
+    double getBloomProbesPerLookup();
+
+    long getBytesServed();
+
+    long getCachedNotFoundCount();
+
+    long getCachedNotFoundLatencyP50();
+
+    long getCachedNotFoundLatencyP99();
+
+    long getCachedNotFoundLatencyP999();
+
+    /**
+     * @return the number of requests served by waiting on an identical lookup already in flight
+     */
+    long getCoalescedCount();
+
+    long getErrorCount();
+
+    long getHitCount();
+
+    long getHitLatencyP50();
+
+    long getHitLatencyP99();
+
+    long getHitLatencyP999();
+
+    long getLastLoadMillis();
+
+    long getLoadCount();
+
+    long getMaxLoadMillis();
+
+    long getMissCount();
+
+    long getMissLatencyP50();
+
+    long getMissLatencyP99();
+
+    long getMissLatencyP999();
+
+    long getNotModifiedCount();
+
+    long getPinnedSizeInBytes();
+
+    long getRequestCount();
+}
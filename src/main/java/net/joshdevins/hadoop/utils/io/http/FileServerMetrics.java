@@ -0,0 +1,426 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.joshdevins.hadoop.utils.io.LocalBlockCache;
+import net.joshdevins.hadoop.utils.io.http.DataSetMetrics.Outcome;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * All of the metrics of a {@link JettyBloomMapFileHandler}: totals and per-dataset {@link DataSetMetrics}, admission
+ * control, the value cache and the block cache. Available through JMX once registered, under {@value #JMX_DOMAIN},
+ * and as JSON.
+ * 
+ * <p>
+ * Metrics for a dataset are only kept once it has been opened, so that requests for datasets that don't exist can't
+ * grow the metrics without bound. Those are still counted in the totals.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class FileServerMetrics implements FileServerMetricsMBean {
+
+    public static final String JMX_DOMAIN = "net.joshdevins.hadoop.utils.io.http";
+
+    private final String root;
+
+    private final Collection<DataSet> openDataSets;
+
+    private final AdmissionControl admission;
+
+    private final ValueCache valueCache;
+
+    private final LocalBlockCache blockCache;
+
+    private final MemoryBudget pinnedMemory;
+
+    private final DataSetMetrics totals;
+
+    private final ConcurrentMap<String, DataSetMetrics> datasets = new ConcurrentHashMap<String, DataSetMetrics>();
+
+    private volatile ServerMetrics serverMetrics;
+
+    private volatile MBeanServer mbeanServer;
+
+    /**
+     * @param root
+     *        root path of the handler, to tell the MBeans of several handlers apart
+     * @param openDataSets
+     *        a live view of the open datasets
+     * @param valueCache
+     *        the value cache or null if disabled
+     * @param blockCache
+     *        the local disk block cache or null if disabled
+     * @param pinnedMemory
+     *        the budget of pinned datasets
+     */
+    FileServerMetrics(final String root, final Collection<DataSet> openDataSets, final AdmissionControl admission,
+            final ValueCache valueCache, final LocalBlockCache blockCache, final MemoryBudget pinnedMemory) {
+
+        this.root = root;
+        this.openDataSets = openDataSets;
+        this.admission = admission;
+        this.valueCache = valueCache;
+        this.blockCache = blockCache;
+        this.pinnedMemory = pinnedMemory;
+
+        totals = new DataSetMetrics(null, openDataSets);
+    }
+
+    @Override
+    public long getAdmissionDataSetRejectionCount() {
+        return admission.getDataSetRejectionCount();
+    }
+
+    @Override
+    public long getAdmissionRejectionCount() {
+        return admission.getRejectionCount();
+    }
+
+    @Override
+    public long getBlockCacheHitCount() {
+        return blockCache == null ? 0 : blockCache.getHitCount();
+    }
+
+    @Override
+    public long getBlockCacheMissCount() {
+        return blockCache == null ? 0 : blockCache.getMissCount();
+    }
+
+    @Override
+    public long getBlockCacheSizeInBytes() {
+        return blockCache == null ? 0 : blockCache.sizeInBytes();
+    }
+
+    /**
+     * @return metrics of a dataset or null if it has never been opened
+     */
+    public DataSetMetrics getDataSetMetrics(final String dataset) {
+        return datasets.get(dataset);
+    }
+
+    @Override
+    public int getInFlight() {
+        return admission.getInFlight();
+    }
+
+    @Override
+    public int getOpenDataSetCount() {
+        return openDataSets.size();
+    }
+
+    @Override
+    public long getPinnedMemoryCapacity() {
+        return pinnedMemory.getCapacity();
+    }
+
+    @Override
+    public long getPinnedMemoryUsed() {
+        return pinnedMemory.getUsed();
+    }
+
+    /**
+     * @return metrics of the server in front of the handler or null if it is not run by a {@link HttpHdfsFileServer}
+     */
+    public ServerMetrics getServerMetrics() {
+        return serverMetrics;
+    }
+
+    /**
+     * @return metrics of all datasets together
+     */
+    public DataSetMetrics getTotals() {
+        return totals;
+    }
+
+    @Override
+    public long getValueCacheHitCount() {
+        return valueCache == null ? 0 : valueCache.getHitCount();
+    }
+
+    @Override
+    public long getValueCacheMissCount() {
+        return valueCache == null ? 0 : valueCache.getMissCount();
+    }
+
+    @Override
+    public long getValueCachePrefetchCount() {
+        return valueCache == null ? 0 : valueCache.getPrefetchCount();
+    }
+
+    @Override
+    public long getValueCachePrefetchHitCount() {
+        return valueCache == null ? 0 : valueCache.getPrefetchHitCount();
+    }
+
+    @Override
+    public long getValueCacheSizeInBytes() {
+        return valueCache == null ? 0 : valueCache.sizeInBytes();
+    }
+
+    /**
+     * Registers MBeans for the handler and every dataset opened so far, and for any datasets opened from now on.
+     */
+    public void registerMBeans() {
+
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+        register(this, "type=FileServer");
+        register(totals, "type=Totals");
+
+        if (serverMetrics != null) {
+            register(serverMetrics, "type=Server");
+        }
+
+        for (DataSetMetrics metrics : datasets.values()) {
+            register(metrics, dataSetProperties(metrics.getName()));
+        }
+    }
+
+    public void unregisterMBeans() {
+
+        MBeanServer server = mbeanServer;
+        mbeanServer = null;
+
+        if (server == null) {
+            return;
+        }
+
+        unregister(server, "type=FileServer");
+        unregister(server, "type=Totals");
+
+        if (serverMetrics != null) {
+            unregister(server, "type=Server");
+        }
+
+        for (String dataset : datasets.keySet()) {
+            unregister(server, dataSetProperties(dataset));
+        }
+    }
+
+    /**
+     * Writes all metrics as a single JSON object. Latencies are in microseconds.
+     */
+    public void writeJson(final Writer writer) throws IOException {
+
+        writer.write("{\"inFlight\":" + getInFlight());
+        writer.write(",\"admissionRejections\":" + getAdmissionRejectionCount());
+        writer.write(",\"admissionDataSetRejections\":" + getAdmissionDataSetRejectionCount());
+        writer.write(",\"openDataSets\":" + getOpenDataSetCount());
+        writer.write(",\"pinnedMemory\":{\"used\":" + getPinnedMemoryUsed() + ",\"capacity\":"
+                + getPinnedMemoryCapacity() + "}");
+
+        ServerMetrics server = serverMetrics;
+        if (server != null) {
+            writer.write(",\"connector\":{\"statsOn\":" + server.isStatsOn() + ",\"connections\":"
+                    + server.getConnectionCount() + ",\"openConnections\":" + server.getOpenConnectionCount()
+                    + ",\"maxOpenConnections\":" + server.getMaxOpenConnectionCount() + ",\"requests\":"
+                    + server.getRequestCount() + ",\"connectionDurationMeanMillis\":"
+                    + server.getConnectionDurationMeanMillis() + ",\"connectionDurationMaxMillis\":"
+                    + server.getConnectionDurationMaxMillis() + "}");
+            writer.write(",\"threadPool\":{\"threads\":" + server.getThreadCount() + ",\"idleThreads\":"
+                    + server.getIdleThreadCount() + ",\"maxThreads\":" + server.getMaxThreadCount()
+                    + ",\"queueSize\":" + server.getQueueSize() + ",\"lowOnThreads\":" + server.isLowOnThreads()
+                    + "}");
+        }
+
+        if (valueCache != null) {
+            writer.write(",\"valueCache\":{\"entries\":" + valueCache.size() + ",\"bytes\":" + valueCache.sizeInBytes()
+                    + ",\"hits\":" + valueCache.getHitCount() + ",\"misses\":" + valueCache.getMissCount()
+                    + ",\"evictions\":" + valueCache.getEvictionCount() + ",\"rejections\":"
+                    + valueCache.getRejectionCount() + ",\"prefetches\":" + valueCache.getPrefetchCount()
+                    + ",\"prefetchHits\":" + valueCache.getPrefetchHitCount() + "}");
+        }
+
+        if (blockCache != null) {
+            writer.write(",\"blockCache\":{\"blocks\":" + blockCache.size() + ",\"bytes\":" + blockCache.sizeInBytes()
+                    + ",\"hits\":" + blockCache.getHitCount() + ",\"misses\":" + blockCache.getMissCount()
+                    + ",\"evictions\":" + blockCache.getEvictionCount() + "}");
+        }
+
+        writer.write(",\"totals\":");
+        writeJson(writer, totals);
+
+        // sorted, for people reading it
+        Map<String, DataSetMetrics> sorted = new TreeMap<String, DataSetMetrics>(datasets);
+
+        writer.write(",\"datasets\":{");
+        boolean first = true;
+        for (Map.Entry<String, DataSetMetrics> entry : sorted.entrySet()) {
+
+            if (!first) {
+                writer.write(',');
+            }
+
+            first = false;
+            writer.write(quote(entry.getKey()) + ":");
+            writeJson(writer, entry.getValue());
+        }
+
+        writer.write("}}");
+    }
+
+    /**
+     * Adds the metrics of the server in front of the handler, published along with the rest from then on.
+     */
+    void setServerMetrics(final ServerMetrics serverMetrics) {
+
+        this.serverMetrics = serverMetrics;
+        register(serverMetrics, "type=Server");
+    }
+
+    /**
+     * Records a request for a file, or a batch of files, once the response has been written.
+     * 
+     * @param dataset
+     *        name of the dataset requested
+     */
+    void record(final String dataset, final Outcome outcome, final long nanos, final long bytes) {
+
+        totals.record(outcome, nanos);
+        totals.addBytesServed(bytes);
+
+        DataSetMetrics metrics = datasets.get(dataset);
+        if (metrics != null) {
+            metrics.record(outcome, nanos);
+            metrics.addBytesServed(bytes);
+        }
+    }
+
+    /**
+     * Records a request that was served by waiting on an identical lookup already in flight.
+     */
+    void recordCoalesced(final String dataset) {
+
+        totals.addCoalesced();
+
+        DataSetMetrics metrics = datasets.get(dataset);
+        if (metrics != null) {
+            metrics.addCoalesced();
+        }
+    }
+
+    /**
+     * Records the opening of a dataset, which is then the copy that Bloom filter counts are taken from.
+     */
+    void recordLoad(final DataSet dataset, final long nanos) {
+
+        DataSetMetrics metrics = datasets.get(dataset.getName());
+        if (metrics == null) {
+
+            DataSetMetrics created = new DataSetMetrics(dataset.getName(), openDataSets);
+            metrics = datasets.putIfAbsent(dataset.getName(), created);
+
+            if (metrics == null) {
+                metrics = created;
+                register(metrics, dataSetProperties(dataset.getName()));
+            }
+        }
+
+        totals.recordLoad(nanos);
+        metrics.recordLoad(nanos);
+        metrics.setDataSet(dataset);
+    }
+
+    /**
+     * Records that a dataset is no longer open, its metrics are kept.
+     */
+    void recordClosed(final String dataset) {
+
+        DataSetMetrics metrics = datasets.get(dataset);
+        if (metrics != null) {
+            metrics.setDataSet(null);
+        }
+    }
+
+    private String dataSetProperties(final String dataset) {
+        return "type=DataSet,name=" + ObjectName.quote(dataset);
+    }
+
+    private ObjectName objectName(final String properties) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":" + properties + ",root=" + ObjectName.quote(root));
+    }
+
+    private void register(final Object mbean, final String properties) {
+
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+
+        try {
+            server.registerMBean(mbean, objectName(properties));
+        } catch (JMException jme) {
+            Log.warn("Could not register metrics MBean: " + properties, jme);
+        }
+    }
+
+    private void unregister(final MBeanServer server, final String properties) {
+
+        try {
+            server.unregisterMBean(objectName(properties));
+        } catch (JMException jme) {
+            Log.warn("Could not unregister metrics MBean: " + properties, jme);
+        }
+    }
+
+    private static String quote(final String value) {
+
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+
+        return builder.append('"').toString();
+    }
+
+    private static void writeJson(final Writer writer, final DataSetMetrics metrics) throws IOException {
+
+        writer.write("{\"requests\":" + metrics.getRequestCount());
+        writer.write(",\"bytesServed\":" + metrics.getBytesServed());
+        writer.write(",\"coalesced\":" + metrics.getCoalescedCount());
+        writer.write(",\"pinnedBytes\":" + metrics.getPinnedSizeInBytes());
+        writer.write(",\"bloomProbes\":" + metrics.getBloomProbeCount());
+        writer.write(",\"bloomProbesPerLookup\":" + metrics.getBloomProbesPerLookup());
+        writer.write(",\"bloomFalsePositives\":" + metrics.getBloomFalsePositiveCount());
+        writer.write(",\"loads\":" + metrics.getLoadCount());
+        writer.write(",\"lastLoadMillis\":" + metrics.getLastLoadMillis());
+        writer.write(",\"maxLoadMillis\":" + metrics.getMaxLoadMillis());
+
+        writer.write(",\"outcomes\":{");
+        for (Outcome outcome : Outcome.values()) {
+
+            LatencyHistogram latencies = metrics.getLatencies(outcome);
+            if (outcome.ordinal() > 0) {
+                writer.write(',');
+            }
+
+            writer.write(quote(outcome.name().toLowerCase(Locale.UK)) + ":{\"count\":" + latencies.getCount()
+                    + ",\"p50\":" + latencies.getPercentile(0.5) + ",\"p99\":" + latencies.getPercentile(0.99)
+                    + ",\"p999\":" + latencies.getPercentile(0.999) + ",\"max\":" + latencies.getMax() + "}");
+        }
+
+        writer.write("}}");
+    }
+}
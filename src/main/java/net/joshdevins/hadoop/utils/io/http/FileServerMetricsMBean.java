@@ -0,0 +1,37 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+/**
+ * JMX view of {@link FileServerMetrics}.
+ * 
+ * @author Josh Devins
+ */
+public interface FileServerMetricsMBean {
+
+    long getAdmissionDataSetRejectionCount();
+
+    long getAdmissionRejectionCount();
+
+    int getInFlight();
+
+    long getBlockCacheHitCount();
+
+    long getBlockCacheMissCount();
+
+    long getBlockCacheSizeInBytes();
+
+    int getOpenDataSetCount();
+
+    long getPinnedMemoryCapacity();
+
+    long getPinnedMemoryUsed();
+
+    long getValueCacheHitCount();
+
+    long getValueCacheMissCount();
+
+    long getValueCachePrefetchCount();
+
+    long getValueCachePrefetchHitCount();
+
+    long getValueCacheSizeInBytes();
+}
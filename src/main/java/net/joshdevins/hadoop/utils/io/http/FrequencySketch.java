@@ -0,0 +1,100 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+/**
+ * A small count-min sketch estimating how often keys have been seen recently. Counters saturate at 15 and are all halved
+ * once enough increments have been made, so old popularity fades away. Used to decide whether a new entry is worth
+ * evicting an existing one for.
+ * 
+ * <p>
+ * This is not thread-safe, callers must synchronize.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = new int[] { 0x97cb3127, 0xb34c8c51, 0x5a2f1b8d, 0xe3d57c49 };
+
+    private final byte[][] counters;
+
+    private final int mask;
+
+    private final int resetAfter;
+
+    private int increments;
+
+    /**
+     * @param expectedEntries
+     *        roughly how many distinct keys need to be tracked, used to size the sketch
+     */
+    FrequencySketch(final int expectedEntries) {
+
+        int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+
+        counters = new byte[DEPTH][width];
+        mask = width - 1;
+        resetAfter = width * 10;
+    }
+
+    /**
+     * @return the estimated number of times the key has been seen recently
+     */
+    int frequency(final Object key) {
+
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, counters[i][index(hash, i)]);
+        }
+
+        return min;
+    }
+
+    /**
+     * Records an occurrence of a key.
+     */
+    void increment(final Object key) {
+
+        int hash = spread(key.hashCode());
+
+        for (int i = 0; i < DEPTH; i++) {
+
+            int index = index(hash, i);
+            if (counters[i][index] < MAX_COUNT) {
+                counters[i][index]++;
+            }
+        }
+
+        if (++increments >= resetAfter) {
+            reset();
+        }
+    }
+
+    private int index(final int hash, final int row) {
+
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    private void reset() {
+
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+
+        increments /= 2;
+    }
+
+    private static int spread(final int hashCode) {
+
+        int h = hashCode * 0x85ebca6b;
+        return h ^ h >>> 13;
+    }
+}
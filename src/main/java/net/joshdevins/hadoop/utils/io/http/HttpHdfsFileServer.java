@@ -1,33 +1,130 @@
 package net.joshdevins.hadoop.utils.io.http;
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import net.joshdevins.hadoop.utils.ExitException;
 import net.joshdevins.hadoop.utils.MainUtils;
 
 import org.apache.commons.lang.Validate;
-import org.eclipse.jetty.server.Handler;
+import org.apache.hadoop.conf.Configuration;
+import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 /**
  * A rudimentary HDFS-based, HTTP file server.
  * 
+ * <p>
+ * The NIO connector and the pool of request threads are sized from the handler's {@link Configuration}, with defaults
+ * meant for many concurrent keep-alive clients rather than Jetty's own.
+ * </p>
+ * 
+ * <p>
+ * Datasets and files configured for warm-up (see {@link JettyBloomMapFileHandler#WARM_DATASETS_KEY}) are opened and
+ * cached as the handler starts, which Jetty does before binding the port, so the first requests after a restart don't
+ * pay for it. Readiness can be checked with a "GET" of {@value JettyBloomMapFileHandler#READY_PATH}.
+ * </p>
+ * 
  * @see JettyMapFileHandler JettyMapFileHandler (for details on directory layouts, index formats, etc.)
  * 
  * @author Josh Devins
  */
 public class HttpHdfsFileServer {
 
+    /**
+     * Configuration key for the number of threads accepting connections and selecting on them.
+     */
+    public static final String ACCEPTORS_KEY = "hdfs.file.server.http.acceptors";
+
+    /**
+     * Configuration key for the number of connections the OS will queue up before they are accepted.
+     */
+    public static final String ACCEPT_QUEUE_SIZE_KEY = "hdfs.file.server.http.accept.queue.size";
+
+    /**
+     * Configuration key for the number of milliseconds an idle keep-alive connection is held open for.
+     */
+    public static final String IDLE_TIMEOUT_KEY = "hdfs.file.server.http.idle.timeout";
+
+    /**
+     * Configuration key for the number of open connections above which idle connections are closed sooner.
+     */
+    public static final String LOW_RESOURCES_CONNECTIONS_KEY = "hdfs.file.server.http.lowresources.connections";
+
+    /**
+     * Configuration key for the number of milliseconds an idle connection is held open for when there are too many.
+     */
+    public static final String LOW_RESOURCES_IDLE_TIMEOUT_KEY = "hdfs.file.server.http.lowresources.idle.timeout";
+
+    /**
+     * Configuration key to use direct buffers for request and response headers and buffers.
+     */
+    public static final String DIRECT_BUFFERS_KEY = "hdfs.file.server.http.buffers.direct";
+
+    /**
+     * Configuration key for the size of the response buffer, responses smaller than this are sent in one write.
+     */
+    public static final String RESPONSE_BUFFER_SIZE_KEY = "hdfs.file.server.http.response.buffer.size";
+
+    /**
+     * Configuration key for the minimum number of request threads kept around.
+     */
+    public static final String MIN_THREADS_KEY = "hdfs.file.server.http.threads.min";
+
+    /**
+     * Configuration key for the maximum number of request threads.
+     */
+    public static final String MAX_THREADS_KEY = "hdfs.file.server.http.threads.max";
+
+    /**
+     * Configuration key for the number of milliseconds a request thread above the minimum is kept around while idle.
+     */
+    public static final String THREAD_IDLE_TIMEOUT_KEY = "hdfs.file.server.http.threads.idle.timeout";
+
+    /**
+     * Configuration key for the maximum number of requests waiting for a thread, unbounded if not set.
+     */
+    public static final String MAX_QUEUED_KEY = "hdfs.file.server.http.threads.queue.max";
+
+    /**
+     * Configuration key to keep connection and request statistics on the connector.
+     */
+    public static final String STATS_KEY = "hdfs.file.server.http.stats";
+
+    private static final int DEFAULT_ACCEPT_QUEUE_SIZE = 1024;
+
+    private static final int DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+
+    private static final int DEFAULT_LOW_RESOURCES_CONNECTIONS = 10000;
+
+    private static final int DEFAULT_LOW_RESOURCES_IDLE_TIMEOUT = 5 * 1000;
+
+    private static final int DEFAULT_RESPONSE_BUFFER_SIZE = 32 * 1024;
+
+    private static final int DEFAULT_MIN_THREADS = 16;
+
+    private static final int DEFAULT_MAX_THREADS = 256;
+
+    private static final int DEFAULT_THREAD_IDLE_TIMEOUT = 60 * 1000;
+
     private static String USAGE = "Usage: HttpHdfsFileServer <port> <root path in filesystem>";
 
     private final Server server;
 
+    private final SelectChannelConnector connector;
+
+    private final QueuedThreadPool threadPool;
+
     public HttpHdfsFileServer(final int port, final String rootPathInFileSystem) {
 
         Validate.isTrue(port >= 0 && port <= 65535, USAGE);
         Validate.notEmpty(rootPathInFileSystem, USAGE);
 
-        Handler handler = null;
+        JettyBloomMapFileHandler handler = null;
         try {
             // uses a BloomMapFile backing by default
             handler = new JettyBloomMapFileHandler(rootPathInFileSystem);
@@ -35,14 +132,36 @@ public class HttpHdfsFileServer {
             MainUtils.exitWithStackTraceAndError("Error starting up HTTP server handler", ioe);
         }
 
-        server = new Server(port);
+        Configuration conf = handler.getConfiguration();
+        BlockingQueue<Runnable> jobs = createJobQueue(conf);
+        threadPool = createThreadPool(conf, jobs);
+        connector = createConnector(port, conf);
+        handler.getMetrics().setServerMetrics(new ServerMetrics(connector, threadPool, jobs));
+
+        server = new Server();
+        server.setThreadPool(threadPool);
+        server.setConnectors(new Connector[] { connector });
         server.setHandler(handler);
     }
 
+    /**
+     * @return the connector, for its connection and request statistics
+     */
+    public SelectChannelConnector getConnector() {
+        return connector;
+    }
+
     public Server getJettyServer() {
         return server;
     }
 
+    /**
+     * @return the pool of request threads, for its size and how many are idle
+     */
+    public QueuedThreadPool getThreadPool() {
+        return threadPool;
+    }
+
     public void run() {
 
         try {
@@ -71,4 +190,60 @@ public class HttpHdfsFileServer {
             System.exit(1);
         }
     }
+
+    /**
+     * Builds the NIO connector. By default it holds on to lots of keep-alive connections, as tile clients tend to make,
+     * but closes idle ones quickly once there are too many.
+     */
+    static SelectChannelConnector createConnector(final int port, final Configuration conf) {
+
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(port);
+
+        // selecting is cheap, a couple of threads can keep up with thousands of connections
+        int defaultAcceptors = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 4));
+        connector.setAcceptors(conf.getInt(ACCEPTORS_KEY, defaultAcceptors));
+        connector.setAcceptQueueSize(conf.getInt(ACCEPT_QUEUE_SIZE_KEY, DEFAULT_ACCEPT_QUEUE_SIZE));
+        connector.setMaxIdleTime(conf.getInt(IDLE_TIMEOUT_KEY, DEFAULT_IDLE_TIMEOUT));
+        connector.setLowResourcesConnections(conf.getInt(LOW_RESOURCES_CONNECTIONS_KEY,
+                DEFAULT_LOW_RESOURCES_CONNECTIONS));
+        connector.setLowResourcesMaxIdleTime(conf.getInt(LOW_RESOURCES_IDLE_TIMEOUT_KEY,
+                DEFAULT_LOW_RESOURCES_IDLE_TIMEOUT));
+        connector.setUseDirectBuffers(conf.getBoolean(DIRECT_BUFFERS_KEY, true));
+        connector.setResponseBufferSize(conf.getInt(RESPONSE_BUFFER_SIZE_KEY, DEFAULT_RESPONSE_BUFFER_SIZE));
+        connector.setReuseAddress(true);
+        connector.setStatsOn(conf.getBoolean(STATS_KEY, true));
+
+        return connector;
+    }
+
+    /**
+     * Builds the queue of requests waiting for a thread, as the pool would itself, so that its size can be watched.
+     */
+    static BlockingQueue<Runnable> createJobQueue(final Configuration conf) {
+
+        int maxQueued = conf.getInt(MAX_QUEUED_KEY, -1);
+        if (maxQueued > 0) {
+            return new ArrayBlockingQueue<Runnable>(maxQueued);
+        }
+
+        int minThreads = conf.getInt(MIN_THREADS_KEY, DEFAULT_MIN_THREADS);
+        return new BlockingArrayQueue<Runnable>(minThreads, minThreads);
+    }
+
+    static QueuedThreadPool createThreadPool(final Configuration conf, final BlockingQueue<Runnable> jobs) {
+
+        QueuedThreadPool threadPool = new QueuedThreadPool(jobs);
+        threadPool.setName("http");
+        threadPool.setMinThreads(conf.getInt(MIN_THREADS_KEY, DEFAULT_MIN_THREADS));
+        threadPool.setMaxThreads(conf.getInt(MAX_THREADS_KEY, DEFAULT_MAX_THREADS));
+        threadPool.setMaxIdleTimeMs(conf.getInt(THREAD_IDLE_TIMEOUT_KEY, DEFAULT_THREAD_IDLE_TIMEOUT));
+
+        int maxQueued = conf.getInt(MAX_QUEUED_KEY, -1);
+        if (maxQueued > 0) {
+            threadPool.setMaxQueued(maxQueued);
+        }
+
+        return threadPool;
+    }
 }
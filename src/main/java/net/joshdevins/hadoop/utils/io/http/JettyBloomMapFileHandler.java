@@ -1,38 +1,91 @@
 package net.joshdevins.hadoop.utils.io.http;
 
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.joshdevins.hadoop.utils.Pair;
+import net.joshdevins.hadoop.utils.io.BlockCachingFileSystem;
+import net.joshdevins.hadoop.utils.io.LocalBlockCache;
+import net.joshdevins.hadoop.utils.io.http.DataSet.LookupMode;
+import net.joshdevins.hadoop.utils.io.http.DataSet.StoredValue;
+import net.joshdevins.hadoop.utils.io.http.DataSet.ValueCallback;
+import net.joshdevins.hadoop.utils.io.http.DataSetMetrics.Outcome;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.io.BloomMapFile;
 import org.apache.hadoop.io.BloomMapFileReader;
-import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.output.BloomMapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.DataSetHashIndex;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.mapreduce.lib.partition.TileKeys;
+import org.apache.hadoop.mapreduce.lib.partition.TileRangePartitioner;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConnection;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.util.log.Log;
 
 import com.google.common.collect.MapEvictionListener;
+import com.google.common.base.Throwables;
 import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * A {@link Handler} for embedded Jetty to serve files out of {@link BloomMapFile}s. This currently assumes no
  * sub-driectories will ever be accessed since it splits the request URL into two parts: {dataset path}/{file name}.
- * This implementation is pretty simple in that it will just iterate over all the bloom filters for that dataset
- * and test for the file. Not efficient, but simple.
+ * Datasets written by {@link BloomMapFileOutputFormat} record their partitioner in their manifest, and if it is a
+ * {@link HashPartitioner} or a {@link TileRangePartitioner} each lookup is routed straight to the one
+ * {@link BloomMapFile} that owns the key. A dataset without a manifest is only routed if its partitioner is configured,
+ * see {@link #PARTITIONER_KEY_PREFIX}. So is a lookup in any dataset whose manifest lists parts
+ * with key ranges that don't overlap. For any other layout this falls back to iterating over all the bloom filters for
+ * that dataset and testing for the file. Not efficient, but simple.
  * 
  * <h2>Why?</h2>
  * <p>
@@ -44,300 +97,1841 @@ import com.google.common.collect.MapMaker;
  * extension in the {@link BloomMapFile}'s key.
  * </p>
  * 
+ * <h2>Tiles</h2>
+ * <p>
+ * Datasets listed in {@value #TILE_DATASETS_KEY} are keyed by {@link TileKeys tile key}, so that tiles close on the
+ * map are close in the data files, and tiles in them are requested as {dataset path}/zoom/x/y with the usual extension.
+ * Batch requests to them can list tiles as zoom/x/y too. With {@value #PREFETCH_KEY} set, the neighbours of each tile
+ * served are read into the value cache in the background by a {@link TilePrefetcher}, as long as the server isn't busy.
+ * </p>
+ * 
  * <h2>Caching</h2>
  * <p>
  * Internally this relies on a couple of caching mechanisms. First we store all of the {@link BloomMapFile} readers in a
  * cache on first access to a dataset. They are expunged from the cache on demand through a "DELETE" HTTP request on the
  * dataset URL or after 24 hours of not being accessed. Within the readers themselves there are two levels of access.
  * The first is the bloom filter and the second is the index into the {@link BloomMapFile}. Any complete misses on a
- * dataset will also be cached alongside the readers so as to avoid checking all the readers again for a known
- * non-existent key/value.
+ * dataset will also be cached alongside the readers, in a fixed size {@link NegativeCache} that forgets them after an
+ * hour by default, so as to avoid checking all the readers again for a known non-existent key/value. Where files were
+ * found is remembered in the same way, in a {@link LocationCache}, so that a file too big for the value cache can be
+ * read again without probing the Bloom filters or searching the index. A dataset written with a
+ * {@link DataSetHashIndex} needs neither, every file is read from where the index says it is and almost every missing
+ * file is turned away by its fingerprint. Lastly, the contents of the most popular files across all datasets are held
+ * in a {@link ValueCache}, bounded by size, which is also cleared for a dataset on "DELETE".
+ * </p>
+ * 
+ * <p>
+ * With {@value #BLOCK_CACHE_DIR_KEY} set, blocks of the data and index files of remote datasets are also cached on
+ * local disk by a {@link LocalBlockCache}, which survives restarts, so that re-reads of warm files don't go back to
+ * the datanodes.
+ * </p>
+ * 
+ * <p>
+ * Datasets listed in {@value #PINNED_DATASETS_KEY} are pinned: the data file of each part is held in memory, memory
+ * mapped if it's on the local filesystem, with a table of where every record starts, so that lookups never touch the
+ * filesystem. All pinned datasets share a budget of {@value #PINNED_MEMORY_KEY} bytes, and any part that doesn't fit
+ * is served from the filesystem as usual. A reload needs room for both copies until the old one is closed.
+ * </p>
+ * 
+ * <p>
+ * A dataset is opened once, by whichever request gets to it first while any concurrent requests for it wait, and all
+ * of its parts are opened in parallel by a {@link DataSetLoader}. In the same way, concurrent requests for a file that
+ * isn't cached all wait on a single lookup of it.
+ * </p>
+ * 
+ * <h2>Warm-up</h2>
+ * <p>
+ * Datasets listed in {@value #WARM_DATASETS_KEY}, and the files listed in {@value #WARM_FILES_KEY}, are opened and read
+ * into the value cache in parallel as the handler starts. Jetty starts handlers before it opens its connectors, so the
+ * port is only bound once warm-up is done, unless {@value #WARM_BACKGROUND_KEY} is set, in which case requests are
+ * served straight away and a "GET" of {@value #READY_PATH} answers "503" until warm-up is done. The files held in the
+ * value cache are written back to the files list on shutdown, for the next startup to warm up with.
+ * </p>
+ * 
+ * <h2>Reloading</h2>
+ * <p>
+ * Open datasets are checked for a newer version every minute by default, by the modification time of the dataset
+ * manifest or, without one, of the dataset directory and its parts. A changed dataset is opened again in the background
+ * and swapped in once ready, and the old readers are closed after the requests still using them are done. Republishing
+ * a dataset therefore needs no "DELETE", and no request ever waits on the reopen.
+ * </p>
+ * 
+ * <h2>HTTP caching</h2>
+ * <p>
+ * Every file is served with an ETag and a Last-Modified header, both taken from the version of its dataset, and with a
+ * Cache-Control header if one is configured. Conditional requests are answered with a "304 Not Modified" before the
+ * file is looked up, so revalidating clients and CDNs cost no reads at all. A single byte range can be requested with
+ * a Range header, optionally guarded by If-Range, and only the bytes in that range are read from the data file.
+ * </p>
+ * 
+ * <h2>Batches</h2>
+ * <p>
+ * Many files of a dataset can be fetched at once with a "POST" to the dataset URL, with one filename per line in the
+ * body. Files are looked up in key order within each part so that reads run forward through the data files, and are
+ * streamed back as they are read in the framing described by {@link #BATCH_CONTENT_TYPE}, followed by any misses. A
+ * batch that fails part way through is cut off, without the entry that ends a complete one.
+ * </p>
+ * 
+ * <h2>Async mode</h2>
+ * <p>
+ * With {@value #ASYNC_KEY} set, reads are taken off of Jetty's request threads. Known misses, revalidations and cached
+ * files are still served straight away, but anything that has to read from the filesystem is handed to a bounded pool
+ * of I/O threads through a Jetty continuation, so a few slow reads can't tie up the threads that serve the fast
+ * requests. Once the pool and its queue are full, requests that need a read are turned away with a "503".
+ * </p>
+ * 
+ * <h2>Admission control</h2>
+ * <p>
+ * The number of requests reading from datasets at once is bounded, both in total and for each dataset, so a single
+ * dataset being hammered can only slow down its own requests. Requests over either bound are turned away straight away
+ * with a "503" and a Retry-After header, and nothing that is served without a read is ever turned away.
  * </p>
  * 
- * TODO: Add refreshing readers based on modification times of underlying {@link BloomMapFile}s.
- * TODO: Add logging.
+ * <h2>Metrics</h2>
+ * <p>
+ * Hits, misses, cached misses and revalidations are counted with latency histograms, in total and for each dataset,
+ * along with bytes served, Bloom filter probes and false positives, dataset load times and the caches. All of it is
+ * published as JMX MBeans under {@value FileServerMetrics#JMX_DOMAIN} and as JSON from a "GET" of {@value #STATS_PATH}.
+ * </p>
  * 
  * @author Josh Devins
  */
 public class JettyBloomMapFileHandler extends AbstractJettyHdfsFileHandler {
 
-    private static class DataSet {
+    /**
+     * Configuration key for the maximum number of bytes held by the value cache, 0 to disable it.
+     */
+    public static final String VALUE_CACHE_SIZE_KEY = "hdfs.file.server.cache.size";
 
-        private final Set<BloomMapFileReader> readers;
+    /**
+     * Configuration key for the largest value that will be put in the value cache.
+     */
+    public static final String VALUE_CACHE_MAX_ENTRY_SIZE_KEY = "hdfs.file.server.cache.entry.size.max";
 
-        private final Set<String> notFoundFiles;
+    /**
+     * Configuration key to hold cached values in direct buffers, off of the heap.
+     */
+    public static final String VALUE_CACHE_OFF_HEAP_KEY = "hdfs.file.server.cache.offheap";
 
-        public DataSet(final Set<BloomMapFileReader> readers) {
-            this.readers = readers;
-            notFoundFiles = new HashSet<String>();
-        }
+    /**
+     * Configuration key for a local directory to cache blocks of remote data and index files in, no blocks are cached if
+     * not set.
+     */
+    public static final String BLOCK_CACHE_DIR_KEY = "hdfs.file.server.block.cache.dir";
 
-        public boolean addNotFoundFile(final String filename) {
-            return notFoundFiles.add(filename);
-        }
+    /**
+     * Configuration key for the maximum number of bytes of blocks cached on local disk.
+     */
+    public static final String BLOCK_CACHE_SIZE_KEY = "hdfs.file.server.block.cache.size";
 
-        /**
-         * Closes readers, general cleanup.
-         */
-        public void cleanup() {
+    /**
+     * Configuration key for the size of the blocks cached on local disk.
+     */
+    public static final String BLOCK_CACHE_BLOCK_SIZE_KEY = "hdfs.file.server.block.cache.block.size";
 
-            for (BloomMapFileReader reader : readers) {
-                IOUtils.closeStream(reader);
-            }
+    /**
+     * Configuration key for the comma separated names of datasets to hold in memory, like "/tiles/low".
+     */
+    public static final String PINNED_DATASETS_KEY = "hdfs.file.server.pinned.datasets";
 
-            readers.clear();
-            notFoundFiles.clear();
-        }
+    /**
+     * Configuration key for the maximum number of bytes held in memory by all pinned datasets together.
+     */
+    public static final String PINNED_MEMORY_KEY = "hdfs.file.server.pinned.memory.max";
 
-        public Set<BloomMapFileReader> getReaders() {
-            return readers;
-        }
+    /**
+     * Configuration key to hold pinned datasets that are not on the local filesystem in direct buffers, off of the heap.
+     */
+    public static final String PINNED_OFF_HEAP_KEY = "hdfs.file.server.pinned.offheap";
 
-        public boolean isKnownNotFoundFile(final String filename) {
-            return notFoundFiles.contains(filename);
-        }
-    }
+    /**
+     * Prefix of the configuration keys naming the partitioner of a dataset without a manifest, followed by the name of
+     * the dataset, as in "hdfs.file.server.partitioner./tiles". Without one, every part of the dataset is probed.
+     */
+    public static final String PARTITIONER_KEY_PREFIX = "hdfs.file.server.partitioner.";
 
-    private final ConcurrentMap<String, DataSet> datasetMap;
+    /**
+     * Configuration key for the comma separated names of datasets keyed by {@link TileKeys tile key}, in which
+     * "/tiles/3/5/2.png" is the file with key "03-121.png".
+     */
+    public static final String TILE_DATASETS_KEY = "hdfs.file.server.tile.datasets";
 
-    public JettyBloomMapFileHandler(final String rootPathInFileSystem) throws IOException {
-        super(rootPathInFileSystem);
+    /**
+     * Configuration key to read the neighbours of every tile served from a tile dataset into the value cache.
+     */
+    public static final String PREFETCH_KEY = "hdfs.file.server.prefetch";
 
-        MapEvictionListener<String, DataSet> mapEvictionListener = new MapEvictionListener<String, DataSet>() {
+    /**
+     * Configuration key for the number of threads reading tiles ahead.
+     */
+    public static final String PREFETCH_THREADS_KEY = "hdfs.file.server.prefetch.threads";
 
-            @Override
-            public void onEviction(final String key, final DataSet value) {
+    /**
+     * Configuration key for the maximum number of tiles waiting to be read ahead, any more are dropped.
+     */
+    public static final String PREFETCH_BUDGET_KEY = "hdfs.file.server.prefetch.budget";
 
-                if (value != null) {
-                    value.cleanup();
-                }
-            }
-        };
+    /**
+     * Configuration key for the number of reads in flight across the server at which tiles stop being read ahead.
+     */
+    public static final String PREFETCH_MAX_IN_FLIGHT_KEY = "hdfs.file.server.prefetch.inflight.max";
 
-        // build an entry expiring (based on access) ConcurrentHashMap with regular referenced values
-        // this will also do some pre-emptive cleaning if a dataset has not been used recently
-        datasetMap = new MapMaker().expireAfterAccess(1, TimeUnit.DAYS).evictionListener(mapEvictionListener).makeMap();
-    }
+    /**
+     * Configuration key for the number of bytes used to remember files not found in each dataset.
+     */
+    public static final String NOT_FOUND_CACHE_SIZE_KEY = "hdfs.file.server.notfound.cache.size";
 
-    @Override
-    protected void doStop() throws Exception {
-        super.doStop();
+    /**
+     * Configuration key for the number of seconds that a file not found in a dataset is remembered for.
+     */
+    public static final String NOT_FOUND_CACHE_TTL_KEY = "hdfs.file.server.notfound.cache.ttl";
 
-        // close any open readers
-        Collection<DataSet> datasets = datasetMap.values();
-        for (DataSet dataset : datasets) {
-            dataset.cleanup();
-        }
-    }
+    /**
+     * Configuration key for the number of bytes used to remember where files were found in each dataset, 0 to always
+     * look them up.
+     */
+    public static final String FOUND_CACHE_SIZE_KEY = "hdfs.file.server.found.cache.size";
 
-    @Override
-    protected void handleWithExceptionTranslation(final String target, final Request baseRequest,
-            final HttpServletRequest request, final HttpServletResponse response) {
+    /**
+     * Configuration key for the number of threads used to open the parts of datasets, shared by all datasets.
+     */
+    public static final String OPEN_THREADS_KEY = "hdfs.file.server.open.threads";
 
-        // check HTTP method
-        String httpMethod = request.getMethod().toUpperCase(Locale.UK);
+    /**
+     * Configuration key for the comma separated names of datasets to open on startup.
+     */
+    public static final String WARM_DATASETS_KEY = "hdfs.file.server.warm.datasets";
 
-        if ("DELETE".equals(httpMethod)) {
-            handleDelete(target, baseRequest, request, response);
+    /**
+     * Configuration key for a local file of files to read into the value cache on startup, one URL path like
+     * "/tiles/low/0.png" per line. The files held in the value cache are written to it on shutdown.
+     */
+    public static final String WARM_FILES_KEY = "hdfs.file.server.warm.files";
 
-        } else if ("GET".equals(httpMethod)) {
-            handleGet(target, baseRequest, request, response);
+    /**
+     * Configuration key for the maximum number of files written to the warm-up files list on shutdown.
+     */
+    public static final String WARM_FILES_MAX_KEY = "hdfs.file.server.warm.files.max";
 
-        } else {
-            throw new HttpErrorException(HttpServletResponse.SC_NOT_ACCEPTABLE, "HTTP method not supported: "
-                    + request.getMethod());
-        }
+    /**
+     * Configuration key for the number of datasets warmed up at once.
+     */
+    public static final String WARM_THREADS_KEY = "hdfs.file.server.warm.threads";
 
-        ((Request) request).setHandled(true);
-    }
+    /**
+     * Configuration key to warm up in the background, serving requests meanwhile, instead of before the port is bound.
+     */
+    public static final String WARM_BACKGROUND_KEY = "hdfs.file.server.warm.background";
 
-    Pair<String, String> splitTargetIntoDatasetAndFilename(final String target) {
+    /**
+     * Configuration key for the number of seconds between checks for newer versions of the open datasets, 0 to never
+     * check.
+     */
+    public static final String RELOAD_INTERVAL_KEY = "hdfs.file.server.reload.interval";
 
-        // break the request URI into two parts: dataset path, filename in map file
-        int splitAt = StringUtils.lastIndexOf(target, '/');
+    /**
+     * Configuration key for the Cache-Control header sent with every file, none is sent if not set.
+     */
+    public static final String CACHE_CONTROL_KEY = "hdfs.file.server.response.cache.control";
 
-        // ensure split is possible
-        if (splitAt < 1 || splitAt == target.length() - 1) {
-            return null;
-        }
+    /**
+     * Configuration key to hand lookups that need I/O to a separate executor, instead of doing them on the request
+     * thread.
+     */
+    public static final String ASYNC_KEY = "hdfs.file.server.async";
 
-        String dataset = target.substring(0, splitAt);
-        String filename = target.substring(splitAt + 1);
+    /**
+     * Configuration key for the number of threads doing lookups in async mode.
+     */
+    public static final String IO_THREADS_KEY = "hdfs.file.server.io.threads";
 
-        return new Pair<String, String>(dataset, filename);
-    }
+    /**
+     * Configuration key for the number of lookups that can wait for an I/O thread in async mode, before requests are
+     * turned away.
+     */
+    public static final String IO_QUEUE_SIZE_KEY = "hdfs.file.server.io.queue.size";
 
-    private Set<BloomMapFileReader> getReadersForDataset(final String dataset) {
+    /**
+     * Configuration key for the maximum number of requests reading from datasets at once, across all datasets.
+     */
+    public static final String MAX_IN_FLIGHT_KEY = "hdfs.file.server.admission.inflight.max";
 
-        Set<BloomMapFileReader> readers = new HashSet<BloomMapFileReader>();
+    /**
+     * Configuration key for the maximum number of requests reading from any one dataset at once.
+     */
+    public static final String MAX_IN_FLIGHT_PER_DATASET_KEY = "hdfs.file.server.admission.inflight.dataset.max";
 
-        // verify dataset
-        Path datasetPath = new Path(getRootPathInFileSystem() + dataset);
-        try {
-            if (!getFileSystem().exists(datasetPath) || !getFileSystem().getFileStatus(datasetPath).isDir()) {
+    /**
+     * Configuration key for the number of seconds that clients turned away are told to wait before retrying.
+     */
+    public static final String RETRY_AFTER_KEY = "hdfs.file.server.admission.retry.after";
 
-                throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND, "Dataset directory does not exist: "
-                        + dataset);
-            }
+    /**
+     * Path of the JSON stats of the handler, hidden like any other name starting with "_".
+     */
+    public static final String STATS_PATH = "/_stats";
 
-        } catch (IOException ioe) {
-            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                    "Could not open dataset directory: " + dataset, ioe);
-        }
+    /**
+     * Path that answers "200" once warm-up is done and "503" until then.
+     */
+    public static final String READY_PATH = "/_ready";
 
-        // get files in dir
-        FileStatus[] files;
-        try {
-            files = getFileSystem().listStatus(datasetPath);
+    /**
+     * Configuration key for the maximum number of keys in a single batch request.
+     */
+    public static final String BATCH_MAX_KEYS_KEY = "hdfs.file.server.batch.keys.max";
 
-        } catch (IOException ioe) {
-            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                    "Could not list map files in dataset: " + dataset, ioe);
-        }
+    /**
+     * Content type of a batch response. The response is a sequence of entries, each one the length of the key, the key,
+     * then the length of the value and the value or a length of -1 if the file was not found. The last entry is a key
+     * length of -1 on its own, so a response that was cut short can be told apart from a complete one. All lengths are
+     * 4-byte, big-endian integers and keys are UTF-8.
+     */
+    public static final String BATCH_CONTENT_TYPE = "application/x-hdfs-file-batch";
 
-        for (FileStatus fileStatus : files) {
+    private static final long DEFAULT_VALUE_CACHE_SIZE = 64L * 1024 * 1024;
 
-            // skip any files that are not BloomMapFile directories
-            if (!isBloomMapFile(fileStatus)) {
+    private static final int DEFAULT_VALUE_CACHE_MAX_ENTRY_SIZE = 1024 * 1024;
 
-                Log.warn("Skipping non-BloomMapFile found in dataset: dataset=" + dataset + "file="
-                        + fileStatus.getPath().getName(), this);
-                continue;
-            }
+    private static final long DEFAULT_BLOCK_CACHE_SIZE = 10L * 1024 * 1024 * 1024;
 
-            Path path = fileStatus.getPath();
-            try {
-                readers.add(new BloomMapFileReader(getFileSystem(), path.toString(), getConfiguration()));
+    private static final int DEFAULT_BLOCK_CACHE_BLOCK_SIZE = 1024 * 1024;
 
-            } catch (IOException ioe) {
-                throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                        "Could not create reader for map file: " + path.toString(), ioe);
-            }
-        }
+    private static final long DEFAULT_PINNED_MEMORY = 1024L * 1024 * 1024;
 
-        return readers;
-    }
+    private static final long DEFAULT_NOT_FOUND_CACHE_SIZE = 1024 * 1024;
 
-    private void handleDelete(final String target, final Request baseRequest, final HttpServletRequest request,
-            final HttpServletResponse response) {
+    private static final long DEFAULT_NOT_FOUND_CACHE_TTL = 60 * 60;
 
-        // full target is the dataset
-        if (!datasetMap.containsKey(target)) {
-            throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND, "Dataset not found: " + target);
-        }
+    private static final long DEFAULT_FOUND_CACHE_SIZE = 1024 * 1024;
 
-        // remove and cleanup
-        datasetMap.remove(target).cleanup();
+    private static final int DEFAULT_OPEN_THREADS = 16;
 
-        response.setStatus(HttpServletResponse.SC_OK);
-    }
+    private static final long DEFAULT_RELOAD_INTERVAL = 60;
 
-    private void handleGet(final String target, final Request baseRequest, final HttpServletRequest request,
-            final HttpServletResponse response) {
+    private static final int DEFAULT_WARM_FILES_MAX = 10000;
 
-        // split the target URL into two parts
-        Pair<String, String> splitTarget = splitTargetIntoDatasetAndFilename(target);
-        if (splitTarget == null) {
-            throw new HttpErrorException(HttpServletResponse.SC_NOT_ACCEPTABLE,
-                    "Error splitting target into dataset and filename: " + target);
-        }
+    private static final int DEFAULT_WARM_THREADS = 4;
 
-        String datasetName = splitTarget.getA();
-        String filename = splitTarget.getB();
-        String datasetFilenameDebugString = "dataset=" + datasetName + " filename=" + filename;
+    private static final int DEFAULT_BATCH_MAX_KEYS = 1000;
 
-        // get the readers for this dataset
-        DataSet dataset = datasetMap.get(datasetName);
+    private static final int DEFAULT_PREFETCH_THREADS = 2;
 
-        // need to get the readers
-        if (dataset == null) {
-            dataset = new DataSet(getReadersForDataset(datasetName));
+    private static final int DEFAULT_PREFETCH_BUDGET = 256;
 
-            // only need to set it if it still doesn't exist (race conditions, needs fixing?)
-            datasetMap.putIfAbsent(datasetName, dataset);
+    private static final int DEFAULT_IO_THREADS = 32;
 
-        } else {
+    private static final int DEFAULT_IO_QUEUE_SIZE = 1000;
 
-            // check immediately for a known miss
-            if (dataset.isKnownNotFoundFile(filename)) {
-                throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND,
-                        "File was not found in any backing mapfile (cached 404): " + datasetFilenameDebugString);
-            }
-        }
+    private static final int DEFAULT_MAX_IN_FLIGHT = 256;
 
-        // have the readers, find the file
-        BytesWritable value = new BytesWritable();
-        Text key = new Text(filename);
-        boolean found = false;
+    private static final int DEFAULT_MAX_IN_FLIGHT_PER_DATASET = 64;
 
-        for (BloomMapFileReader reader : dataset.getReaders()) {
+    private static final int DEFAULT_RETRY_AFTER = 1;
 
-            // try to get from the mapfile, internally this hits the bloom filter first
-            try {
-                if (reader.get(key, value) != null) {
-                    found = true;
-                    break;
-                }
-            } catch (IOException ioe) {
-                throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                        "Error looking for filename key in mapfile reader: " + datasetFilenameDebugString, ioe);
-            }
-        }
+    /**
+     * A target in a tile dataset, capturing the dataset path and the zoom/x/y path of the tile.
+     */
+    private static final Pattern TILE_TARGET_PATTERN = Pattern.compile("(.+?)/(\\d+/\\d+/\\d+(?:\\.[^/]*)?)");
 
-        // not found? need this variable since value is already non-null
-        if (!found) {
-            dataset.addNotFoundFile(filename);
-            throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND,
-                    "File was not found in any backing mapfile: " + datasetFilenameDebugString);
-        }
+    private final ConcurrentMap<String, DataSet> datasetMap;
 
-        // get the bytes out of the value, trimmed padding
-        byte[] bytes = new byte[value.getLength()];
-        System.arraycopy(value.getBytes(), 0, bytes, 0, value.getLength());
+    /**
+     * Datasets currently being opened, so that concurrent requests for a cold dataset all wait on the same load.
+     */
+    private final ConcurrentMap<String, FutureTask<DataSet>> loadingDatasetMap;
 
-        // send response with hopefully right content/mime type
-        response.setContentType(getMimeType(filename));
-        response.setStatus(HttpServletResponse.SC_OK);
-        try {
-            response.getOutputStream().write(bytes);
-            response.getOutputStream().flush();
+    /**
+     * Lookups of single files in flight, by dataset cache key and filename, so that concurrent requests for the same
+     * file all wait on the same lookup.
+     */
+    private final ConcurrentMap<String, FutureTask<ByteBuffer>> lookupsInFlight;
 
-        } catch (IOException ioe) {
-            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                    "Error writing file bytes to output stream", ioe);
-        }
-    }
+    /**
+     * Opens the parts of datasets, null until started.
+     */
+    private ExecutorService openExecutor;
+
+    private final DataSetLoader loader;
+
+    private ScheduledExecutorService reloadExecutor;
 
     /**
-     * Determine if a directory is actually a {@link BloomMapFile}. This is based on the existence of exactly three
-     * files named: bloom, index, data
+     * Does the lookups in async mode, null otherwise.
      */
-    private boolean isBloomMapFile(final FileStatus fileStatus) {
+    private volatile ExecutorService ioExecutor;
 
-        if (!fileStatus.isDir()) {
-            return false;
-        }
+    private final ValueCache valueCache;
 
-        Path path = fileStatus.getPath();
-        try {
-            FileStatus[] files = getFileSystem().listStatus(path);
-            Set<String> fileNames = new HashSet<String>(files.length);
+    private final LocalBlockCache blockCache;
 
-            for (FileStatus file : files) {
+    private final MemoryBudget pinnedMemory;
 
-                if (file.isDir()) {
-                    return false;
-                }
+    /**
+     * Read on start, like the warm-up settings.
+     */
+    private volatile Set<String> tileDataSets = Collections.emptySet();
 
-                fileNames.add(file.getPath().getName());
-            }
+    /**
+     * Reads the neighbours of tiles ahead, null if disabled.
+     */
+    private volatile TilePrefetcher prefetcher;
 
-            return fileNames.size() == 3 && fileNames.contains("bloom") && fileNames.contains("index")
-                    && fileNames.contains("data");
+    private final String cacheControl;
 
-        } catch (IOException ioe) {
-            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                    "Error listing files in subdirectory of dataset", ioe);
+    private final int batchMaxKeys;
+
+    private final AdmissionControl admission;
+
+    private final String retryAfter;
+
+    private final FileServerMetrics metrics;
+
+    private volatile boolean ready;
+
+    public JettyBloomMapFileHandler(final String rootPathInFileSystem) throws IOException {
+        super(rootPathInFileSystem);
+
+        cacheControl = StringUtils.trimToNull(getConfiguration().get(CACHE_CONTROL_KEY));
+        batchMaxKeys = getConfiguration().getInt(BATCH_MAX_KEYS_KEY, DEFAULT_BATCH_MAX_KEYS);
+
+        // so that a single busy dataset can't take all of the threads, or all of the I/O queue
+        admission = new AdmissionControl(getConfiguration().getInt(MAX_IN_FLIGHT_KEY, DEFAULT_MAX_IN_FLIGHT),
+                getConfiguration().getInt(MAX_IN_FLIGHT_PER_DATASET_KEY, DEFAULT_MAX_IN_FLIGHT_PER_DATASET));
+        retryAfter = String.valueOf(getConfiguration().getInt(RETRY_AFTER_KEY, DEFAULT_RETRY_AFTER));
+
+        // lookups from concurrent requests shouldn't all queue behind the lock on a reader
+        if (getConfiguration().get(BloomMapFileReader.POSITIONAL_READS_KEY) == null) {
+            getConfiguration().setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        }
+
+        // with every partition of every dataset open, an object per index key adds up
+        if (getConfiguration().get(BloomMapFileReader.COMPACT_INDEX_KEY) == null) {
+            getConfiguration().setBoolean(BloomMapFileReader.COMPACT_INDEX_KEY, true);
+        }
+
+        MapEvictionListener<String, DataSet> mapEvictionListener = new MapEvictionListener<String, DataSet>() {
+
+            @Override
+            public void onEviction(final String key, final DataSet value) {
+
+                if (value != null) {
+                    metrics.recordClosed(key);
+                    retireDataSet(value);
+                }
+            }
+        };
+
+        // build an entry expiring (based on access) ConcurrentHashMap with regular referenced values
+        // this will also do some pre-emptive cleaning if a dataset has not been used recently
+        datasetMap = new MapMaker().expireAfterAccess(1, TimeUnit.DAYS).evictionListener(mapEvictionListener).makeMap();
+        loadingDatasetMap = new ConcurrentHashMap<String, FutureTask<DataSet>>();
+        lookupsInFlight = new ConcurrentHashMap<String, FutureTask<ByteBuffer>>();
+
+        // reads of remote files go through local disk, local files gain nothing from it and would no longer be mapped
+        String blockCacheDir = StringUtils.trimToNull(getConfiguration().get(BLOCK_CACHE_DIR_KEY));
+        FileSystem fileSystem = getFileSystem();
+
+        if (blockCacheDir != null && !(fileSystem instanceof LocalFileSystem)) {
+
+            blockCache = new LocalBlockCache(new File(blockCacheDir), getConfiguration().getLong(BLOCK_CACHE_SIZE_KEY,
+                    DEFAULT_BLOCK_CACHE_SIZE), getConfiguration().getInt(BLOCK_CACHE_BLOCK_SIZE_KEY,
+                    DEFAULT_BLOCK_CACHE_BLOCK_SIZE));
+            fileSystem = new BlockCachingFileSystem(fileSystem, blockCache);
+
+        } else {
+            blockCache = null;
+        }
+
+        // small, hot datasets can be served entirely from memory
+        Set<String> pinnedDataSets = getDataSetNames(PINNED_DATASETS_KEY);
+
+        pinnedMemory = new MemoryBudget(getConfiguration().getLong(PINNED_MEMORY_KEY, DEFAULT_PINNED_MEMORY));
+
+        loader = new DataSetLoader(fileSystem, getConfiguration(), getRootPathInFileSystem(), getConfiguration()
+                .getLong(NOT_FOUND_CACHE_SIZE_KEY, DEFAULT_NOT_FOUND_CACHE_SIZE), getConfiguration().getLong(
+                NOT_FOUND_CACHE_TTL_KEY, DEFAULT_NOT_FOUND_CACHE_TTL) * 1000, getConfiguration().getLong(
+                FOUND_CACHE_SIZE_KEY, DEFAULT_FOUND_CACHE_SIZE), pinnedDataSets, pinnedMemory, getConfiguration()
+                .getBoolean(PINNED_OFF_HEAP_KEY, true));
+
+        // cache of the most popular file contents across all datasets
+        long valueCacheSize = getConfiguration().getLong(VALUE_CACHE_SIZE_KEY, DEFAULT_VALUE_CACHE_SIZE);
+        if (valueCacheSize > 0) {
+            valueCache = new ValueCache(valueCacheSize, getConfiguration().getInt(VALUE_CACHE_MAX_ENTRY_SIZE_KEY,
+                    DEFAULT_VALUE_CACHE_MAX_ENTRY_SIZE), getConfiguration().getBoolean(VALUE_CACHE_OFF_HEAP_KEY, false));
+        } else {
+            valueCache = null;
+        }
+
+        metrics = new FileServerMetrics(rootPathInFileSystem, datasetMap.values(), admission, valueCache, blockCache,
+                pinnedMemory);
+    }
+
+    /**
+     * @return the trimmed, non-blank names in a comma separated list of datasets
+     */
+    private Set<String> getDataSetNames(final String key) {
+
+        Set<String> names = new HashSet<String>();
+        for (String name : getConfiguration().getStrings(key, new String[0])) {
+            if (StringUtils.isNotBlank(name)) {
+                names.add(name.trim());
+            }
+        }
+
+        return names;
+    }
+
+    AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    public FileServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the local disk cache of blocks of remote files or null if disabled
+     */
+    public LocalBlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * @return the cache of file contents or null if caching is disabled
+     */
+    public ValueCache getValueCache() {
+        return valueCache;
+    }
+
+    /**
+     * @return true once warm-up is done
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+
+        metrics.registerMBeans();
+
+        // bounded so that a burst of cold datasets can't stampede the namenode
+        openExecutor = Executors.newFixedThreadPool(getConfiguration().getInt(OPEN_THREADS_KEY, DEFAULT_OPEN_THREADS),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dataset-open-%d").build());
+        loader.setExecutor(openExecutor);
+
+        tileDataSets = getDataSetNames(TILE_DATASETS_KEY);
+
+        // read ahead into the value cache, so there has to be one
+        if (getConfiguration().getBoolean(PREFETCH_KEY, false) && valueCache != null && !tileDataSets.isEmpty()) {
+
+            prefetcher = new TilePrefetcher(valueCache, admission, getConfiguration().getInt(PREFETCH_THREADS_KEY,
+                    DEFAULT_PREFETCH_THREADS), getConfiguration().getInt(PREFETCH_BUDGET_KEY, DEFAULT_PREFETCH_BUDGET),
+                    getConfiguration().getInt(PREFETCH_MAX_IN_FLIGHT_KEY,
+                            getConfiguration().getInt(MAX_IN_FLIGHT_KEY, DEFAULT_MAX_IN_FLIGHT) / 2));
+        }
+
+        long reloadInterval = getConfiguration().getLong(RELOAD_INTERVAL_KEY, DEFAULT_RELOAD_INTERVAL);
+        if (reloadInterval > 0) {
+
+            reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("dataset-reload-%d").build());
+
+            reloadExecutor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    reloadChangedDataSets();
+                }
+            }, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+        }
+
+        if (getConfiguration().getBoolean(ASYNC_KEY, false)) {
+
+            // bounded, so that a slow datanode turns requests away instead of piling them up
+            int ioThreads = getConfiguration().getInt(IO_THREADS_KEY, DEFAULT_IO_THREADS);
+            ioExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(getConfiguration().getInt(IO_QUEUE_SIZE_KEY,
+                            DEFAULT_IO_QUEUE_SIZE)), new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
+                            "dataset-io-%d").build());
+        }
+
+        if (getConfiguration().getBoolean(WARM_BACKGROUND_KEY, false)) {
+
+            Thread warmer = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    warmUp();
+                }
+            }, "dataset-warm");
+
+            warmer.setDaemon(true);
+            warmer.start();
+
+        } else {
+
+            // connectors are started after handlers, so nothing is accepted until this is done
+            warmUp();
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+
+        metrics.unregisterMBeans();
+
+        ready = false;
+        saveWarmFiles();
+
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+            reloadExecutor = null;
+        }
+
+        if (ioExecutor != null) {
+            ioExecutor.shutdownNow();
+            ioExecutor = null;
+        }
+
+        if (prefetcher != null) {
+            Log.info("Stopped prefetching: " + prefetcher);
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+
+        // close any open readers, once requests still using them are done, and open them afresh on the next start
+        Collection<DataSet> datasets = datasetMap.values();
+        for (DataSet dataset : datasets) {
+            dataset.retire();
+        }
+
+        datasetMap.clear();
+
+        if (valueCache != null) {
+            valueCache.invalidateAll();
+        }
+
+        if (openExecutor != null) {
+            loader.setExecutor(null);
+
+            // parts that never got to be opened are cancelled, so that nothing waits on them forever
+            for (Runnable open : openExecutor.shutdownNow()) {
+                ((Future<?>) open).cancel(false);
+            }
+
+            openExecutor = null;
+        }
+    }
+
+    @Override
+    protected void handleWithExceptionTranslation(final String target, final Request baseRequest,
+            final HttpServletRequest request, final HttpServletResponse response) {
+
+        // check HTTP method
+        String httpMethod = request.getMethod().toUpperCase(Locale.UK);
+
+        if ("DELETE".equals(httpMethod)) {
+            handleDelete(target, baseRequest, request, response);
+
+        } else if ("GET".equals(httpMethod) && STATS_PATH.equals(target)) {
+            handleStats(response);
+
+        } else if ("GET".equals(httpMethod) && READY_PATH.equals(target)) {
+            handleReady(response);
+
+        } else if ("GET".equals(httpMethod)) {
+            handleGet(target, baseRequest, request, response);
+
+        } else if ("POST".equals(httpMethod)) {
+            handleBatchGet(target, baseRequest, request, response);
+
+        } else {
+            throw new HttpErrorException(HttpServletResponse.SC_NOT_ACCEPTABLE, "HTTP method not supported: "
+                    + request.getMethod());
+        }
+
+        ((Request) request).setHandled(true);
+    }
+
+    Pair<String, String> splitTargetIntoDatasetAndFilename(final String target) {
+
+        // tiles are requested as {dataset path}/zoom/x/y, but stored by tile key
+        if (!tileDataSets.isEmpty()) {
+
+            Matcher matcher = TILE_TARGET_PATTERN.matcher(target);
+            if (matcher.matches() && tileDataSets.contains(matcher.group(1))) {
+
+                String key = TileKeys.fromPath(matcher.group(2));
+                if (key != null) {
+                    return new Pair<String, String>(matcher.group(1), key);
+                }
+            }
+        }
+
+        // break the request URI into two parts: dataset path, filename in map file
+        int splitAt = StringUtils.lastIndexOf(target, '/');
+
+        // ensure split is possible
+        if (splitAt < 1 || splitAt == target.length() - 1) {
+            return null;
+        }
+
+        String dataset = target.substring(0, splitAt);
+        String filename = target.substring(splitAt + 1);
+
+        return new Pair<String, String>(dataset, filename);
+    }
+
+    /**
+     * A strong entity tag for a file, from the version of its dataset and the filename. The same file in the same
+     * version of a dataset gets the same tag from any server.
+     */
+    static String getETag(final DataSet dataset, final String filename) {
+        return "\"" + Long.toHexString(dataset.getVersion()) + "-" + Integer.toHexString(filename.hashCode()) + "\"";
+    }
+
+    LookupMode getLookupMode(final String dataset) {
+
+        DataSet value = datasetMap.get(dataset);
+        return value == null ? null : value.getLookupMode();
+    }
+
+    /**
+     * Checks every open dataset for a newer version and swaps in a fresh copy of any that have changed. The new readers
+     * are opened before the swap, so requests are never held up by the reload, and the old readers are closed only once
+     * the requests still using them are done. Any dataset that can't be checked or reopened keeps being served as is.
+     */
+    void reloadChangedDataSets() {
+
+        for (Map.Entry<String, DataSet> entry : datasetMap.entrySet()) {
+
+            String datasetName = entry.getKey();
+            DataSet current = entry.getValue();
+
+            DataSet reloaded;
+            long loadTime;
+            try {
+                if (loader.getVersion(datasetName) == current.getVersion()) {
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                reloaded = loader.load(datasetName);
+                loadTime = System.nanoTime() - start;
+
+            } catch (HttpErrorException hee) {
+                Log.warn("Could not reload dataset, continuing with current version: dataset=" + datasetName, hee);
+                continue;
+            }
+
+            if (datasetMap.replace(datasetName, current, reloaded)) {
+
+                Log.info("Reloaded dataset: dataset=" + datasetName + " version=" + current.getVersion() + " -> "
+                        + reloaded.getVersion());
+                metrics.recordLoad(reloaded, loadTime);
+                retireDataSet(current);
+
+            } else {
+
+                // deleted or replaced while reloading
+                reloaded.retire();
+            }
+        }
+    }
+
+    /**
+     * Opens the datasets to warm up, and reads the listed files into the value cache, a few datasets at a time. Anything
+     * that can't be opened or read is logged and skipped. The handler is ready once this is done.
+     */
+    void warmUp() {
+
+        long start = System.nanoTime();
+
+        Map<String, SortedSet<Text>> datasets = readWarmFiles();
+        for (String name : getConfiguration().getStrings(WARM_DATASETS_KEY, new String[0])) {
+            if (StringUtils.isNotBlank(name) && !datasets.containsKey(name.trim())) {
+                datasets.put(name.trim(), new TreeSet<Text>());
+            }
+        }
+
+        if (datasets.isEmpty()) {
+            ready = true;
+            return;
+        }
+
+        // separate from the open executor, which the loads themselves use to open parts
+        ExecutorService warmExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(datasets.size(),
+                getConfiguration().getInt(WARM_THREADS_KEY, DEFAULT_WARM_THREADS))), new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("dataset-warm-%d").build());
+
+        int files = 0;
+        try {
+            Map<String, Future<Integer>> tasks = new LinkedHashMap<String, Future<Integer>>();
+            for (final Map.Entry<String, SortedSet<Text>> entry : datasets.entrySet()) {
+
+                tasks.put(entry.getKey(), warmExecutor.submit(new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() throws IOException {
+                        return warmUp(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<Integer>> task : tasks.entrySet()) {
+
+                try {
+                    files += task.getValue().get();
+
+                } catch (ExecutionException ee) {
+                    Log.warn("Could not warm up dataset: dataset=" + task.getKey(), ee.getCause());
+                }
+            }
+
+        } catch (InterruptedException ie) {
+
+            Thread.currentThread().interrupt();
+            Log.warn("Interrupted while warming up datasets");
+
+        } finally {
+            warmExecutor.shutdownNow();
+        }
+
+        ready = true;
+        Log.info("Warmed up: datasets=" + datasets.size() + " files=" + files + " time="
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    /**
+     * Opens a dataset and reads files into the value cache.
+     * 
+     * @return the number of files cached
+     */
+    private int warmUp(final String datasetName, final SortedSet<Text> filenames) throws IOException {
+
+        final DataSet dataset = acquireDataSet(datasetName);
+        try {
+            // indices are only loaded on open with positional reads, otherwise on the first lookup
+            for (BloomMapFileReader reader : dataset.getReaders()) {
+                if (!reader.isPositionalReads()) {
+                    reader.midKey();
+                }
+            }
+
+            if (valueCache == null || filenames.isEmpty()) {
+                return 0;
+            }
+
+            final AtomicInteger cached = new AtomicInteger();
+            List<Text> missing = dataset.getValues(filenames, new ValueCallback() {
+
+                @Override
+                public void found(final Text key, final ByteBuffer value) {
+
+                    if (valueCache.put(dataset.getCacheKey(), key.toString(), value)) {
+                        cached.incrementAndGet();
+                    }
+                }
+            });
+
+            for (Text key : missing) {
+                dataset.addNotFoundFile(key.toString());
+            }
+
+            return cached.get();
+
+        } finally {
+            dataset.release();
+        }
+    }
+
+    /**
+     * Reads the warm-up files list, if there is one.
+     * 
+     * @return the files to read, by dataset
+     */
+    private Map<String, SortedSet<Text>> readWarmFiles() {
+
+        Map<String, SortedSet<Text>> datasets = new TreeMap<String, SortedSet<Text>>();
+
+        File file = getWarmFilesFile();
+        if (file == null || !file.exists()) {
+            return datasets;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+
+                    Pair<String, String> target = splitTargetIntoDatasetAndFilename(line.trim());
+                    if (target == null) {
+                        continue;
+                    }
+
+                    SortedSet<Text> filenames = datasets.get(target.getA());
+                    if (filenames == null) {
+                        filenames = new TreeSet<Text>();
+                        datasets.put(target.getA(), filenames);
+                    }
+
+                    filenames.add(new Text(target.getB()));
+                }
+
+            } finally {
+                reader.close();
+            }
+
+        } catch (IOException ioe) {
+            Log.warn("Could not read warm-up files list, continuing without it: " + file, ioe);
+        }
+
+        return datasets;
+    }
+
+    /**
+     * Writes the files held in the value cache for every open dataset to the warm-up files list, if there is one, for
+     * the next startup to read back in. The list is replaced in one go, so it is never left half written.
+     */
+    void saveWarmFiles() {
+
+        File file = getWarmFilesFile();
+        if (file == null || valueCache == null) {
+            return;
+        }
+
+        int max = getConfiguration().getInt(WARM_FILES_MAX_KEY, DEFAULT_WARM_FILES_MAX);
+        File temp = new File(file.getPath() + ".tmp");
+
+        try {
+            int count = 0;
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                for (Map.Entry<String, DataSet> entry : datasetMap.entrySet()) {
+                    for (String filename : valueCache.getFilenames(entry.getValue().getCacheKey())) {
+
+                        if (count++ >= max) {
+                            break;
+                        }
+
+                        writer.write(entry.getKey() + "/" + filename + "\n");
+                    }
+                }
+
+            } finally {
+                writer.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not move warm-up files list into place: " + file);
+            }
+
+            Log.info("Saved warm-up files list: files=" + Math.min(count, max) + " file=" + file);
+
+        } catch (IOException ioe) {
+            temp.delete();
+            Log.warn("Could not save warm-up files list: " + file, ioe);
+        }
+    }
+
+    private File getWarmFilesFile() {
+
+        String path = StringUtils.trimToNull(getConfiguration().get(WARM_FILES_KEY));
+        return path == null ? null : new File(path);
+    }
+
+    /**
+     * Takes a reference to an open dataset for a request, opening it if needed. The reference must be released once the
+     * request is done with the dataset.
+     */
+    private DataSet acquireDataSet(final String datasetName) {
+
+        while (true) {
+
+            DataSet dataset = getDataSet(datasetName);
+            if (dataset.acquire()) {
+                return dataset;
+            }
+
+            // retired in the meantime, either the map already holds its replacement or the next try opens one
+            datasetMap.remove(datasetName, dataset);
+        }
+    }
+
+    /**
+     * Gets an open dataset, opening it if needed. Only one load of a dataset is ever in flight, any other requests for
+     * it wait on that load instead of opening their own copies of the readers.
+     */
+    private DataSet getDataSet(final String datasetName) {
+
+        DataSet dataset = datasetMap.get(datasetName);
+        if (dataset != null) {
+            return dataset;
+        }
+
+        FutureTask<DataSet> task = new FutureTask<DataSet>(new Callable<DataSet>() {
+
+            @Override
+            public DataSet call() {
+
+                long start = System.nanoTime();
+                DataSet loaded = loader.load(datasetName);
+                datasetMap.put(datasetName, loaded);
+                metrics.recordLoad(loaded, System.nanoTime() - start);
+
+                return loaded;
+            }
+        });
+
+        FutureTask<DataSet> loading = loadingDatasetMap.putIfAbsent(datasetName, task);
+        if (loading == null) {
+
+            // check again, a load may have finished just before ours was registered
+            dataset = datasetMap.get(datasetName);
+            if (dataset != null) {
+                loadingDatasetMap.remove(datasetName, task);
+                return dataset;
+            }
+
+            loading = task;
+            try {
+                task.run();
+            } finally {
+                loadingDatasetMap.remove(datasetName, task);
+            }
+        }
+
+        try {
+            return loading.get();
+
+        } catch (ExecutionException ee) {
+
+            if (ee.getCause() instanceof HttpErrorException) {
+                throw (HttpErrorException) ee.getCause();
+            }
+
+            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Could not open dataset: "
+                    + datasetName, ee.getCause());
+
+        } catch (InterruptedException ie) {
+
+            Thread.currentThread().interrupt();
+            throw new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Interrupted while waiting for dataset to open: " + datasetName, ie);
+        }
+    }
+
+    private void handleBatchGet(final String target, final Request baseRequest, final HttpServletRequest request,
+            final HttpServletResponse response) {
+
+        String datasetName = StringUtils.removeEnd(target, "/");
+        if (datasetName.length() < 2) {
+            throw new HttpErrorException(HttpServletResponse.SC_BAD_REQUEST,
+                    "Batch requests must be made to a dataset URL: " + target);
+        }
+
+        SortedSet<Text> keys = readBatchKeys(request, datasetName);
+        long start = System.nanoTime();
+
+        try {
+            // a batch always reads, and opening the dataset for it counts too
+            admit(datasetName, response);
+            try {
+                DataSet dataset = acquireDataSet(datasetName);
+                try {
+                    record(dataset, Outcome.BATCH, start, handleBatchGet(dataset, keys, response));
+                } finally {
+                    dataset.release();
+                }
+
+            } finally {
+                admission.finish(datasetName);
+            }
+
+        } catch (HttpErrorException hee) {
+            recordError(datasetName, start, hee);
+            throw hee;
+
+        } catch (IOException ioe) {
+
+            // the status and some of the entries are already on their way, all that's left is to not end it cleanly
+            Log.warn("Error serving batch, aborting response: dataset=" + datasetName, ioe);
+            recordError(datasetName, start, null);
+            abort(baseRequest);
+        }
+    }
+
+    /**
+     * Closes the connection of a response that can't be completed, so that the client sees it end early.
+     */
+    private static void abort(final Request baseRequest) {
+
+        HttpConnection connection = baseRequest.getConnection();
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            connection.getEndPoint().close();
+        } catch (IOException ioe) {
+            Log.ignore(ioe);
+        }
+    }
+
+    /**
+     * @return the number of value bytes written
+     * @throws IOException
+     *         if the response could not be completed, once the status has been sent
+     */
+    private long handleBatchGet(final DataSet dataset, final SortedSet<Text> keys, final HttpServletResponse response)
+            throws IOException {
+
+        response.setContentType(BATCH_CONTENT_TYPE);
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        final DataOutputStream os = new DataOutputStream(response.getOutputStream());
+        final AtomicLong bytes = new AtomicLong();
+        List<Text> notFound = new ArrayList<Text>();
+
+        // known misses and popular files first, without touching the readers
+        Iterator<Text> iter = keys.iterator();
+        while (iter.hasNext()) {
+
+            Text key = iter.next();
+            String filename = key.toString();
+
+            if (dataset.isKnownNotFoundFile(filename)) {
+                notFound.add(key);
+                iter.remove();
+                continue;
+            }
+
+            ByteBuffer cached = valueCache == null ? null : valueCache.get(dataset.getCacheKey(), filename);
+            if (cached != null) {
+                bytes.addAndGet(writeBatchEntry(os, key, cached));
+                iter.remove();
+            }
+        }
+
+        // everything else in order through each reader, streamed out as it's read
+        List<Text> missing = dataset.getValues(keys, new ValueCallback() {
+
+            @Override
+            public void found(final Text key, final ByteBuffer value) throws IOException {
+
+                if (valueCache != null) {
+                    valueCache.put(dataset.getCacheKey(), key.toString(), value.duplicate());
+                }
+
+                bytes.addAndGet(writeBatchEntry(os, key, value));
+            }
+        });
+
+        for (Text key : missing) {
+            dataset.addNotFoundFile(key.toString());
+        }
+
+        notFound.addAll(missing);
+        for (Text key : notFound) {
+            writeBatchEntry(os, key, null);
+        }
+
+        os.writeInt(-1);
+        os.flush();
+        return bytes.get();
+    }
+
+    /**
+     * Reads the keys of a batch request, one per line. Duplicates and blank lines are ignored.
+     */
+    private SortedSet<Text> readBatchKeys(final HttpServletRequest request, final String datasetName) {
+
+        SortedSet<Text> keys = new TreeSet<Text>();
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), "UTF-8"));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+
+                // tiles can be listed as zoom/x/y too
+                if (tileDataSets.contains(datasetName)) {
+
+                    String key = TileKeys.fromPath(line);
+                    if (key != null) {
+                        line = key;
+                    }
+                }
+
+                keys.add(new Text(line));
+                if (keys.size() > batchMaxKeys) {
+                    throw new HttpErrorException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                            "Too many keys in batch request, maximum is " + batchMaxKeys + ": dataset=" + datasetName);
+                }
+            }
+
+        } catch (IOException ioe) {
+            throw new HttpErrorException(HttpServletResponse.SC_BAD_REQUEST, "Error reading batch request keys: dataset="
+                    + datasetName, ioe);
+        }
+
+        return keys;
+    }
+
+    private void handleStats(final HttpServletResponse response) {
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        try {
+            Writer writer = response.getWriter();
+            metrics.writeJson(writer);
+            writer.flush();
+
+        } catch (IOException ioe) {
+            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error writing stats", ioe);
+        }
+    }
+
+    private void handleReady(final HttpServletResponse response) {
+
+        if (!ready) {
+            response.setHeader("Retry-After", retryAfter);
+            throw new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Warming up");
+        }
+
+        response.setContentType("text/plain");
+        response.setStatus(HttpServletResponse.SC_OK);
+
+        try {
+            Writer writer = response.getWriter();
+            writer.write("ready");
+            writer.flush();
+
+        } catch (IOException ioe) {
+            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error writing readiness", ioe);
+        }
+    }
+
+    private void handleDelete(final String target, final Request baseRequest, final HttpServletRequest request,
+            final HttpServletResponse response) {
+
+        // full target is the dataset
+        DataSet dataset = datasetMap.remove(target);
+        if (dataset == null) {
+            throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND, "Dataset not found: " + target);
+        }
+
+        metrics.recordClosed(target);
+
+        retireDataSet(dataset);
+
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    private void handleGet(final String target, final Request baseRequest, final HttpServletRequest request,
+            final HttpServletResponse response) {
+
+        // split the target URL into two parts
+        Pair<String, String> splitTarget = splitTargetIntoDatasetAndFilename(target);
+        if (splitTarget == null) {
+            throw new HttpErrorException(HttpServletResponse.SC_NOT_ACCEPTABLE,
+                    "Error splitting target into dataset and filename: " + target);
+        }
+
+        String datasetName = splitTarget.getA();
+        String filename = splitTarget.getB();
+        long start = System.nanoTime();
+
+        try {
+            if (ioExecutor != null) {
+                handleGetAsync(datasetName, filename, start, request, response);
+                return;
+            }
+
+            // opening a dataset, or finding out that there is no such dataset, costs as much as a read
+            boolean admitted = false;
+            if (!datasetMap.containsKey(datasetName)) {
+                admit(datasetName, response);
+                admitted = true;
+            }
+
+            try {
+                // hold on to the readers for this dataset until the response is written, even if it's reloaded
+                DataSet dataset = acquireDataSet(datasetName);
+                try {
+                    if (!handleGetWithoutReading(dataset, filename, start, request, response)) {
+
+                        if (!admitted) {
+                            admit(datasetName, response);
+                            admitted = true;
+                        }
+
+                        handleGetFromReaders(dataset, filename, start, request, response);
+                    }
+
+                } finally {
+                    dataset.release();
+                }
+
+            } finally {
+                if (admitted) {
+                    admission.finish(datasetName);
+                }
+            }
+
+        } catch (HttpErrorException hee) {
+            recordError(datasetName, start, hee);
+            throw hee;
+
+        } catch (RuntimeException re) {
+            recordError(datasetName, start, null);
+            throw re;
+        }
+    }
+
+    /**
+     * Serves what can be served straight away on the request thread and hands anything that needs I/O, including
+     * opening a dataset, to the I/O executor. The request is suspended until the executor completes it.
+     */
+    private void handleGetAsync(final String datasetName, final String filename, final long start,
+            final HttpServletRequest request, final HttpServletResponse response) {
+
+        DataSet open = datasetMap.get(datasetName);
+        if (open == null || !open.acquire()) {
+            dispatch(null, datasetName, filename, start, request, response);
+            return;
+        }
+
+        boolean dispatched = false;
+        try {
+            if (!handleGetWithoutReading(open, filename, start, request, response)) {
+                dispatch(open, datasetName, filename, start, request, response);
+                dispatched = true;
+            }
+        } finally {
+
+            // otherwise the executor releases it
+            if (!dispatched) {
+                open.release();
+            }
+        }
+    }
+
+    /**
+     * @param dataset
+     *        an acquired dataset, already checked for everything that can be served without reading, or null if the
+     *        dataset has to be opened first
+     */
+    private void dispatch(final DataSet dataset, final String datasetName, final String filename, final long start,
+            final HttpServletRequest request, final HttpServletResponse response) {
+
+        // turned away before anything is queued
+        admit(datasetName, response);
+
+        final Continuation continuation = ContinuationSupport.getContinuation(request);
+
+        // completed by the executor, never expired by Jetty
+        continuation.setTimeout(0);
+        continuation.suspend(response);
+
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    if (dataset != null) {
+                        try {
+                            handleGetFromReaders(dataset, filename, start, request, response);
+                        } finally {
+                            dataset.release();
+                        }
+
+                    } else {
+
+                        DataSet acquired = acquireDataSet(datasetName);
+                        try {
+                            if (!handleGetWithoutReading(acquired, filename, start, request, response)) {
+                                handleGetFromReaders(acquired, filename, start, request, response);
+                            }
+                        } finally {
+                            acquired.release();
+                        }
+                    }
+
+                } catch (HttpErrorException hee) {
+                    recordError(datasetName, start, hee);
+                    completeWithError(hee, request, response);
+
+                } catch (RuntimeException re) {
+                    recordError(datasetName, start, null);
+                    completeWithError(new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                            "Error serving file: dataset=" + datasetName + " filename=" + filename, re), request,
+                            response);
+
+                } finally {
+                    admission.finish(datasetName);
+                    continuation.complete();
+                }
+            }
+        };
+
+        try {
+            ioExecutor.execute(task);
+
+        } catch (RejectedExecutionException ree) {
+
+            admission.finish(datasetName);
+            if (dataset != null) {
+                dataset.release();
+            }
+
+            HttpErrorException hee = new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Too many reads waiting: dataset=" + datasetName + " filename=" + filename);
+            recordError(datasetName, start, hee);
+
+            response.setHeader("Retry-After", retryAfter);
+            completeWithError(hee, request, response);
+            continuation.complete();
+        }
+    }
+
+    /**
+     * Admits a read on a dataset, or turns the request away with a "503" if the server or the dataset is too busy. The
+     * dataset is admitted by name, whether or not it is open yet.
+     */
+    private void admit(final String datasetName, final HttpServletResponse response) {
+
+        if (!admission.tryAdmit(datasetName)) {
+            response.setHeader("Retry-After", retryAfter);
+            throw new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many reads in flight: dataset="
+                    + datasetName);
+        }
+    }
+
+    private void record(final DataSet dataset, final Outcome outcome, final long start, final long bytes) {
+        metrics.record(dataset.getName(), outcome, System.nanoTime() - start, bytes);
+    }
+
+    /**
+     * Records a request that failed on the server's side. Misses are recorded where they are found.
+     * 
+     * @param hee
+     *        the error sent, or null for an unexpected exception
+     */
+    private void recordError(final String datasetName, final long start, final HttpErrorException hee) {
+
+        if (hee == null || hee.getStatusCode() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+            metrics.record(datasetName, Outcome.ERROR, System.nanoTime() - start, 0);
+        }
+    }
+
+    private void completeWithError(final HttpErrorException hee, final HttpServletRequest request,
+            final HttpServletResponse response) {
+
+        try {
+            handleHttpErrorException(hee, request, response);
+        } catch (IOException ioe) {
+            Log.warn("Error writing error response: " + hee.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Serves what can be served without reading from the dataset: known misses, revalidations and cached files.
+     * 
+     * @return true if the request has been served
+     */
+    private boolean handleGetWithoutReading(final DataSet dataset, final String filename, final long start,
+            final HttpServletRequest request, final HttpServletResponse response) {
+
+        // check immediately for a known miss
+        if (dataset.isKnownNotFoundFile(filename)) {
+            record(dataset, Outcome.CACHED_NOT_FOUND, start, 0);
+            throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND,
+                    "File was not found in any backing mapfile (cached 404): dataset=" + dataset.getName()
+                            + " filename=" + filename);
+        }
+
+        // a file can only change along with the version of its dataset, so there's no need to read it to validate it
+        String etag = getETag(dataset, filename);
+
+        if (isNotModified(request, etag, dataset.getVersion())) {
+            setValidators(dataset, etag, response);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            record(dataset, Outcome.NOT_MODIFIED, start, 0);
+            return true;
+        }
+
+        // popular files are served straight from memory, ranges of them are served with the reads
+        if (valueCache != null && getRange(request, etag, dataset.getVersion()) == null) {
+
+            ByteBuffer cached = valueCache.get(dataset.getCacheKey(), filename);
+            if (cached != null) {
+                record(dataset, Outcome.HIT, start,
+                        writeValue(dataset, filename, cached, HttpServletResponse.SC_OK, response));
+                prefetchAround(dataset, filename);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void handleGetFromReaders(final DataSet dataset, final String filename, final long start,
+            final HttpServletRequest request, final HttpServletResponse response) {
+
+        String datasetFilenameDebugString = "dataset=" + dataset.getName() + " filename=" + filename;
+
+        // only the requested bytes are read, a range is never worth caching
+        ByteRange range = getRange(request, getETag(dataset, filename), dataset.getVersion());
+        if (range != null) {
+            handleRangeGet(dataset, filename, range, start, response);
+            return;
+        }
+
+        // have the readers, find the file
+        ByteBuffer value;
+        try {
+            value = getValue(dataset, filename);
+
+        } catch (IOException ioe) {
+            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Error looking for filename key in mapfile reader: " + datasetFilenameDebugString, ioe);
+        }
+
+        if (value == null) {
+            dataset.addNotFoundFile(filename);
+            record(dataset, Outcome.MISS, start, 0);
+            throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND,
+                    "File was not found in any backing mapfile: " + datasetFilenameDebugString);
+        }
+
+        record(dataset, Outcome.HIT, start, writeValue(dataset, filename, value, HttpServletResponse.SC_OK, response));
+        prefetchAround(dataset, filename);
+    }
+
+    /**
+     * Looks up a file and offers it to the value cache. Only one lookup of a file is ever in flight, any concurrent
+     * requests for the same file wait on that lookup and are served the same bytes, so a burst of requests for a file
+     * that just dropped out of the caches in front of the server costs a single read.
+     * 
+     * @return the contents, with a position and limit of the caller's own, or null if not found
+     */
+    private ByteBuffer getValue(final DataSet dataset, final String filename) throws IOException {
+
+        // the cache key changes with every copy of the dataset, so a reload never waits on a lookup in the old one
+        String lookupKey = dataset.getCacheKey() + "/" + filename;
+
+        FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+
+            @Override
+            public ByteBuffer call() throws IOException {
+
+                ByteBuffer value = dataset.getValue(new Text(filename));
+                if (value != null && valueCache != null) {
+                    valueCache.put(dataset.getCacheKey(), filename, value);
+                }
+
+                return value;
+            }
+        });
+
+        FutureTask<ByteBuffer> lookup = lookupsInFlight.putIfAbsent(lookupKey, task);
+        if (lookup == null) {
+
+            lookup = task;
+            try {
+                task.run();
+            } finally {
+                lookupsInFlight.remove(lookupKey, task);
+            }
+
+        } else {
+            metrics.recordCoalesced(dataset.getName());
+        }
+
+        try {
+            ByteBuffer value = lookup.get();
+            return value == null ? null : value.duplicate();
+
+        } catch (ExecutionException ee) {
+
+            Throwables.propagateIfPossible(ee.getCause(), IOException.class);
+            throw Throwables.propagate(ee.getCause());
+
+        } catch (InterruptedException ie) {
+
+            Thread.currentThread().interrupt();
+            throw new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Interrupted while waiting for lookup: dataset=" + dataset.getName() + " filename=" + filename, ie);
+        }
+    }
+
+    /**
+     * Reads the neighbours of a tile that has just been served ahead, if prefetching is enabled for its dataset.
+     */
+    private void prefetchAround(final DataSet dataset, final String filename) {
+
+        TilePrefetcher current = prefetcher;
+        if (current != null && tileDataSets.contains(dataset.getName())) {
+            current.prefetch(dataset, filename);
+        }
+    }
+
+    /**
+     * @return the range requested, or null if the whole file should be served
+     */
+    private ByteRange getRange(final HttpServletRequest request, final String etag, final long lastModified) {
+
+        ByteRange range = ByteRange.parse(request.getHeader("Range"));
+        return range != null && isRangeCurrent(request, etag, lastModified) ? range : null;
+    }
+
+    private void handleRangeGet(final DataSet dataset, final String filename, final ByteRange range, final long start,
+            final HttpServletResponse response) {
+
+        String datasetFilenameDebugString = "dataset=" + dataset.getName() + " filename=" + filename;
+
+        ByteBuffer cached = valueCache == null ? null : valueCache.get(dataset.getCacheKey(), filename);
+        StoredValue value = null;
+        long length;
+
+        if (cached != null) {
+            length = cached.remaining();
+
+        } else {
+
+            try {
+                value = dataset.locateValue(new Text(filename));
+
+            } catch (IOException ioe) {
+                throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "Error looking for filename key in mapfile reader: " + datasetFilenameDebugString, ioe);
+            }
+
+            if (value == null) {
+                dataset.addNotFoundFile(filename);
+                record(dataset, Outcome.MISS, start, 0);
+                throw new HttpErrorException(HttpServletResponse.SC_NOT_FOUND,
+                        "File was not found in any backing mapfile: " + datasetFilenameDebugString);
+            }
+
+            length = value.getLength();
+        }
+
+        ByteRange resolved = range.resolve(length);
+        if (resolved == null) {
+            response.setHeader("Content-Range", "bytes */" + length);
+            throw new HttpErrorException(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                    "Range is outside of file: " + datasetFilenameDebugString + " " + range);
+        }
+
+        ByteBuffer bytes;
+        if (cached != null) {
+            int position = cached.position();
+            cached.limit(position + (int) resolved.getLast() + 1);
+            cached.position(position + (int) resolved.getFirst());
+            bytes = cached.slice();
+
+        } else {
+
+            try {
+                bytes = value.read(resolved.getFirst(), (int) resolved.getLength());
+
+            } catch (IOException ioe) {
+                throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                        "Error reading range of file from mapfile reader: " + datasetFilenameDebugString, ioe);
+            }
+        }
+
+        response.setHeader("Content-Range", resolved.getContentRange(length));
+        record(dataset, Outcome.HIT, start,
+                writeValue(dataset, filename, bytes, HttpServletResponse.SC_PARTIAL_CONTENT, response));
+    }
+
+    /**
+     * Checks the conditional headers of a request against the current validators of a file. If-None-Match takes
+     * precedence over If-Modified-Since, as in RFC 2616. A wildcard If-None-Match is left to the full lookup.
+     * 
+     * @return true if the client already has the current contents
+     */
+    private boolean isNotModified(final HttpServletRequest request, final String etag, final long lastModified) {
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+
+            for (String candidate : StringUtils.split(ifNoneMatch, ',')) {
+
+                // weak comparison is allowed for GET
+                String tag = StringUtils.removeStart(candidate.trim(), "W/");
+                if (tag.equals(etag)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+
+        // HTTP dates only have second precision
+        return ifModifiedSince > 0 && lastModified > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Checks an If-Range header, if any, against the current validators of a file. Entity tags must match exactly, as
+     * weak tags are not good enough for ranges.
+     * 
+     * @return true if a range of the current contents can be served
+     */
+    private boolean isRangeCurrent(final HttpServletRequest request, final String etag, final long lastModified) {
+
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+
+        try {
+            long date = request.getDateHeader("If-Range");
+            return date > 0 && lastModified > 0 && date / 1000 == lastModified / 1000;
+
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets ETag, Last-Modified and, if configured, Cache-Control headers. Only responses with the contents of a file, or
+     * confirming the client's copy of them, carry validators, an error is never cached.
+     */
+    private void setValidators(final DataSet dataset, final String etag, final HttpServletResponse response) {
+
+        response.setHeader("ETag", etag);
+
+        if (dataset.getVersion() > 0) {
+            response.setDateHeader("Last-Modified", dataset.getVersion());
+        }
+
+        if (cacheControl != null) {
+            response.setHeader("Cache-Control", cacheControl);
+        }
+    }
+
+    /**
+     * Stops using a dataset, its cached values are dropped and its readers are closed once no request is using them.
+     */
+    private void retireDataSet(final DataSet dataset) {
+
+        if (valueCache != null) {
+            valueCache.invalidate(dataset.getCacheKey());
+        }
+
+        dataset.retire();
+    }
+
+    /**
+     * Sends a response with hopefully right content/mime type. The length is always known up front, so the response is
+     * never chunked. A direct buffer, like a view onto a memory mapped data file, is handed to Jetty as is to be
+     * written straight to the socket without passing through the heap.
+     */
+    private int writeValue(final DataSet dataset, final String filename, final ByteBuffer value, final int status,
+            final HttpServletResponse response) {
+
+        int length = value.remaining();
+
+        setValidators(dataset, getETag(dataset, filename), response);
+        response.setContentType(getMimeType(filename));
+        response.setContentLength(length);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setStatus(status);
+
+        try {
+            OutputStream os = response.getOutputStream();
+
+            if (value.hasArray()) {
+                os.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+
+            } else if (os instanceof HttpConnection.Output) {
+                ((HttpConnection.Output) os).sendContent(new DirectNIOBuffer(value, true));
+                return length;
+
+            } else {
+                writeBytes(os, value);
+            }
+
+            os.flush();
+
+        } catch (IOException ioe) {
+            throw new HttpErrorException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Error writing file bytes to output stream", ioe);
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes one entry of a batch response, see {@link #BATCH_CONTENT_TYPE}.
+     * 
+     * @param value
+     *        the contents or null if the file was not found
+     * @return the number of value bytes written
+     */
+    private static int writeBatchEntry(final DataOutputStream os, final Text key, final ByteBuffer value)
+            throws IOException {
+
+        os.writeInt(key.getLength());
+        os.write(key.getBytes(), 0, key.getLength());
+
+        if (value == null) {
+            os.writeInt(-1);
+            return 0;
+        }
+
+        int length = value.remaining();
+        os.writeInt(length);
+        if (value.hasArray()) {
+            os.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        } else {
+            writeBytes(os, value);
+        }
+
+        return length;
+    }
+
+    /**
+     * Copies a direct buffer out in chunks.
+     */
+    private static void writeBytes(final OutputStream os, final ByteBuffer value) throws IOException {
+
+        byte[] chunk = new byte[Math.min(value.remaining(), 8192)];
+        while (value.hasRemaining()) {
+
+            int length = Math.min(chunk.length, value.remaining());
+            value.get(chunk, 0, length);
+            os.write(chunk, 0, length);
         }
     }
 }
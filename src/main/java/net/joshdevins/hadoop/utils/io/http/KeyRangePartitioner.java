@@ -0,0 +1,130 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
+
+/**
+ * Routes keys to the parts of a dataset by the range of keys in each part, as listed in its {@link DataSetManifest}.
+ * Whatever the dataset was written with, be it a partitioner the handler doesn't know, a total order partitioner or
+ * separate runs of a converter over sorted files, once no two parts' key ranges overlap a key can only be in the part
+ * whose range it falls in. A lookup then probes a single Bloom filter, found by a binary search over the first keys,
+ * rather than every one of them.
+ * 
+ * <p>
+ * Keys outside of every range go to the nearest part, whose Bloom filter turns them away. Empty parts never have keys
+ * routed to them.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+final class KeyRangePartitioner extends Partitioner<Text, BytesWritable> {
+
+    /**
+     * First key of each non-empty part, in key order.
+     */
+    private final Text[] firstKeys;
+
+    /**
+     * The part of each range, as an index into the parts of the manifest.
+     */
+    private final int[] parts;
+
+    private KeyRangePartitioner(final Text[] firstKeys, final int[] parts) {
+        this.firstKeys = firstKeys;
+        this.parts = parts;
+    }
+
+    @Override
+    public int getPartition(final Text key, final BytesWritable value, final int numPartitions) {
+
+        // the last range starting at or before the key
+        int low = 0;
+        int high = firstKeys.length - 1;
+
+        while (low < high) {
+
+            int mid = (low + high + 1) >>> 1;
+            if (firstKeys[mid].compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return parts[low];
+    }
+
+    @Override
+    public String toString() {
+        return "KeyRangePartitioner [ranges=" + firstKeys.length + "]";
+    }
+
+    /**
+     * Creates a partitioner from the key ranges in a manifest of {@link Text} keys.
+     * 
+     * @return the partitioner or null if the parts' key ranges overlap, there are no keys at all or there is only the
+     *         one part to look in anyway
+     */
+    static KeyRangePartitioner fromManifest(final DataSetManifest manifest) throws IOException {
+
+        List<Part> parts = manifest.getParts();
+        if (parts.size() < 2 || !Text.class.getName().equals(manifest.getKeyClassName())) {
+            return null;
+        }
+
+        final List<Text[]> ranges = new ArrayList<Text[]>(parts.size());
+        List<Integer> rangeParts = new ArrayList<Integer>(parts.size());
+
+        for (int i = 0; i < parts.size(); i++) {
+
+            Text firstKey = parts.get(i).getFirstKey(new Text());
+            if (firstKey != null) {
+                ranges.add(new Text[] { firstKey, parts.get(i).getLastKey(new Text()) });
+                rangeParts.add(i);
+            }
+        }
+
+        if (ranges.isEmpty()) {
+            return null;
+        }
+
+        // sort the part numbers along with the ranges
+        List<Integer> order = new ArrayList<Integer>(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            order.add(i);
+        }
+
+        Collections.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(final Integer range1, final Integer range2) {
+                return ranges.get(range1)[0].compareTo(ranges.get(range2)[0]);
+            }
+        });
+
+        Text[] firstKeys = new Text[order.size()];
+        int[] partNumbers = new int[order.size()];
+
+        for (int i = 0; i < order.size(); i++) {
+
+            Text[] range = ranges.get(order.get(i));
+            if (i > 0 && ranges.get(order.get(i - 1))[1].compareTo(range[0]) >= 0) {
+                return null;
+            }
+
+            firstKeys[i] = range[0];
+            partNumbers[i] = rangeParts.get(order.get(i));
+        }
+
+        return new KeyRangePartitioner(firstKeys, partNumbers);
+    }
+}
@@ -0,0 +1,136 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds, for percentiles without keeping every sample. Buckets are exact
+ * below 16us and then split each power of two into 8, so a percentile is off by at most an eighth of its value.
+ * 
+ * @author Josh Devins
+ */
+public final class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Enough to cover up to 2^40us, or about 12 days.
+     */
+    private static final int NUM_BUCKETS = LINEAR_BUCKETS + (40 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the longest latency recorded, in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean latency, in microseconds
+     */
+    public double getMean() {
+
+        long total = count.get();
+        return total == 0 ? 0.0 : (double) sum.get() / total;
+    }
+
+    /**
+     * @param percentile
+     *        between 0 and 1, like 0.99
+     * @return the latency that the given fraction of requests were at or under, in microseconds, or 0 if nothing has
+     *         been recorded
+     */
+    public long getPercentile(final double percentile) {
+
+        long total = 0;
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    public void record(final long duration, final TimeUnit unit) {
+
+        long micros = Math.max(0, unit.toMicros(duration));
+
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long current;
+        while (micros > (current = max.get())) {
+            if (max.compareAndSet(current, micros)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram [count=" + count + ", p50=" + getPercentile(0.5) + ", p99=" + getPercentile(0.99)
+                + ", p999=" + getPercentile(0.999) + ", max=" + max + "]";
+    }
+
+    static int bucket(final long micros) {
+
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> exponent - SUB_BUCKET_BITS) & SUB_BUCKETS - 1;
+
+        return Math.min(NUM_BUCKETS - 1, LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket);
+    }
+
+    /**
+     * @return the largest value that falls in a bucket
+     */
+    static long upperBound(final int bucket) {
+
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+
+        long width = 1L << exponent - SUB_BUCKET_BITS;
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
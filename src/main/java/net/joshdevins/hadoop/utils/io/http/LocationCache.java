@@ -0,0 +1,244 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+import org.apache.hadoop.io.ValueLocation;
+
+/**
+ * A cache of where files were found in a dataset: the part and the location of the value in its data file, with a
+ * fixed memory budget. A lookup of a file found before can go straight to a positioned read of the right part, skipping
+ * the Bloom filters and the index, at a cost of 20 bytes per file rather than the size of its contents.
+ * 
+ * <p>
+ * Filenames are stored as 64-bit fingerprints, the same as in a {@link NegativeCache}, in open-addressed tables split
+ * into segments by fingerprint, each with its own lock. Once the slots a fingerprint can go in are all taken, one of
+ * them is overwritten. A location is only valid for the copy of the dataset it was found in, so the cache lives and
+ * dies with a {@link DataSet}.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class LocationCache {
+
+    /**
+     * Bytes held for each slot: the fingerprint, the part and position packed together, and the length.
+     */
+    static final int BYTES_PER_SLOT = 8 + 8 + 4;
+
+    /**
+     * Positions are packed into the low bits alongside the part, which limits data files to 256TB.
+     */
+    private static final int POSITION_BITS = 48;
+
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+    /**
+     * Maximum part number that can be stored.
+     */
+    static final int MAX_PART = (1 << 64 - POSITION_BITS) - 1;
+
+    /**
+     * Slots a fingerprint can go in.
+     */
+    private static final int MAX_PROBES = 8;
+
+    private static final int NUM_SEGMENTS = 16;
+
+    /**
+     * Where a file was found.
+     */
+    public static final class Entry {
+
+        private final int part;
+
+        private final ValueLocation location;
+
+        private Entry(final int part, final ValueLocation location) {
+            this.part = part;
+            this.location = location;
+        }
+
+        /**
+         * @return the location of the serialized value in the part's data file
+         */
+        public ValueLocation getLocation() {
+            return location;
+        }
+
+        /**
+         * @return the index of the part in the dataset
+         */
+        public int getPart() {
+            return part;
+        }
+    }
+
+    private static final class Segment {
+
+        private final long[] fingerprints;
+
+        private final long[] locations;
+
+        private final int[] lengths;
+
+        private Segment(final int numSlots) {
+            fingerprints = new long[numSlots];
+            locations = new long[numSlots];
+            lengths = new int[numSlots];
+        }
+
+        private synchronized Entry get(final long fingerprint) {
+
+            int mask = fingerprints.length - 1;
+            int index = index(fingerprint);
+
+            for (int i = 0; i < MAX_PROBES; i++) {
+
+                int slot = index + i & mask;
+                if (fingerprints[slot] == fingerprint) {
+                    return new Entry((int) (locations[slot] >>> POSITION_BITS), new ValueLocation(locations[slot]
+                            & POSITION_MASK, lengths[slot]));
+                }
+
+                if (fingerprints[slot] == 0) {
+                    return null;
+                }
+            }
+
+            return null;
+        }
+
+        private synchronized void put(final long fingerprint, final long location, final int length) {
+
+            int mask = fingerprints.length - 1;
+            int index = index(fingerprint);
+
+            // some other fingerprint has to go, pick one that depends on the fingerprint to spread replacements out
+            int slot = index + (int) (fingerprint >>> 61) & mask;
+
+            for (int i = 0; i < MAX_PROBES; i++) {
+
+                int candidate = index + i & mask;
+                if (fingerprints[candidate] == fingerprint || fingerprints[candidate] == 0) {
+                    slot = candidate;
+                    break;
+                }
+            }
+
+            fingerprints[slot] = fingerprint;
+            locations[slot] = location;
+            lengths[slot] = length;
+        }
+
+        private synchronized int count() {
+
+            int count = 0;
+            for (long fingerprint : fingerprints) {
+                if (fingerprint != 0) {
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        private int index(final long fingerprint) {
+            return (int) (fingerprint ^ fingerprint >>> 32) & fingerprints.length - 1;
+        }
+    }
+
+    private final Segment[] segments;
+
+    private final int slotsPerSegment;
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *        memory budget for all of the slots together
+     */
+    public LocationCache(final long maxBytes) {
+
+        Validate.isTrue(maxBytes >= NUM_SEGMENTS * MAX_PROBES * BYTES_PER_SLOT, "Memory budget is too small");
+
+        // rounded down to a power of two
+        slotsPerSegment = Integer.highestOneBit((int) Math.min(1 << 30, maxBytes / NUM_SEGMENTS / BYTES_PER_SLOT));
+
+        segments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(slotsPerSegment);
+        }
+    }
+
+    /**
+     * @return where a file was found, or null if it's not known
+     */
+    public Entry get(final String filename) {
+
+        lookups.incrementAndGet();
+
+        long fingerprint = NegativeCache.fingerprint(filename);
+        Entry entry = segmentFor(fingerprint).get(fingerprint);
+
+        if (entry != null) {
+            hits.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * @return the fixed number of bytes used by the tables
+     */
+    public long getSizeInBytes() {
+        return (long) NUM_SEGMENTS * slotsPerSegment * BYTES_PER_SLOT;
+    }
+
+    /**
+     * Remembers where a file was found. Locations that can't be stored are ignored.
+     */
+    public void put(final String filename, final int part, final ValueLocation location) {
+
+        if (part < 0 || part > MAX_PART || location.getPosition() < 0 || location.getPosition() > POSITION_MASK) {
+            return;
+        }
+
+        long fingerprint = NegativeCache.fingerprint(filename);
+        segmentFor(fingerprint).put(fingerprint, (long) part << POSITION_BITS | location.getPosition(),
+                location.getLength());
+    }
+
+    /**
+     * @return the number of files currently remembered
+     */
+    public int size() {
+
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.count();
+        }
+
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationCache [entries=" + size() + ", bytes=" + getSizeInBytes() + ", hits=" + hits + ", lookups="
+                + lookups + "]";
+    }
+
+    private Segment segmentFor(final long fingerprint) {
+        return segments[(int) (fingerprint >>> 32 ^ fingerprint >>> 48) & NUM_SEGMENTS - 1];
+    }
+}
@@ -0,0 +1,64 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * A fixed number of bytes of memory shared by all pinned datasets. Memory is reserved before a dataset is pinned and
+ * given back once its readers are closed.
+ * 
+ * @author Josh Devins
+ */
+final class MemoryBudget {
+
+    private final long capacity;
+
+    private final AtomicLong used = new AtomicLong();
+
+    MemoryBudget(final long capacity) {
+
+        Validate.isTrue(capacity >= 0, "Memory budget must not be negative");
+        this.capacity = capacity;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Gives back memory that was reserved.
+     */
+    public void release(final long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * Reserves memory, if there is enough of it left.
+     * 
+     * @return false if the budget would be exceeded, in which case nothing is reserved
+     */
+    public boolean tryReserve(final long bytes) {
+
+        while (true) {
+
+            long current = used.get();
+            if (current + bytes > capacity) {
+                return false;
+            }
+
+            if (used.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget [used=" + used + ", capacity=" + capacity + "]";
+    }
+}
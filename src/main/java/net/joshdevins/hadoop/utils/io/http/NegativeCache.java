@@ -0,0 +1,268 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * A thread-safe cache of filenames known not to exist in a dataset, with a fixed memory budget and a time-to-live.
+ * 
+ * <p>
+ * Filenames are stored as 64-bit fingerprints in two open-addressed tables, or generations. New misses go into the
+ * current generation and lookups check both. When the current generation fills up, or is found to be older than half
+ * the time-to-live, it becomes the previous generation and the old previous generation is dropped. The previous
+ * generation is only checked until it is as old as the time-to-live, so an entry is never remembered for longer than
+ * that. It can be forgotten sooner though, once half of the time-to-live has passed or, under a burst of misses that
+ * fills up the generations, after as little as two generations' worth of newer misses. Memory never grows past the two
+ * tables.
+ * </p>
+ * 
+ * <p>
+ * Unlike a Bloom filter, a lookup can only match a filename that was actually added (short of a 64-bit fingerprint
+ * collision), so an existing file is never reported as not found as long as the dataset does not change underneath the
+ * cache.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class NegativeCache {
+
+    /**
+     * Maximum slots to probe before a generation is considered full.
+     */
+    private static final int MAX_PROBES = 16;
+
+    private static final class Generation {
+
+        private final AtomicLongArray slots;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final long created;
+
+        private Generation(final int numSlots, final long created) {
+            slots = new AtomicLongArray(numSlots);
+            this.created = created;
+        }
+
+        /**
+         * @return false if the generation is too full to add to
+         */
+        private boolean add(final long fingerprint) {
+
+            int mask = slots.length() - 1;
+            int index = (int) (fingerprint ^ fingerprint >>> 32) & mask;
+
+            for (int i = 0; i < MAX_PROBES; i++) {
+
+                int slot = index + i & mask;
+                long current = slots.get(slot);
+
+                if (current == fingerprint) {
+                    return true;
+                }
+
+                if (current == 0 && slots.compareAndSet(slot, 0, fingerprint)) {
+                    count.incrementAndGet();
+                    return true;
+                }
+
+                // lost a race for this slot, re-check it
+                if (current == 0 && slots.get(slot) == fingerprint) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private boolean contains(final long fingerprint) {
+
+            int mask = slots.length() - 1;
+            int index = (int) (fingerprint ^ fingerprint >>> 32) & mask;
+
+            for (int i = 0; i < MAX_PROBES; i++) {
+
+                long current = slots.get(index + i & mask);
+
+                if (current == fingerprint) {
+                    return true;
+                }
+
+                if (current == 0) {
+                    return false;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    private final int slotsPerGeneration;
+
+    private final long ttlMillis;
+
+    private volatile Generation current;
+
+    private volatile Generation previous;
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *        memory budget for both generations together
+     * @param ttlMillis
+     *        maximum time an entry is remembered for
+     */
+    public NegativeCache(final long maxBytes, final long ttlMillis) {
+
+        Validate.isTrue(maxBytes >= 64, "Memory budget is too small");
+        Validate.isTrue(ttlMillis > 0, "Time-to-live must be positive");
+
+        // two generations of 8 byte slots, rounded down to a power of two
+        slotsPerGeneration = Integer.highestOneBit((int) Math.min(1 << 30, maxBytes / 16));
+        this.ttlMillis = ttlMillis;
+
+        long now = System.currentTimeMillis();
+        current = new Generation(slotsPerGeneration, now);
+        previous = new Generation(slotsPerGeneration, now);
+    }
+
+    /**
+     * Remembers a filename that was not found.
+     */
+    public void add(final String filename) {
+
+        long fingerprint = fingerprint(filename);
+        Generation generation = currentGeneration();
+
+        // keep the load factor low so that probes stay short
+        if (generation.count.get() >= slotsPerGeneration / 2 || !generation.add(fingerprint)) {
+            rotate(generation);
+            currentGeneration().add(fingerprint);
+        }
+    }
+
+    public void clear() {
+
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            previous = new Generation(slotsPerGeneration, now);
+            current = new Generation(slotsPerGeneration, now);
+        }
+    }
+
+    /**
+     * @return true if the filename is known not to exist
+     */
+    public boolean contains(final String filename) {
+
+        lookups.incrementAndGet();
+
+        long fingerprint = fingerprint(filename);
+        Generation generation = currentGeneration();
+
+        // the previous generation is only rotated out on access, so it can outlive the time-to-live
+        Generation old = previous;
+        boolean oldExpired = System.currentTimeMillis() - old.created >= ttlMillis;
+
+        if (generation.contains(fingerprint) || !oldExpired && old.contains(fingerprint)) {
+            hits.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the fraction of lookups that found a known missing filename
+     */
+    public double getHitRate() {
+
+        long total = lookups.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * @return the fixed number of bytes used by the fingerprint tables
+     */
+    public long getSizeInBytes() {
+        return 2L * slotsPerGeneration * 8;
+    }
+
+    /**
+     * @return the number of filenames currently remembered
+     */
+    public int size() {
+        return current.count.get() + previous.count.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NegativeCache [entries=" + size() + ", bytes=" + getSizeInBytes() + ", hitRate=" + getHitRate() + "]";
+    }
+
+    /**
+     * Gets the current generation, first expiring it if it has outlived half of the time-to-live. If it has outlived all
+     * of the time-to-live, nothing in either generation can still be valid.
+     */
+    private Generation currentGeneration() {
+
+        Generation generation = current;
+        long age = System.currentTimeMillis() - generation.created;
+
+        if (age >= ttlMillis) {
+            rotate(generation);
+            rotate(current);
+
+        } else if (age >= ttlMillis / 2) {
+            rotate(generation);
+        }
+
+        return current;
+    }
+
+    private synchronized void rotate(final Generation expected) {
+
+        // someone else already rotated
+        if (current != expected) {
+            return;
+        }
+
+        previous = current;
+        current = new Generation(slotsPerGeneration, System.currentTimeMillis());
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the filename with a final mix, never 0 since that marks an empty slot.
+     */
+    static long fingerprint(final String filename) {
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < filename.length(); i++) {
+            hash ^= filename.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash == 0 ? 1 : hash;
+    }
+}
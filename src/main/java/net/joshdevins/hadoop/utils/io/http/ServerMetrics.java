@@ -0,0 +1,105 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.util.Collection;
+
+import org.eclipse.jetty.server.AbstractConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Metrics of the Jetty server in front of a {@link JettyBloomMapFileHandler}: the connections and requests of its
+ * connector, and the request threads and the queue of requests waiting for one. Published along with the
+ * {@link FileServerMetrics} of the handler.
+ * 
+ * <p>
+ * Connection and request counts are only kept while statistics are on for the connector, see
+ * {@link HttpHdfsFileServer#STATS_KEY}.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class ServerMetrics implements ServerMetricsMBean {
+
+    private final AbstractConnector connector;
+
+    private final QueuedThreadPool threadPool;
+
+    private final Collection<Runnable> jobs;
+
+    /**
+     * @param jobs
+     *        the queue of the thread pool, which doesn't tell its size itself
+     */
+    ServerMetrics(final AbstractConnector connector, final QueuedThreadPool threadPool,
+            final Collection<Runnable> jobs) {
+
+        this.connector = connector;
+        this.threadPool = threadPool;
+        this.jobs = jobs;
+    }
+
+    @Override
+    public long getConnectionCount() {
+        return connector.getConnections();
+    }
+
+    @Override
+    public long getConnectionDurationMaxMillis() {
+        return connector.getConnectionsDurationMax();
+    }
+
+    /**
+     * @return the mean time that closed connections were open for, 0 before any have closed
+     */
+    @Override
+    public long getConnectionDurationMeanMillis() {
+        return Math.round(connector.getConnectionsDurationMean());
+    }
+
+    @Override
+    public int getIdleThreadCount() {
+        return threadPool.getIdleThreads();
+    }
+
+    @Override
+    public int getMaxOpenConnectionCount() {
+        return connector.getConnectionsOpenMax();
+    }
+
+    @Override
+    public int getMaxThreadCount() {
+        return threadPool.getMaxThreads();
+    }
+
+    @Override
+    public int getOpenConnectionCount() {
+        return connector.getConnectionsOpen();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return jobs.size();
+    }
+
+    /**
+     * @return the number of requests made on connections that have since closed, Jetty counts them as they close
+     */
+    @Override
+    public long getRequestCount() {
+        return connector.getRequests();
+    }
+
+    @Override
+    public int getThreadCount() {
+        return threadPool.getThreads();
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return threadPool.isLowOnThreads();
+    }
+
+    @Override
+    public boolean isStatsOn() {
+        return connector.getStatsOn();
+    }
+}
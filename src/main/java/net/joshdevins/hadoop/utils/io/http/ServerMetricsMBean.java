@@ -0,0 +1,33 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+/**
+ * JMX view of {@link ServerMetrics}.
+ * 
+ * @author Josh Devins
+ */
+public interface ServerMetricsMBean {
+
+    long getConnectionCount();
+
+    long getConnectionDurationMaxMillis();
+
+    long getConnectionDurationMeanMillis();
+
+    int getIdleThreadCount();
+
+    int getMaxOpenConnectionCount();
+
+    int getMaxThreadCount();
+
+    int getOpenConnectionCount();
+
+    int getQueueSize();
+
+    long getRequestCount();
+
+    int getThreadCount();
+
+    boolean isLowOnThreads();
+
+    boolean isStatsOn();
+}
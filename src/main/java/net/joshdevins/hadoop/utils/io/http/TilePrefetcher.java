@@ -0,0 +1,201 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.joshdevins.hadoop.utils.io.http.DataSet.ValueCallback;
+
+import org.apache.commons.lang.Validate;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.partition.TileKeys;
+import org.eclipse.jetty.util.log.Log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Reads the tiles around a tile that has just been served into the {@link ValueCache}, in the background, since map
+ * clients almost always ask for those next. With {@link TileKeys tile keys} the neighbours are mostly in the same part
+ * and close by in its data file, so they are read in one forward pass.
+ * 
+ * <p>
+ * Prefetching is strictly best effort. The number of tiles waiting to be read is bounded by a budget, and reads are
+ * admitted by the same {@link AdmissionControl} as requests, but only while the server has reads to spare. Anything
+ * over the budget, or waiting when the server gets busy, is dropped.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+final class TilePrefetcher {
+
+    private final ValueCache valueCache;
+
+    private final AdmissionControl admission;
+
+    private final ExecutorService executor;
+
+    private final int budget;
+
+    /**
+     * Prefetching stops while this many reads are in flight.
+     */
+    private final int maxInFlight;
+
+    /**
+     * Tiles waiting to be read, counted against the budget.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param budget
+     *        maximum number of tiles waiting to be read at once
+     * @param maxInFlight
+     *        number of reads in flight across the server at which prefetching stops
+     */
+    TilePrefetcher(final ValueCache valueCache, final AdmissionControl admission, final int threads,
+            final int budget, final int maxInFlight) {
+
+        Validate.notNull(valueCache, "Prefetching needs a value cache");
+        Validate.isTrue(threads > 0, "Number of prefetch threads must be positive");
+
+        this.valueCache = valueCache;
+        this.admission = admission;
+        this.budget = budget;
+        this.maxInFlight = maxInFlight;
+
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat(
+                "dataset-prefetch-%d").build());
+    }
+
+    /**
+     * @return the number of tiles not prefetched because of the budget or the load on the server
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Queues up the neighbours of a tile that are not already cached or known to be missing. Never blocks.
+     * 
+     * @param dataset
+     *        the dataset the tile was served from, which must be acquired by the caller
+     */
+    public void prefetch(final DataSet dataset, final String filename) {
+
+        List<String> neighbours = TileKeys.getNeighbours(filename);
+        if (neighbours.isEmpty()) {
+            return;
+        }
+
+        final String cacheKey = dataset.getCacheKey();
+        final SortedSet<Text> keys = new TreeSet<Text>();
+
+        for (String neighbour : neighbours) {
+            if (!valueCache.contains(cacheKey, neighbour) && !dataset.isKnownNotFoundFile(neighbour)) {
+                keys.add(new Text(neighbour));
+            }
+        }
+
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        if (admission.getInFlight() >= maxInFlight || !reserve(keys.size())) {
+            dropped.addAndGet(keys.size());
+            return;
+        }
+
+        if (!dataset.acquire()) {
+            pending.addAndGet(-keys.size());
+            return;
+        }
+
+        // neighbours of a popular tile are likely to be popular too
+        final int frequency = valueCache.frequency(cacheKey, filename);
+
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        read(dataset, keys, frequency);
+                    } finally {
+                        pending.addAndGet(-keys.size());
+                        dataset.release();
+                    }
+                }
+            });
+
+        } catch (RejectedExecutionException ree) {
+
+            // shut down
+            pending.addAndGet(-keys.size());
+            dataset.release();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "TilePrefetcher [pending=" + pending + ", budget=" + budget + ", maxInFlight=" + maxInFlight
+                + ", dropped=" + dropped + "]";
+    }
+
+    private void read(final DataSet dataset, final SortedSet<Text> keys, final int frequency) {
+
+        // the server got busy while this was waiting
+        if (admission.getInFlight() >= maxInFlight || !admission.tryAdmit(dataset.getName())) {
+            dropped.addAndGet(keys.size());
+            return;
+        }
+
+        try {
+            List<Text> missing = dataset.getValues(keys, new ValueCallback() {
+
+                @Override
+                public void found(final Text key, final ByteBuffer value) {
+                    valueCache.prefetch(dataset.getCacheKey(), key.toString(), value, frequency);
+                }
+            });
+
+            for (Text key : missing) {
+                dataset.addNotFoundFile(key.toString());
+            }
+
+        } catch (IOException ioe) {
+            Log.warn("Could not prefetch tiles: dataset=" + dataset.getName() + " tiles=" + keys, ioe);
+
+        } finally {
+            admission.finish(dataset.getName());
+        }
+    }
+
+    private boolean reserve(final int tiles) {
+
+        while (true) {
+
+            int current = pending.get();
+            if (current + tiles > budget) {
+                return false;
+            }
+
+            if (pending.compareAndSet(current, current + tiles)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * An in-memory cache of file contents served by a {@link JettyBloomMapFileHandler}, keyed by dataset and filename and
+ * bounded by the number of bytes held.
+ * 
+ * <p>
+ * Entries are evicted in least-recently-used order, but a new entry is only admitted if it has been requested more often
+ * recently than the entry it would push out (as estimated by a {@link FrequencySketch}). This keeps one-off scans over a
+ * dataset from flushing out the small set of very popular files. The cache is split into segments by key hash, each
+ * with its own lock, to keep contention down.
+ * </p>
+ * 
+ * <p>
+ * Files read ahead of being requested can be offered with {@link #prefetch(String, String, ByteBuffer, int)}. They are
+ * admitted as if they were as popular as the file that led to them being read, and are counted the first time they are
+ * served.
+ * </p>
+ * 
+ * <p>
+ * Values can optionally be held in direct {@link ByteBuffer}s so that a large cache does not add to the heap that the
+ * garbage collector has to walk.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class ValueCache {
+
+    /**
+     * Rough per-entry overhead of the map entry, key and buffer, counted against the size of the cache.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final int NUM_SEGMENTS = 16;
+
+    private static final class Key {
+
+        private final String dataset;
+
+        private final String filename;
+
+        private Key(final String dataset, final String filename) {
+            this.dataset = dataset;
+            this.filename = filename;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return dataset.equals(other.dataset) && filename.equals(other.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * dataset.hashCode() + filename.hashCode();
+        }
+    }
+
+    private final class Segment {
+
+        private final LinkedHashMap<Key, ByteBuffer> entries = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+
+        /**
+         * Prefetched entries that haven't been served yet.
+         */
+        private final Set<Key> prefetched = new HashSet<Key>();
+
+        private final FrequencySketch sketch;
+
+        private final long capacity;
+
+        private long size;
+
+        private Segment(final long capacity, final int expectedEntries) {
+            this.capacity = capacity;
+            sketch = new FrequencySketch(expectedEntries);
+        }
+
+        private synchronized ByteBuffer get(final Key key) {
+
+            sketch.increment(key);
+            ByteBuffer value = entries.get(key);
+
+            if (value != null && prefetched.remove(key)) {
+                prefetchHits.incrementAndGet();
+            }
+
+            return value;
+        }
+
+        private synchronized boolean contains(final Key key) {
+            return entries.containsKey(key);
+        }
+
+        private synchronized int frequency(final Key key) {
+            return sketch.frequency(key);
+        }
+
+        private synchronized void addFilenames(final String dataset, final List<String> filenames) {
+
+            for (Key key : entries.keySet()) {
+                if (key.dataset.equals(dataset)) {
+                    filenames.add(key.filename);
+                }
+            }
+        }
+
+        private synchronized void invalidate(final String dataset) {
+
+            Iterator<Map.Entry<Key, ByteBuffer>> iter = entries.entrySet().iterator();
+            while (iter.hasNext()) {
+
+                Map.Entry<Key, ByteBuffer> entry = iter.next();
+                if (entry.getKey().dataset.equals(dataset)) {
+                    size -= weigh(entry.getValue());
+                    prefetched.remove(entry.getKey());
+                    iter.remove();
+                }
+            }
+        }
+
+        private synchronized void invalidateAll() {
+            entries.clear();
+            prefetched.clear();
+            size = 0;
+        }
+
+        /**
+         * @param copy
+         *        copy the value once it has been admitted, rather than holding on to it
+         * @param minFrequency
+         *        how popular the value is taken to be at least, when deciding whether to admit it
+         * @param prefetch
+         *        the value was read ahead of being requested
+         */
+        private synchronized boolean put(final Key key, final ByteBuffer value, final boolean copy,
+                final int minFrequency, final boolean prefetch) {
+
+            long weight = weigh(value);
+            if (weight > capacity) {
+                return false;
+            }
+
+            // pick the victims before pushing anything out, the previous value only makes way for the new one
+            int frequency = Math.max(minFrequency, sketch.frequency(key));
+            List<Key> victims = new ArrayList<Key>();
+            long excess = size + weight - capacity;
+
+            Iterator<Map.Entry<Key, ByteBuffer>> iter = entries.entrySet().iterator();
+            while (excess > 0) {
+
+                // least recently used is first, only push it out if the new entry is more popular
+                Map.Entry<Key, ByteBuffer> victim = iter.next();
+                excess -= weigh(victim.getValue());
+
+                if (victim.getKey().equals(key)) {
+                    continue;
+                }
+
+                if (frequency <= sketch.frequency(victim.getKey())) {
+                    rejections.incrementAndGet();
+                    return false;
+                }
+
+                victims.add(victim.getKey());
+            }
+
+            for (Key victim : victims) {
+                size -= weigh(entries.remove(victim));
+                prefetched.remove(victim);
+                evictions.incrementAndGet();
+            }
+
+            ByteBuffer previous = entries.remove(key);
+            if (previous != null) {
+                size -= weigh(previous);
+                prefetched.remove(key);
+            }
+
+            entries.put(key, copy ? copy(value) : value);
+            size += weight;
+
+            if (prefetch) {
+                prefetched.add(key);
+                prefetches.incrementAndGet();
+            }
+
+            return true;
+        }
+
+        private synchronized long size() {
+            return size;
+        }
+
+        private synchronized int count() {
+            return entries.size();
+        }
+    }
+
+    private final Segment[] segments;
+
+    private final int maxEntrySize;
+
+    private final boolean offHeap;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    private final AtomicLong prefetches = new AtomicLong();
+
+    private final AtomicLong prefetchHits = new AtomicLong();
+
+    /**
+     * @param capacity
+     *        maximum number of bytes to hold, including a small per-entry overhead
+     * @param maxEntrySize
+     *        values bigger than this are never cached
+     * @param offHeap
+     *        hold values in direct buffers instead of on the heap
+     */
+    public ValueCache(final long capacity, final int maxEntrySize, final boolean offHeap) {
+        this(capacity, maxEntrySize, offHeap, NUM_SEGMENTS);
+    }
+
+    ValueCache(final long capacity, final int maxEntrySize, final boolean offHeap, final int numSegments) {
+
+        Validate.isTrue(capacity > 0, "Cache capacity must be positive");
+        Validate.isTrue(maxEntrySize > 0, "Maximum entry size must be positive");
+        Validate.isTrue(numSegments > 0, "Number of segments must be positive");
+
+        this.maxEntrySize = maxEntrySize;
+        this.offHeap = offHeap;
+
+        // track a few times more keys than could possibly fit, assuming small entries
+        long segmentCapacity = Math.max(1, capacity / numSegments);
+        int expectedEntries = (int) Math.min(1 << 20, segmentCapacity / 1024 * 4);
+
+        segments = new Segment[numSegments];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(segmentCapacity, expectedEntries);
+        }
+    }
+
+    /**
+     * Gets the cached contents of a file. The returned buffer must not be modified, but its position and limit are the
+     * caller's to use.
+     * 
+     * @return the contents or null if not cached
+     */
+    public ByteBuffer get(final String dataset, final String filename) {
+
+        Key key = new Key(dataset, filename);
+        ByteBuffer value = segmentFor(key).get(key);
+
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return value.duplicate();
+    }
+
+    /**
+     * Checks for a file without counting it as a request for it.
+     * 
+     * @return true if the contents of the file are cached
+     */
+    public boolean contains(final String dataset, final String filename) {
+
+        Key key = new Key(dataset, filename);
+        return segmentFor(key).contains(key);
+    }
+
+    /**
+     * @return an estimate of how often a file has been requested recently
+     */
+    public int frequency(final String dataset, final String filename) {
+
+        Key key = new Key(dataset, filename);
+        return segmentFor(key).frequency(key);
+    }
+
+    /**
+     * @return the names of all of the cached files of a dataset, in no particular order
+     */
+    public List<String> getFilenames(final String dataset) {
+
+        List<String> filenames = new ArrayList<String>();
+        for (Segment segment : segments) {
+            segment.addFilenames(dataset, filenames);
+        }
+
+        return filenames;
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of prefetched files that were cached
+     */
+    public long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    /**
+     * @return the number of prefetched files that were served from the cache
+     */
+    public long getPrefetchHitCount() {
+        return prefetchHits.get();
+    }
+
+    /**
+     * @return the number of times a value was not cached because it was less popular than what it would have replaced
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    /**
+     * Removes all cached files of a dataset.
+     */
+    public void invalidate(final String dataset) {
+
+        for (Segment segment : segments) {
+            segment.invalidate(dataset);
+        }
+    }
+
+    public void invalidateAll() {
+
+        for (Segment segment : segments) {
+            segment.invalidateAll();
+        }
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Offers the contents of a file to the cache. The bytes may be held on to directly, so must not be modified
+     * afterwards.
+     * 
+     * @return true if the contents were cached
+     */
+    public boolean put(final String dataset, final String filename, final byte[] bytes, final int length) {
+
+        if (length > maxEntrySize) {
+            return false;
+        }
+
+        ByteBuffer value = ByteBuffer.wrap(bytes, 0, length).slice();
+
+        Key key = new Key(dataset, filename);
+        return segmentFor(key).put(key, value, offHeap, 0, false);
+    }
+
+    /**
+     * Offers the contents of a file to the cache. The remaining bytes of the buffer are copied, and only if the contents
+     * are admitted, so the buffer can be a view onto memory that is not owned by the caller.
+     * 
+     * @return true if the contents were cached
+     */
+    public boolean put(final String dataset, final String filename, final ByteBuffer value) {
+
+        if (value.remaining() > maxEntrySize) {
+            return false;
+        }
+
+        Key key = new Key(dataset, filename);
+        return segmentFor(key).put(key, value.slice(), true, 0, false);
+    }
+
+    /**
+     * Offers the contents of a file that was read ahead of being requested, copied in the same way as
+     * {@link #put(String, String, ByteBuffer)}.
+     * 
+     * @param frequency
+     *        how popular the file is expected to be, usually the {@link #frequency(String, String)} of the file that
+     *        led to it being read
+     * @return true if the contents were cached
+     */
+    public boolean prefetch(final String dataset, final String filename, final ByteBuffer value, final int frequency) {
+
+        if (value.remaining() > maxEntrySize) {
+            return false;
+        }
+
+        Key key = new Key(dataset, filename);
+        return segmentFor(key).put(key, value.slice(), true, frequency, true);
+    }
+
+    /**
+     * @return the number of cached files
+     */
+    public int size() {
+
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.count();
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of bytes held, including per-entry overhead
+     */
+    public long sizeInBytes() {
+
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "ValueCache [entries=" + size() + ", bytes=" + sizeInBytes() + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + ", rejections=" + rejections + ", prefetches=" + prefetches
+                + ", prefetchHits=" + prefetchHits + ", offHeap=" + offHeap + "]";
+    }
+
+    private Segment segmentFor(final Key key) {
+
+        int h = key.hashCode();
+        h ^= h >>> 16;
+
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private ByteBuffer copy(final ByteBuffer value) {
+
+        ByteBuffer copy = offHeap ? ByteBuffer.allocateDirect(value.remaining()) : ByteBuffer.allocate(value
+                .remaining());
+        copy.put(value.duplicate());
+        copy.flip();
+
+        return copy;
+    }
+
+    private static long weigh(final ByteBuffer value) {
+        return value.capacity() + ENTRY_OVERHEAD;
+    }
+}
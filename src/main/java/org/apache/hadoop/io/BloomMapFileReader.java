@@ -2,8 +2,11 @@ package org.apache.hadoop.io;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.bloom.DynamicBloomFilter;
@@ -15,31 +18,256 @@ import org.apache.hadoop.util.bloom.Key;
  * {@link #probablyHasKey(WritableComparable)}. This is a straight copy of {@link BloomMapFile.Reader} with the fix
  * applied.
  * 
+ * <p>
+ * When {@value #POSITIONAL_READS_KEY} is set, and the data file is not compressed, lookups are done with positional
+ * reads against an immutable copy of the index instead of through the single seekable data stream of
+ * {@link MapFile.Reader}. The index and Bloom filter are then shared by all threads and {@link #get(WritableComparable,
+ * Writable)} no longer needs to hold the lock on the reader, so concurrent lookups on one reader scale with cores.
+ * Values can then also be located and read as raw bytes, and a data file on the local filesystem is memory mapped
+ * (unless {@value #MAPPED_READS_KEY} is false) so that those bytes need not be copied at all.
+ * </p>
+ * 
+ * <p>
+ * With {@value #COMPACT_INDEX_KEY} set, the index used by positional reads is a {@link CompactMapFileIndex}: the
+ * serialized keys prefix compressed into a single buffer, optionally off of the heap (see
+ * {@value #COMPACT_INDEX_OFF_HEAP_KEY}), instead of an object per key. This is worth it with many readers open at once.
+ * With {@value #LAZY_INDEX_KEY} set, the index is not read until a lookup first needs it.
+ * </p>
+ * 
+ * <p>
+ * A reader with positional reads can also be {@link #pin(boolean) pinned}, which loads the whole data file into memory
+ * so that lookups never touch the filesystem again.
+ * </p>
+ * 
+ * <p>
+ * Positional reads need none of the streams of {@link MapFile.Reader}, so they are only opened if one of its stream
+ * based methods, like {@link #next(WritableComparable, Writable)}, is called. Opening a reader then takes just the
+ * Bloom filter, the header of the data file, whose stream is kept for the positional reads, and the index.
+ * </p>
+ * 
  * @see <a href="https://issues.apache.org/jira/browse/HADOOP-6546">HADOOP-6546</a>
  * 
  * @author Josh Devins
  */
 public class BloomMapFileReader extends MapFile.Reader {
 
+    /**
+     * Configuration key to enable thread-safe, positional read lookups.
+     */
+    public static final String POSITIONAL_READS_KEY = "io.mapfile.bloom.reader.pread";
+
+    /**
+     * Configuration key to memory map data files on the local filesystem, when positional reads are enabled.
+     */
+    public static final String MAPPED_READS_KEY = "io.mapfile.bloom.reader.mmap";
+
+    /**
+     * Configuration key to hold the index as prefix compressed, serialized keys, when positional reads are enabled.
+     */
+    public static final String COMPACT_INDEX_KEY = "io.mapfile.bloom.reader.index.compact";
+
+    /**
+     * Configuration key to hold a compact index in a direct buffer, off of the heap.
+     */
+    public static final String COMPACT_INDEX_OFF_HEAP_KEY = "io.mapfile.bloom.reader.index.offheap";
+
+    /**
+     * Configuration key to put off loading the index used by positional reads until a lookup first needs it, for
+     * readers whose values are mostly located by other means.
+     */
+    public static final String LAZY_INDEX_KEY = "io.mapfile.bloom.reader.index.lazy";
+
+    /**
+     * An index that is only read on the first search.
+     */
+    private static final class LazyIndex extends MapFileIndex {
+
+        private final FileSystem fs;
+
+        private final String dirName;
+
+        private final WritableComparator comparator;
+
+        private final Configuration conf;
+
+        private volatile MapFileIndex index;
+
+        private LazyIndex(final FileSystem fs, final String dirName, final WritableComparator comparator,
+                final Configuration conf) {
+
+            this.fs = fs;
+            this.dirName = dirName;
+            this.comparator = comparator;
+            this.conf = conf;
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public int findEntry(final WritableComparable key) throws IOException {
+            return load().findEntry(key);
+        }
+
+        /**
+         * Only called after a search, so the index is loaded.
+         */
+        @Override
+        public long getPosition(final int entry) {
+            return index.getPosition(entry);
+        }
+
+        @Override
+        public int size() {
+            return index.size();
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        int findEntry(final WritableComparable key, final byte[] serialized, final int length) throws IOException {
+            return load().findEntry(key, serialized, length);
+        }
+
+        private boolean isLoaded() {
+            return index != null;
+        }
+
+        private MapFileIndex load() throws IOException {
+
+            MapFileIndex loaded = index;
+            if (loaded == null) {
+                synchronized (this) {
+
+                    loaded = index;
+                    if (loaded == null) {
+                        loaded = readIndex(fs, dirName, comparator, conf);
+                        index = loaded;
+                    }
+                }
+            }
+
+            return loaded;
+        }
+    }
+
     private DynamicBloomFilter bloomFilter;
-    private final DataOutputBuffer buf = new DataOutputBuffer();
-    private final Key bloomKey = new Key();
+    private FSDataInputStream positionalData;
+    private MapFileRecordLocator locator;
+    private MappedDataFile mappedData;
+    private volatile PinnedDataFile pinnedData;
+
+    private FileSystem fs;
+    private String dirName;
+    private WritableComparator streamComparator;
+    private Configuration conf;
+    private Path dataPath;
+    private long firstRecord;
+    private Class<?> keyClass;
+    private Class<?> valueClass;
+
+    /**
+     * Set by {@link #open(FileSystem, String, WritableComparator, Configuration)}, which is called from the super
+     * constructor, so this must not have an initializer.
+     */
+    private boolean streamsOpen;
+
+    private final AtomicLong bloomProbes = new AtomicLong();
+    private final AtomicLong bloomFalsePositives = new AtomicLong();
 
     public BloomMapFileReader(final FileSystem fs, final String dirName, final Configuration conf) throws IOException {
-        super(fs, dirName, conf);
-        initBloomFilter(fs, dirName, conf);
+        this(fs, dirName, null, conf);
     }
 
     public BloomMapFileReader(final FileSystem fs, final String dirName, final WritableComparator comparator,
             final Configuration conf) throws IOException {
-        super(fs, dirName, comparator, conf);
-        initBloomFilter(fs, dirName, conf);
+        this(fs, dirName, comparator, conf, true);
     }
 
     public BloomMapFileReader(final FileSystem fs, final String dirName, final WritableComparator comparator,
             final Configuration conf, final boolean open) throws IOException {
-        super(fs, dirName, comparator, conf, open);
+        super(fs, dirName, comparator, conf, open && !conf.getBoolean(POSITIONAL_READS_KEY, false));
+
+        this.dirName = dirName;
+        this.conf = conf;
+        streamComparator = comparator;
+
         initBloomFilter(fs, dirName, conf);
+        initPositionalReads(fs, dirName, comparator, conf, open);
+    }
+
+    @Override
+    protected synchronized void open(final FileSystem fs, final String dirName, final WritableComparator comparator,
+            final Configuration conf) throws IOException {
+        super.open(fs, dirName, comparator, conf);
+        streamsOpen = true;
+    }
+
+    @Override
+    public Class<?> getKeyClass() {
+        return keyClass == null ? super.getKeyClass() : keyClass;
+    }
+
+    @Override
+    public Class<?> getValueClass() {
+        return valueClass == null ? super.getValueClass() : valueClass;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        openStreams();
+        super.reset();
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public synchronized WritableComparable midKey() throws IOException {
+        openStreams();
+        return super.midKey();
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public synchronized void finalKey(final WritableComparable key) throws IOException {
+        openStreams();
+        super.finalKey(key);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public synchronized boolean seek(final WritableComparable key) throws IOException {
+        openStreams();
+        return super.seek(key);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public synchronized boolean next(final WritableComparable key, final Writable val) throws IOException {
+        openStreams();
+        return super.next(key, val);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public synchronized WritableComparable getClosest(final WritableComparable key, final Writable val,
+            final boolean before) throws IOException {
+        openStreams();
+        return super.getClosest(key, val, before);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (streamsOpen) {
+            super.close();
+        }
+
+        if (positionalData != null) {
+            positionalData.close();
+        }
+
+        if (mappedData != null) {
+            mappedData.close();
+        }
+
+        pinnedData = null;
     }
 
     /**
@@ -50,13 +278,131 @@ public class BloomMapFileReader extends MapFile.Reader {
      */
     @SuppressWarnings("rawtypes")
     @Override
-    public synchronized Writable get(final WritableComparable key, final Writable val) throws IOException {
+    public Writable get(final WritableComparable key, final Writable val) throws IOException {
+
+        if (!probablyHasKey(key)) {
+            return null;
+        }
+
+        if (locator == null) {
+            synchronized (this) {
+                openStreams();
+                return countFalsePositive(super.get(key, val));
+            }
+        }
+
+        PinnedDataFile pinned = pinnedData;
+        ValueLocation location = countFalsePositive(pinned == null ? locator.locate(key) : pinned.locate(key));
+        if (location == null) {
+            return null;
+        }
+
+        byte[] bytes;
+        if (pinned == null) {
+            bytes = locator.read(location);
+
+        } else {
+            bytes = new byte[location.getLength()];
+            pinned.slice(location).get(bytes);
+        }
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, location.getLength());
+        val.readFields(in);
+
+        return val;
+    }
+
+    /**
+     * Finds where the value for a key is stored in the data file, without reading it. Only available with positional
+     * reads.
+     * 
+     * @return the location of the serialized value or null if the key is not in this file
+     * @throws IllegalStateException
+     *         if positional reads are not enabled
+     */
+    @SuppressWarnings("rawtypes")
+    public ValueLocation locate(final WritableComparable key) throws IOException {
+
+        if (locator == null) {
+            throw new IllegalStateException("Positional reads are not enabled");
+        }
 
         if (!probablyHasKey(key)) {
             return null;
         }
 
-        return super.get(key, val);
+        PinnedDataFile pinned = pinnedData;
+        return countFalsePositive(pinned == null ? locator.locate(key) : pinned.locate(key));
+    }
+
+    /**
+     * Reads the serialized value at a location found by {@link #locate(WritableComparable)}. For a pinned data file or
+     * one on the local filesystem this is a read-only view straight onto the file in memory, otherwise the bytes are
+     * read onto the heap.
+     * 
+     * @return a buffer positioned at the start of the serialized value
+     */
+    public ByteBuffer read(final ValueLocation location) throws IOException {
+
+        PinnedDataFile pinned = pinnedData;
+        if (pinned != null) {
+            return pinned.slice(location);
+        }
+
+        if (mappedData != null) {
+            return mappedData.slice(location.getPosition(), location.getLength());
+        }
+
+        return ByteBuffer.wrap(locator.read(location));
+    }
+
+    /**
+     * Loads the whole data file into memory, along with a table of where each record starts, so that lookups are
+     * served from memory from then on. A data file on the local filesystem is memory mapped and loaded, rather than
+     * copied. Only available with positional reads, and for data files of at most 2GB.
+     * 
+     * @param offHeap
+     *        copy a data file that is not on the local filesystem into a direct buffer, off of the heap
+     * @return the number of bytes now held in memory
+     * @throws IllegalStateException
+     *         if positional reads are not enabled
+     */
+    public synchronized long pin(final boolean offHeap) throws IOException {
+
+        if (locator == null) {
+            throw new IllegalStateException("Positional reads are not enabled");
+        }
+
+        if (pinnedData == null) {
+            pinnedData = PinnedDataFile.load(fs, dataPath, positionalData, firstRecord, locator.getComparator(),
+                    offHeap);
+        }
+
+        return pinnedData.sizeInBytes();
+    }
+
+    /**
+     * Drops a pinned data file, lookups go back to the filesystem.
+     */
+    public synchronized void unpin() {
+        pinnedData = null;
+    }
+
+    /**
+     * @return the length of the data file
+     */
+    public long getDataLength() throws IOException {
+        return fs.getFileStatus(dataPath).getLen();
+    }
+
+    /**
+     * @return the number of bytes held in memory by a pinned data file, 0 if not pinned
+     */
+    public long getPinnedSize() {
+
+        PinnedDataFile pinned = pinnedData;
+        return pinned == null ? 0 : pinned.sizeInBytes();
     }
 
     /**
@@ -85,12 +431,79 @@ public class BloomMapFileReader extends MapFile.Reader {
             return true;
         }
 
-        buf.reset();
+        bloomProbes.incrementAndGet();
+
+        // buffers are not shared so that concurrent lookups are safe
+        DataOutputBuffer buf = new DataOutputBuffer();
         key.write(buf);
 
         // patch from HADOOP-6546
-        bloomKey.set(BloomMapFileWriter.byteArrayForBloomKey(buf), 1.0);
-        return bloomFilter.membershipTest(bloomKey);
+        return bloomFilter.membershipTest(new Key(BloomMapFileWriter.byteArrayForBloomKey(buf), 1.0));
+    }
+
+    /**
+     * @return the number of lookups that passed the Bloom filter but were not in the file
+     */
+    public long getBloomFalsePositiveCount() {
+        return bloomFalsePositives.get();
+    }
+
+    /**
+     * @return the number of times the Bloom filter has been checked
+     */
+    public long getBloomProbeCount() {
+        return bloomProbes.get();
+    }
+
+    /**
+     * @return true if lookups search a {@link CompactMapFileIndex}
+     */
+    public boolean isCompactIndex() {
+
+        if (locator == null) {
+            return false;
+        }
+
+        MapFileIndex index = locator.getIndex();
+        if (index instanceof LazyIndex) {
+            index = ((LazyIndex) index).index;
+        }
+
+        return index instanceof CompactMapFileIndex;
+    }
+
+    /**
+     * @return true if the index used by positional reads has been loaded, it is only put off with
+     *         {@value #LAZY_INDEX_KEY}
+     */
+    public boolean isIndexLoaded() {
+
+        if (locator == null) {
+            return false;
+        }
+
+        return !(locator.getIndex() instanceof LazyIndex) || ((LazyIndex) locator.getIndex()).isLoaded();
+    }
+
+    /**
+     * @return true if values are read from a memory mapping of the data file
+     */
+    public boolean isMappedReads() {
+        return mappedData != null;
+    }
+
+    /**
+     * @return true if the whole data file is held in memory
+     */
+    public boolean isPinned() {
+        return pinnedData != null;
+    }
+
+    /**
+     * @return true if lookups are done with thread-safe positional reads
+     */
+    public boolean isPositionalReads() {
+        return locator != null;
     }
 
     private void initBloomFilter(final FileSystem fs, final String dirName, final Configuration conf)
@@ -101,4 +514,108 @@ public class BloomMapFileReader extends MapFile.Reader {
         bloomFilter.readFields(in);
         in.close();
     }
+
+    /**
+     * Opens the streams of {@link MapFile.Reader} the first time one of its stream based methods is called, when they
+     * were put off for positional reads.
+     */
+    private void openStreams() throws IOException {
+
+        if (!streamsOpen) {
+            open(fs, dirName, streamComparator, conf);
+        }
+    }
+
+    private void initPositionalReads(final FileSystem fs, final String dirName, final WritableComparator comparator,
+            final Configuration conf, final boolean open) throws IOException {
+
+        this.fs = fs;
+        dataPath = new Path(dirName, MapFile.DATA_FILE_NAME);
+
+        if (!conf.getBoolean(POSITIONAL_READS_KEY, false)) {
+            return;
+        }
+
+        // the header is read through the stream that is then kept for positional reads, they don't move its position
+        final FSDataInputStream in = fs.open(dataPath, conf.getInt("io.file.buffer.size", 4096));
+        SequenceFile.Reader header;
+        try {
+            header = new SequenceFile.Reader(fs, dataPath, conf) {
+
+                @Override
+                protected FSDataInputStream openFile(final FileSystem fs, final Path file, final int bufferSize,
+                        final long length) {
+                    return in;
+                }
+            };
+
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+
+        // compressed values can't be located by position, so stick with the standard stream based lookups
+        if (header.isCompressed()) {
+            header.close();
+
+            if (open) {
+                open(fs, dirName, comparator, conf);
+            }
+
+            return;
+        }
+
+        // an uncompressed header reader holds nothing but the stream, which is closed along with this reader
+        positionalData = in;
+        keyClass = header.getKeyClass();
+        valueClass = header.getValueClass();
+
+        // records, or a sync mark, start straight after the header
+        firstRecord = header.getPosition();
+
+        WritableComparator keyComparator = comparator;
+        if (keyComparator == null) {
+            keyComparator = WritableComparator.get(keyClass.asSubclass(WritableComparable.class));
+        }
+
+        MapFileIndex index;
+        try {
+            if (conf.getBoolean(LAZY_INDEX_KEY, false)) {
+                index = new LazyIndex(fs, dirName, keyComparator, conf);
+            } else {
+                index = readIndex(fs, dirName, keyComparator, conf);
+            }
+
+        } catch (IOException ioe) {
+            in.close();
+            throw ioe;
+        }
+
+        locator = new MapFileRecordLocator(positionalData, index, keyComparator, conf.getInt("io.file.buffer.size",
+                4096));
+
+        if (conf.getBoolean(MAPPED_READS_KEY, true)) {
+            mappedData = MappedDataFile.open(fs, dataPath);
+        }
+    }
+
+    private static MapFileIndex readIndex(final FileSystem fs, final String dirName,
+            final WritableComparator comparator, final Configuration conf) throws IOException {
+
+        if (conf.getBoolean(COMPACT_INDEX_KEY, false)) {
+            return CompactMapFileIndex.read(fs, dirName, comparator, conf, conf.getBoolean(COMPACT_INDEX_OFF_HEAP_KEY,
+                    false));
+        }
+
+        return MapFileIndex.read(fs, dirName, comparator, conf);
+    }
+
+    private <T> T countFalsePositive(final T found) {
+
+        if (found == null && bloomFilter != null) {
+            bloomFalsePositives.incrementAndGet();
+        }
+
+        return found;
+    }
 }
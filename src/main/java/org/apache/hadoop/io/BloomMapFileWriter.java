@@ -32,6 +32,8 @@ public class BloomMapFileWriter extends Writer {
     private final DataOutputBuffer buf = new DataOutputBuffer();
     private final FileSystem fs;
     private final Path dir;
+    private long recordCount;
+    private byte[] firstKey;
 
     @SuppressWarnings("rawtypes")
     public BloomMapFileWriter(final Configuration conf, final FileSystem fs, final String dirName,
@@ -123,6 +125,12 @@ public class BloomMapFileWriter extends Writer {
         // patch from HADOOP-6546
         bloomKey.set(byteArrayForBloomKey(buf), 1.0);
         bloomFilter.add(bloomKey);
+
+        // the buffer holds the last key until the next append
+        if (recordCount++ == 0) {
+            firstKey = new byte[buf.getLength()];
+            System.arraycopy(buf.getData(), 0, firstKey, 0, firstKey.length);
+        }
     }
 
     @Override
@@ -134,6 +142,35 @@ public class BloomMapFileWriter extends Writer {
         out.close();
     }
 
+    /**
+     * @return the serialized first key appended, or null if nothing has been appended
+     */
+    public synchronized byte[] getFirstKey() {
+        return firstKey;
+    }
+
+    /**
+     * @return the serialized last key appended, or null if nothing has been appended
+     */
+    public synchronized byte[] getLastKey() {
+
+        if (recordCount == 0) {
+            return null;
+        }
+
+        byte[] lastKey = new byte[buf.getLength()];
+        System.arraycopy(buf.getData(), 0, lastKey, 0, lastKey.length);
+
+        return lastKey;
+    }
+
+    /**
+     * @return the number of records appended
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
     private synchronized void initBloomFilter(final Configuration conf) {
         numKeys = conf.getInt("io.mapfile.bloom.size", 1024 * 1024);
         // vector size should be <code>-kn / (ln(1 - c^(1/k)))</code> bits for
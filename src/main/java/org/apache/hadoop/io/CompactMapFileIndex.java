@@ -0,0 +1,335 @@
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A {@link MapFileIndex} that holds the serialized index keys, prefix compressed, in one contiguous buffer and searches
+ * them with raw comparisons. Compared to deserialized keys this is a handful of objects per index instead of a few per
+ * key, and a search never deserializes anything.
+ * 
+ * <p>
+ * Keys are stored in runs of {@value #RESTART_INTERVAL}. The first key of a run is stored in full and each of the others
+ * as the number of leading bytes it shares with the key before it followed by the rest of its bytes. A search is a
+ * binary search over the first keys of the runs, then a scan through a single run rebuilding each key as it goes. The
+ * buffer can be held off of the heap.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class CompactMapFileIndex extends MapFileIndex {
+
+    /**
+     * Number of keys in each run, the first of which is stored in full.
+     */
+    private static final int RESTART_INTERVAL = 16;
+
+    private final WritableComparator comparator;
+
+    private final boolean comparatorThreadSafe;
+
+    private final ByteBuffer keys;
+
+    /**
+     * Offset in the buffer of the first key of each run.
+     */
+    private final int[] restarts;
+
+    private final long[] positions;
+
+    /**
+     * Length of the longest key, so that a scratch buffer never needs to grow.
+     */
+    private final int maxKeyLength;
+
+    private CompactMapFileIndex(final WritableComparator comparator, final ByteBuffer keys, final int[] restarts,
+            final long[] positions, final int maxKeyLength) {
+
+        this.comparator = comparator;
+        this.keys = keys;
+        this.restarts = restarts;
+        this.positions = positions;
+        this.maxKeyLength = maxKeyLength;
+
+        comparatorThreadSafe = MapFileRecordLocator.isThreadSafe(comparator);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public int findEntry(final WritableComparable key) throws IOException {
+
+        DataOutputBuffer keyBuffer = new DataOutputBuffer();
+        key.write(keyBuffer);
+
+        return findEntry(key, keyBuffer.getData(), keyBuffer.getLength());
+    }
+
+    @Override
+    public long getPosition(final int entry) {
+        return positions[entry];
+    }
+
+    /**
+     * @return true if the keys are held in a direct buffer
+     */
+    public boolean isOffHeap() {
+        return keys.isDirect();
+    }
+
+    @Override
+    public int size() {
+        return positions.length;
+    }
+
+    /**
+     * @return the number of bytes held by the keys, positions and run offsets
+     */
+    public long sizeInBytes() {
+        return keys.capacity() + 8L * positions.length + 4L * restarts.length;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    int findEntry(final WritableComparable key, final byte[] serialized, final int length) {
+
+        byte[] scratch = new byte[maxKeyLength];
+        int[] cursor = new int[1];
+
+        // last run starting with a key less than or equal to the key
+        int low = 0;
+        int high = restarts.length - 1;
+
+        while (low <= high) {
+
+            int mid = (low + high) >>> 1;
+
+            cursor[0] = restarts[mid];
+            int keyLength = next(cursor, scratch, 0);
+
+            int cmp = compare(scratch, keyLength, serialized, length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid * RESTART_INTERVAL;
+            }
+        }
+
+        int run = low - 1;
+        if (run < 0) {
+            return -1;
+        }
+
+        // the first key of the run is known to be less, so scan the rest for the last one that is not greater
+        int entry = run * RESTART_INTERVAL;
+        int end = Math.min(entry + RESTART_INTERVAL, positions.length);
+
+        cursor[0] = restarts[run];
+        int keyLength = next(cursor, scratch, 0);
+
+        while (entry + 1 < end) {
+
+            keyLength = next(cursor, scratch, keyLength);
+
+            int cmp = compare(scratch, keyLength, serialized, length);
+            if (cmp > 0) {
+                break;
+            }
+
+            entry++;
+            if (cmp == 0) {
+                break;
+            }
+        }
+
+        return entry;
+    }
+
+    private int compare(final byte[] indexKey, final int indexKeyLength, final byte[] key, final int keyLength) {
+
+        if (comparatorThreadSafe) {
+            return comparator.compare(indexKey, 0, indexKeyLength, key, 0, keyLength);
+        }
+
+        synchronized (comparator) {
+            return comparator.compare(indexKey, 0, indexKeyLength, key, 0, keyLength);
+        }
+    }
+
+    /**
+     * Rebuilds the next key into the scratch buffer, which must hold the previous key.
+     * 
+     * @param cursor
+     *        offset in the buffer of the key, moved past it
+     * @return the length of the key
+     */
+    private int next(final int[] cursor, final byte[] scratch, final int previousLength) {
+
+        int shared = readVInt(keys, cursor);
+        int unshared = readVInt(keys, cursor);
+
+        if (shared > previousLength) {
+            throw new IllegalStateException("Corrupt index, key shares more than the previous key has");
+        }
+
+        ByteBuffer suffix = keys.duplicate();
+        suffix.position(cursor[0]);
+        suffix.get(scratch, shared, unshared);
+        cursor[0] += unshared;
+
+        return shared + unshared;
+    }
+
+    /**
+     * Reads the index of a {@link MapFile}, honouring <code>io.map.index.skip</code> in the same way as
+     * {@link MapFile.Reader}. Keys are read as raw bytes and never deserialized.
+     * 
+     * @param offHeap
+     *        hold the keys in a direct buffer instead of on the heap
+     */
+    public static CompactMapFileIndex read(final FileSystem fs, final String dirName,
+            final WritableComparator comparator, final Configuration conf, final boolean offHeap) throws IOException {
+
+        int indexSkip = conf.getInt("io.map.index.skip", 0);
+
+        DataOutputBuffer keys = new DataOutputBuffer(64 * 1024);
+        int[] restarts = new int[64];
+        long[] positions = new long[1024];
+        int count = 0;
+        int maxKeyLength = 0;
+
+        DataOutputBuffer key = new DataOutputBuffer();
+        DataOutputBuffer previousKey = new DataOutputBuffer();
+        DataOutputBuffer lastKey = new DataOutputBuffer();
+        LongWritable position = new LongWritable();
+
+        SequenceFile.Reader index = new SequenceFile.Reader(fs, new Path(dirName, MapFile.INDEX_FILE_NAME), conf);
+        try {
+            int skip = 0;
+            boolean first = true;
+
+            while (true) {
+
+                key.reset();
+                if (index.nextRawKey(key) < 0) {
+                    break;
+                }
+
+                index.getCurrentValue(position);
+
+                if (!first
+                        && comparator.compare(lastKey.getData(), 0, lastKey.getLength(), key.getData(), 0,
+                                key.getLength()) > 0) {
+                    throw new IOException("Key out of order in index: " + dirName + " entry=" + count);
+                }
+
+                first = false;
+                lastKey.reset();
+                lastKey.write(key.getData(), 0, key.getLength());
+
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+
+                skip = indexSkip;
+
+                int shared = 0;
+                if (count % RESTART_INTERVAL == 0) {
+
+                    if (count / RESTART_INTERVAL == restarts.length) {
+                        restarts = Arrays.copyOf(restarts, restarts.length * 2);
+                    }
+
+                    restarts[count / RESTART_INTERVAL] = keys.getLength();
+
+                } else {
+                    shared = sharedPrefix(previousKey, key);
+                }
+
+                writeVInt(keys, shared);
+                writeVInt(keys, key.getLength() - shared);
+                keys.write(key.getData(), shared, key.getLength() - shared);
+
+                if (count == positions.length) {
+                    positions = Arrays.copyOf(positions, count * 2);
+                }
+
+                positions[count++] = position.get();
+                maxKeyLength = Math.max(maxKeyLength, key.getLength());
+
+                previousKey.reset();
+                previousKey.write(key.getData(), 0, key.getLength());
+            }
+
+        } finally {
+            index.close();
+        }
+
+        ByteBuffer buffer;
+        if (offHeap) {
+            buffer = ByteBuffer.allocateDirect(keys.getLength());
+            buffer.put(keys.getData(), 0, keys.getLength());
+            buffer.clear();
+
+        } else {
+            buffer = ByteBuffer.wrap(Arrays.copyOf(keys.getData(), keys.getLength()));
+        }
+
+        int numRestarts = (count + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+        return new CompactMapFileIndex(comparator, buffer, Arrays.copyOf(restarts, numRestarts), Arrays.copyOf(
+                positions, count), maxKeyLength);
+    }
+
+    private static int sharedPrefix(final DataOutputBuffer a, final DataOutputBuffer b) {
+
+        int length = Math.min(a.getLength(), b.getLength());
+        byte[] aBytes = a.getData();
+        byte[] bBytes = b.getData();
+
+        int shared = 0;
+        while (shared < length && aBytes[shared] == bBytes[shared]) {
+            shared++;
+        }
+
+        return shared;
+    }
+
+    /**
+     * Reads an unsigned int written seven bits to a byte, low bits first.
+     */
+    private static int readVInt(final ByteBuffer buffer, final int[] cursor) {
+
+        int value = 0;
+        int shift = 0;
+
+        while (true) {
+
+            byte b = buffer.get(cursor[0]++);
+            value |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+
+            shift += 7;
+        }
+    }
+
+    private static void writeVInt(final DataOutputBuffer out, final int value) throws IOException {
+
+        int remaining = value;
+        while ((remaining & ~0x7f) != 0) {
+            out.writeByte(remaining & 0x7f | 0x80);
+            remaining >>>= 7;
+        }
+
+        out.writeByte(remaining);
+    }
+}
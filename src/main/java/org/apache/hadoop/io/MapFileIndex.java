@@ -0,0 +1,159 @@
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * An immutable, fully loaded copy of a {@link MapFile} index. Unlike the index held internally by {@link MapFile.Reader}
+ * this can be searched by any number of threads at once since it has no seek state.
+ * 
+ * <p>
+ * {@link #read(FileSystem, String, WritableComparator, Configuration)} holds the index as deserialized keys, the same as
+ * {@link MapFile.Reader}, while {@link CompactMapFileIndex} holds the serialized keys in a single buffer.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public abstract class MapFileIndex {
+
+    MapFileIndex() {
+    }
+
+    /**
+     * Finds the entry in the index that a key would be stored after, that is, the last entry with a key less than or
+     * equal to the given key.
+     * 
+     * @return the entry number or -1 if the key is before the first key in the index
+     */
+    @SuppressWarnings("rawtypes")
+    public abstract int findEntry(final WritableComparable key) throws IOException;
+
+    /**
+     * @return the position in the data file of the given entry
+     */
+    public abstract long getPosition(final int entry);
+
+    public abstract int size();
+
+    /**
+     * Finds an entry for a key that the caller has already serialized, so that an index that searches serialized keys
+     * does not have to serialize it again.
+     */
+    @SuppressWarnings("rawtypes")
+    int findEntry(final WritableComparable key, final byte[] serialized, final int length) throws IOException {
+        return findEntry(key);
+    }
+
+    /**
+     * Reads the index of a {@link MapFile}, honouring <code>io.map.index.skip</code> in the same way as
+     * {@link MapFile.Reader}.
+     */
+    @SuppressWarnings("rawtypes")
+    public static MapFileIndex read(final FileSystem fs, final String dirName, final WritableComparator comparator,
+            final Configuration conf) throws IOException {
+
+        int indexSkip = conf.getInt("io.map.index.skip", 0);
+
+        List<WritableComparable> keys = new ArrayList<WritableComparable>(1024);
+        List<Long> positions = new ArrayList<Long>(1024);
+
+        SequenceFile.Reader index = new SequenceFile.Reader(fs, new Path(dirName, MapFile.INDEX_FILE_NAME), conf);
+        try {
+            int skip = 0;
+            LongWritable position = new LongWritable();
+            WritableComparable lastKey = null;
+
+            while (true) {
+
+                WritableComparable key = comparator.newKey();
+                if (!index.next(key, position)) {
+                    break;
+                }
+
+                if (lastKey != null && comparator.compare(lastKey, key) > 0) {
+                    throw new IOException("Key out of order in index: " + key + " after " + lastKey);
+                }
+
+                lastKey = key;
+
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+
+                skip = indexSkip;
+                keys.add(key);
+                positions.add(position.get());
+            }
+
+        } finally {
+            index.close();
+        }
+
+        long[] positionsArray = new long[positions.size()];
+        for (int i = 0; i < positionsArray.length; i++) {
+            positionsArray[i] = positions.get(i);
+        }
+
+        return new ObjectIndex(comparator, keys.toArray(new WritableComparable<?>[keys.size()]), positionsArray);
+    }
+
+    /**
+     * An index of deserialized keys, searched with object comparisons.
+     */
+    private static final class ObjectIndex extends MapFileIndex {
+
+        private final WritableComparator comparator;
+
+        private final WritableComparable<?>[] keys;
+
+        private final long[] positions;
+
+        private ObjectIndex(final WritableComparator comparator, final WritableComparable<?>[] keys,
+                final long[] positions) {
+
+            this.comparator = comparator;
+            this.keys = keys;
+            this.positions = positions;
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int findEntry(final WritableComparable key) {
+
+            int low = 0;
+            int high = keys.length - 1;
+
+            while (low <= high) {
+
+                int mid = (low + high) >>> 1;
+                int cmp = comparator.compare(keys[mid], key);
+
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return low - 1;
+        }
+
+        @Override
+        public long getPosition(final int entry) {
+            return positions[entry];
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.PositionedReadable;
+
+/**
+ * Finds values in the data file of an uncompressed {@link MapFile} using only positional reads. There is no shared seek
+ * state, so any number of threads can look up keys through the same instance at once.
+ * 
+ * <p>
+ * Starting from the closest preceding {@link MapFileIndex} entry, records are scanned by reading just their lengths and
+ * keys until the key is found, a larger key is found or the next index entry is reached. Values of skipped records are
+ * never read.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class MapFileRecordLocator {
+
+    /**
+     * Record length written in place of a record to mark a sync point, see {@link SequenceFile}.
+     */
+    private static final int SYNC_ESCAPE = -1;
+
+    private static final int SYNC_HASH_SIZE = 16;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final PositionedReadable data;
+
+    private final MapFileIndex index;
+
+    private final WritableComparator comparator;
+
+    private final int bufferSize;
+
+    private final boolean comparatorThreadSafe;
+
+    public MapFileRecordLocator(final PositionedReadable data, final MapFileIndex index,
+            final WritableComparator comparator, final int bufferSize) {
+
+        this.data = data;
+        this.index = index;
+        this.comparator = comparator;
+        this.bufferSize = bufferSize;
+
+        comparatorThreadSafe = isThreadSafe(comparator);
+    }
+
+    public WritableComparator getComparator() {
+        return comparator;
+    }
+
+    public MapFileIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Finds the location of the value for a key.
+     * 
+     * @return the location of the serialized value or null if the key is not in the data file
+     */
+    @SuppressWarnings("rawtypes")
+    public ValueLocation locate(final WritableComparable key) throws IOException {
+
+        DataOutputBuffer keyBuffer = new DataOutputBuffer();
+        key.write(keyBuffer);
+
+        int entry = index.findEntry(key, keyBuffer.getData(), keyBuffer.getLength());
+        if (entry < 0) {
+            return null;
+        }
+
+        long end = entry + 1 < index.size() ? index.getPosition(entry + 1) : Long.MAX_VALUE;
+        return scan(keyBuffer.getData(), keyBuffer.getLength(), index.getPosition(entry), end);
+    }
+
+    /**
+     * Reads the serialized value bytes at a location.
+     */
+    public byte[] read(final ValueLocation location) throws IOException {
+
+        byte[] bytes = new byte[location.getLength()];
+        data.readFully(location.getPosition(), bytes, 0, bytes.length);
+
+        return bytes;
+    }
+
+    private int compare(final byte[] bytes, final int offset, final int length, final byte[] key, final int keyLength) {
+
+        if (comparatorThreadSafe) {
+            return comparator.compare(bytes, offset, length, key, 0, keyLength);
+        }
+
+        synchronized (comparator) {
+            return comparator.compare(bytes, offset, length, key, 0, keyLength);
+        }
+    }
+
+    /**
+     * Checks whether a comparator can compare serialized keys from many threads at once. The raw compare of
+     * {@link WritableComparator} deserializes both keys into instances shared by all callers, so a comparator is only
+     * taken to be safe when some subclass overrides it. Subclasses that just override the object compare still go
+     * through the shared instances.
+     */
+    static boolean isThreadSafe(final WritableComparator comparator) {
+
+        try {
+            return comparator.getClass().getMethod("compare", byte[].class, int.class, int.class, byte[].class,
+                    int.class, int.class).getDeclaringClass() != WritableComparator.class;
+
+        } catch (NoSuchMethodException nsme) {
+            return false;
+        }
+    }
+
+    private ValueLocation scan(final byte[] key, final int keyLength, final long start, final long end)
+            throws IOException {
+
+        Window window = new Window(Math.max(bufferSize, RECORD_HEADER_SIZE + keyLength));
+        long position = start;
+
+        while (position < end) {
+
+            if (!window.fill(position, RECORD_HEADER_SIZE)) {
+                return null;
+            }
+
+            int recordLength = window.readInt(position);
+            if (recordLength == SYNC_ESCAPE) {
+                position += 4 + SYNC_HASH_SIZE;
+                continue;
+            }
+
+            int recordKeyLength = window.readInt(position + 4);
+            if (!window.fill(position + RECORD_HEADER_SIZE, recordKeyLength)) {
+                throw new IOException("Truncated record in data file at position: " + position);
+            }
+
+            int cmp = compare(window.bytes, window.offset(position + RECORD_HEADER_SIZE), recordKeyLength, key,
+                    keyLength);
+
+            if (cmp == 0) {
+                return new ValueLocation(position + RECORD_HEADER_SIZE + recordKeyLength, recordLength
+                        - recordKeyLength);
+            }
+
+            if (cmp > 0) {
+                return null;
+            }
+
+            position += RECORD_HEADER_SIZE + recordLength;
+        }
+
+        return null;
+    }
+
+    /**
+     * A buffered window over part of the data file, filled with positional reads.
+     */
+    private final class Window {
+
+        private byte[] bytes;
+
+        private long start;
+
+        private int length;
+
+        private Window(final int size) {
+            bytes = new byte[size];
+            start = -1;
+        }
+
+        /**
+         * Ensures the given range is in the window, reading ahead as much as will fit.
+         * 
+         * @return false if the end of the data file was reached before the start of the range
+         */
+        private boolean fill(final long position, final int required) throws IOException {
+
+            if (start >= 0 && position >= start && position + required <= start + length) {
+                return true;
+            }
+
+            if (required > bytes.length) {
+                bytes = new byte[required];
+            }
+
+            start = position;
+            length = 0;
+
+            while (length < required) {
+
+                int read = data.read(position + length, bytes, length, bytes.length - length);
+                if (read < 0) {
+                    break;
+                }
+
+                length += read;
+            }
+
+            if (length == 0) {
+                return false;
+            }
+
+            if (length < required) {
+                throw new IOException("Unexpected end of data file at position: " + (position + length));
+            }
+
+            return true;
+        }
+
+        private int offset(final long position) {
+            return (int) (position - start);
+        }
+
+        private int readInt(final long position) {
+            return WritableComparator.readInt(bytes, offset(position));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.apache.hadoop.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+/**
+ * A data file on the local filesystem, memory mapped so that ranges of it can be handed out as buffers without copying
+ * them onto the heap. The file is mapped lazily in large regions; a range that happens to cross from one region into
+ * the next is mapped on its own.
+ * 
+ * <p>
+ * Checksums are not verified for bytes read this way. The file must not be truncated or rewritten in place while it is
+ * mapped, only replaced by a new file, since reading a mapping past the end of a truncated file crashes the process.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class MappedDataFile implements Closeable {
+
+    private static final long REGION_SIZE = 1L << 30;
+
+    private final FileInputStream in;
+
+    private final FileChannel channel;
+
+    private final long length;
+
+    private final AtomicReferenceArray<MappedByteBuffer> regions;
+
+    private MappedDataFile(final File file) throws IOException {
+
+        in = new FileInputStream(file);
+        channel = in.getChannel();
+        length = channel.size();
+        regions = new AtomicReferenceArray<MappedByteBuffer>((int) ((length + REGION_SIZE - 1) / REGION_SIZE));
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        // mappings stay valid until they are garbage collected
+        in.close();
+    }
+
+    /**
+     * @return a read-only buffer over the range, positioned at its start
+     */
+    public ByteBuffer slice(final long position, final int size) throws IOException {
+
+        if (position < 0 || position + size > length) {
+            throw new IOException("Range is outside of data file: position=" + position + " size=" + size);
+        }
+
+        int region = (int) (position / REGION_SIZE);
+        if ((position + size - 1) / REGION_SIZE != region || size == 0) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+
+        ByteBuffer buffer = getRegion(region).duplicate();
+        int offset = (int) (position - region * REGION_SIZE);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+
+        return buffer.slice();
+    }
+
+    private MappedByteBuffer getRegion(final int region) throws IOException {
+
+        MappedByteBuffer mapped = regions.get(region);
+        if (mapped == null) {
+
+            long start = region * REGION_SIZE;
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+
+            // another thread may have won, either mapping is fine
+            regions.compareAndSet(region, null, mapped);
+        }
+
+        return mapped;
+    }
+
+    /**
+     * Maps a file if it is on the local filesystem.
+     * 
+     * @return the mapped file or null if the filesystem is not local
+     */
+    static MappedDataFile open(final FileSystem fs, final Path path) throws IOException {
+
+        File file = toLocalFile(fs, path);
+        return file == null ? null : new MappedDataFile(file);
+    }
+
+    /**
+     * @return the file on local disk or null if the filesystem is not local
+     */
+    public static File toLocalFile(final FileSystem fs, final Path path) {
+
+        if (fs instanceof LocalFileSystem) {
+            return ((LocalFileSystem) fs).pathToFile(path);
+        }
+
+        if (fs instanceof RawLocalFileSystem) {
+            return ((RawLocalFileSystem) fs).pathToFile(path);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,253 @@
+package org.apache.hadoop.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+
+/**
+ * The whole data file of an uncompressed {@link MapFile} held in memory, along with a table of where every record
+ * starts, so that a lookup is a binary search over the records in memory and never touches the filesystem.
+ * 
+ * <p>
+ * A data file on the local filesystem is memory mapped and loaded into physical memory up front, anything else is read
+ * into a buffer, either on the heap or off of it. The offset table is a single int per record, so a data file can be
+ * at most 2GB.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+final class PinnedDataFile {
+
+    /**
+     * Record length written in place of a record to mark a sync point, see {@link SequenceFile}.
+     */
+    private static final int SYNC_ESCAPE = -1;
+
+    private static final int SYNC_HASH_SIZE = 16;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int READ_CHUNK_SIZE = 1024 * 1024;
+
+    private final ByteBuffer data;
+
+    private final int[] records;
+
+    private final WritableComparator comparator;
+
+    private final boolean comparatorThreadSafe;
+
+    private PinnedDataFile(final ByteBuffer data, final int[] records, final WritableComparator comparator) {
+
+        this.data = data;
+        this.records = records;
+        this.comparator = comparator;
+
+        comparatorThreadSafe = MapFileRecordLocator.isThreadSafe(comparator);
+    }
+
+    /**
+     * Finds the location of the value for a key.
+     * 
+     * @return the location of the serialized value or null if the key is not in the data file
+     */
+    @SuppressWarnings("rawtypes")
+    public ValueLocation locate(final WritableComparable key) throws IOException {
+
+        DataOutputBuffer keyBuffer = new DataOutputBuffer();
+        key.write(keyBuffer);
+
+        byte[] scratch = data.hasArray() ? null : new byte[64];
+
+        int low = 0;
+        int high = records.length - 1;
+
+        while (low <= high) {
+
+            int mid = (low + high) >>> 1;
+            int record = records[mid];
+            int recordKeyLength = data.getInt(record + 4);
+
+            int cmp;
+            if (scratch == null) {
+                cmp = compare(data.array(), data.arrayOffset() + record + RECORD_HEADER_SIZE, recordKeyLength,
+                        keyBuffer.getData(), keyBuffer.getLength());
+
+            } else {
+
+                if (scratch.length < recordKeyLength) {
+                    scratch = new byte[recordKeyLength];
+                }
+
+                ByteBuffer recordKey = data.duplicate();
+                recordKey.position(record + RECORD_HEADER_SIZE);
+                recordKey.get(scratch, 0, recordKeyLength);
+
+                cmp = compare(scratch, 0, recordKeyLength, keyBuffer.getData(), keyBuffer.getLength());
+            }
+
+            if (cmp < 0) {
+                low = mid + 1;
+
+            } else if (cmp > 0) {
+                high = mid - 1;
+
+            } else {
+                return new ValueLocation(record + RECORD_HEADER_SIZE + recordKeyLength, data.getInt(record)
+                        - recordKeyLength);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a read-only buffer over the range, positioned at its start
+     */
+    public ByteBuffer slice(final ValueLocation location) {
+
+        ByteBuffer buffer = data.asReadOnlyBuffer();
+        buffer.limit((int) location.getPosition() + location.getLength());
+        buffer.position((int) location.getPosition());
+
+        return buffer.slice();
+    }
+
+    /**
+     * @return the number of records in the data file
+     */
+    public int size() {
+        return records.length;
+    }
+
+    /**
+     * @return the number of bytes held in memory, for the data file and the offset table
+     */
+    public long sizeInBytes() {
+        return data.capacity() + 4L * records.length;
+    }
+
+    private int compare(final byte[] bytes, final int offset, final int length, final byte[] key, final int keyLength) {
+
+        if (comparatorThreadSafe) {
+            return comparator.compare(bytes, offset, length, key, 0, keyLength);
+        }
+
+        synchronized (comparator) {
+            return comparator.compare(bytes, offset, length, key, 0, keyLength);
+        }
+    }
+
+    /**
+     * Loads a data file into memory.
+     * 
+     * @param in
+     *        an open stream on the data file, for a file that is not on the local filesystem
+     * @param firstRecord
+     *        position of the first record in the data file, just past the header
+     * @param offHeap
+     *        read a file that is not on the local filesystem into a direct buffer instead of onto the heap
+     */
+    static PinnedDataFile load(final FileSystem fs, final Path path, final PositionedReadable in,
+            final long firstRecord, final WritableComparator comparator, final boolean offHeap) throws IOException {
+
+        long length = fs.getFileStatus(path).getLen();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Data file is too large to pin in memory: " + path + " length=" + length);
+        }
+
+        ByteBuffer data;
+        File file = MappedDataFile.toLocalFile(fs, path);
+
+        if (file != null) {
+            data = map(file, length);
+
+        } else if (offHeap) {
+            data = read(in, ByteBuffer.allocateDirect((int) length));
+
+        } else {
+            data = ByteBuffer.allocate((int) length);
+            in.readFully(0, data.array(), data.arrayOffset(), (int) length);
+        }
+
+        return new PinnedDataFile(data, scan(data, path, (int) firstRecord), comparator);
+    }
+
+    private static ByteBuffer map(final File file, final long length) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            // fault every page in now, rather than on the first requests
+            mapped.load();
+            return mapped;
+
+        } finally {
+
+            // the mapping stays valid until it is garbage collected
+            in.close();
+        }
+    }
+
+    private static ByteBuffer read(final PositionedReadable in, final ByteBuffer data) throws IOException {
+
+        byte[] chunk = new byte[Math.min(READ_CHUNK_SIZE, Math.max(1, data.capacity()))];
+        while (data.hasRemaining()) {
+
+            int length = Math.min(chunk.length, data.remaining());
+            in.readFully(data.position(), chunk, 0, length);
+            data.put(chunk, 0, length);
+        }
+
+        data.clear();
+        return data;
+    }
+
+    /**
+     * Finds the start of every record, skipping sync marks.
+     */
+    private static int[] scan(final ByteBuffer data, final Path path, final int firstRecord) throws IOException {
+
+        int[] records = new int[1024];
+        int count = 0;
+
+        int position = firstRecord;
+        int limit = data.capacity();
+
+        while (position < limit) {
+
+            if (position + 4 > limit) {
+                throw new IOException("Truncated record in data file: " + path + " position=" + position);
+            }
+
+            int recordLength = data.getInt(position);
+            if (recordLength == SYNC_ESCAPE) {
+                position += 4 + SYNC_HASH_SIZE;
+                continue;
+            }
+
+            if (recordLength < 0 || position + RECORD_HEADER_SIZE > limit
+                    || (long) position + RECORD_HEADER_SIZE + recordLength > limit) {
+                throw new IOException("Truncated record in data file: " + path + " position=" + position);
+            }
+
+            if (count == records.length) {
+                records = Arrays.copyOf(records, count * 2);
+            }
+
+            records[count++] = position;
+            position += RECORD_HEADER_SIZE + recordLength;
+        }
+
+        return Arrays.copyOf(records, count);
+    }
+}
@@ -0,0 +1,47 @@
+package org.apache.hadoop.io;
+
+/**
+ * The location of a serialized value within the data file of a {@link MapFile}.
+ * 
+ * @author Josh Devins
+ */
+public final class ValueLocation {
+
+    private final long position;
+
+    private final int length;
+
+    public ValueLocation(final long position, final int length) {
+        this.position = position;
+        this.length = length;
+    }
+
+    /**
+     * @return the number of bytes in the serialized value
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the location of a range of bytes within the serialized value
+     * @throws IllegalArgumentException
+     *         if the range is not within the value
+     */
+    public ValueLocation getRange(final long offset, final int rangeLength) {
+
+        if (offset < 0 || rangeLength < 0 || offset + rangeLength > length) {
+            throw new IllegalArgumentException("Range is outside of value: offset=" + offset + " length="
+                    + rangeLength);
+        }
+
+        return new ValueLocation(position + offset, rangeLength);
+    }
+
+    /**
+     * @return the offset of the first byte of the serialized value in the data file
+     */
+    public long getPosition() {
+        return position;
+    }
+}
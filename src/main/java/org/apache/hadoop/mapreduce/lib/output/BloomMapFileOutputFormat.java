@@ -3,22 +3,145 @@ package org.apache.hadoop.mapreduce.lib.output;
 import java.io.IOException;
 import java.util.Arrays;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.BloomMapFileReader;
 import org.apache.hadoop.io.BloomMapFileWriter;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputCommitter;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
 
+/**
+ * Writes each task's output to a {@link BloomMapFileWriter}. Each task also leaves a summary of its part beside it,
+ * and at the end of the job these are gathered into a {@link DataSetManifest} for the output directory. With
+ * {@value #HASH_INDEX_KEY} set, a {@link DataSetHashIndex} is then built over the whole output.
+ * 
+ * @author Josh Devins
+ */
 public class BloomMapFileOutputFormat<T> extends MapFileOutputFormat<T> {
 
+    /**
+     * Configuration key to build a {@link DataSetHashIndex} of the output at the end of the job.
+     */
+    public static final String HASH_INDEX_KEY = "io.mapfile.bloom.output.hashindex";
+
+    private static final Log LOG = LogFactory.getLog(BloomMapFileOutputFormat.class);
+
+    /**
+     * Suffix of the part summaries written by each task, removed once the manifest is written.
+     */
+    private static final String PART_SUMMARY_SUFFIX = ".summary";
+
+    /**
+     * Writes the {@link DataSetManifest} once all the task output has been committed.
+     */
+    private static final class ManifestOutputCommitter extends FileOutputCommitter {
+
+        private final Path outputPath;
+
+        private ManifestOutputCommitter(final Path outputPath, final TaskAttemptContext context) throws IOException {
+            super(outputPath, context);
+            this.outputPath = outputPath;
+        }
+
+        @Override
+        public void cleanupJob(final JobContext context) throws IOException {
+            super.cleanupJob(context);
+
+            if (outputPath != null) {
+                writeManifest(context);
+            }
+        }
+
+        private void writeManifest(final JobContext context) throws IOException {
+
+            FileSystem fs = outputPath.getFileSystem(context.getConfiguration());
+            FileStatus[] summaries = fs.listStatus(outputPath, new PathFilter() {
+
+                @Override
+                public boolean accept(final Path path) {
+                    return DataSetManifest.isHidden(path.getName()) && path.getName().endsWith(PART_SUMMARY_SUFFIX);
+                }
+            });
+
+            if (summaries == null || summaries.length == 0) {
+                return;
+            }
+
+            // map-only output is not partitioned
+            Class<?> partitionerClass = null;
+            if (context.getNumReduceTasks() > 0) {
+                try {
+                    partitionerClass = context.getPartitionerClass();
+
+                } catch (ClassNotFoundException cnfe) {
+                    throw new IOException("Could not load partitioner class: " + cnfe.getMessage());
+                }
+            }
+
+            DataSetManifest manifest = new DataSetManifest(context.getOutputKeyClass(), context.getOutputValueClass(),
+                    partitionerClass);
+
+            for (FileStatus summary : summaries) {
+
+                FSDataInputStream in = fs.open(summary.getPath());
+                try {
+                    Part part = new Part();
+                    part.readFields(in);
+                    manifest.addPart(part);
+
+                } finally {
+                    IOUtils.closeStream(in);
+                }
+            }
+
+            // a failed job may not have every part, and a manifest of partial output would hide the rest
+            if (context.getNumReduceTasks() > 0 && manifest.getParts().size() != context.getNumReduceTasks()) {
+                LOG.warn("Not writing dataset manifest, output is incomplete: parts=" + manifest.getParts().size()
+                        + " reducers=" + context.getNumReduceTasks());
+
+            } else {
+                manifest.write(fs, outputPath);
+
+                if (context.getConfiguration().getBoolean(HASH_INDEX_KEY, false)) {
+                    DataSetHashIndex.build(fs, outputPath, context.getConfiguration());
+                }
+            }
+
+            for (FileStatus summary : summaries) {
+                fs.delete(summary.getPath(), false);
+            }
+        }
+    }
+
+    private ManifestOutputCommitter committer;
+
+    @Override
+    public synchronized OutputCommitter getOutputCommitter(final TaskAttemptContext context) throws IOException {
+
+        if (committer == null) {
+            committer = new ManifestOutputCommitter(getOutputPath(context), context);
+        }
+
+        return committer;
+    }
+
     @Override
     protected MapFile.Writer createMapFileWriter(final TaskAttemptContext context, final FileSystem fs,
             final Path file, final CompressionType compressionType, final CompressionCodec codec) throws IOException {
@@ -28,6 +151,25 @@ public class BloomMapFileOutputFormat<T> extends MapFileOutputFormat<T> {
                 compressionType, codec, context);
     }
 
+    /**
+     * Leaves a summary of the part beside it in the task output, to be gathered into the manifest at the end of the
+     * job.
+     */
+    @Override
+    protected void mapFileWriterClosed(final TaskAttemptContext context, final FileSystem fs, final Path file,
+            final MapFile.Writer writer) throws IOException {
+
+        Part part = Part.summarize(fs, file, (BloomMapFileWriter) writer);
+
+        FSDataOutputStream out = fs.create(new Path(file.getParent(), "_" + file.getName() + PART_SUMMARY_SUFFIX),
+                true);
+        try {
+            part.write(out);
+        } finally {
+            IOUtils.closeStream(out);
+        }
+    }
+
     /**
      * Get an entry from output generated by this class.
      */
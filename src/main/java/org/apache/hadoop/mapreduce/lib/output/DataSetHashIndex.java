@@ -0,0 +1,707 @@
+package org.apache.hadoop.mapreduce.lib.output;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.MappedDataFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.ValueLocation;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
+
+/**
+ * A minimal perfect hash over every key in a dataset, mapping each key straight to its part and the location of its
+ * value in that part's data file. A lookup is then a single positioned read, without probing a Bloom filter or
+ * searching an index, and each part's index need never be loaded. Every key also has a 32-bit fingerprint, so all but
+ * about one in four billion keys that are not in the dataset are turned away without reading anything.
+ * 
+ * <p>
+ * The hash is built by hash and displace. Keys are hashed into buckets of about {@value #KEYS_PER_BUCKET} and the
+ * buckets, largest first, are each given the first seed that puts all of their keys into free slots. Buckets of a
+ * single key go last, straight into whatever slots are left. A lookup is two hashes, one for the bucket's seed and one
+ * for the slot, and the whole table is one slot per key plus a seed per bucket, 17 bytes per key.
+ * </p>
+ * 
+ * <p>
+ * Written to {@value #INDEX_FILE_NAME} in the dataset directory, once the {@link DataSetManifest} is, by
+ * {@link BloomMapFileOutputFormat} when {@value BloomMapFileOutputFormat#HASH_INDEX_KEY} is set. It records the parts
+ * it was built over, and is ignored once they no longer match the manifest. The tables are laid out so that they can
+ * be memory mapped and searched as is. Only uncompressed parts can be indexed, and at most {@value #MAX_KEYS} keys.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class DataSetHashIndex {
+
+    /**
+     * Name of the index file in a dataset directory.
+     */
+    public static final String INDEX_FILE_NAME = "_hashindex";
+
+    /**
+     * Most keys that can be indexed, so that the tables fit in a single buffer.
+     */
+    public static final int MAX_KEYS = 100 * 1000 * 1000;
+
+    private static final Log LOG = LogFactory.getLog(DataSetHashIndex.class);
+
+    private static final int VERSION = 1;
+
+    private static final int KEYS_PER_BUCKET = 4;
+
+    /**
+     * Bytes in a slot: the part and position packed together, the length and the fingerprint.
+     */
+    private static final int SLOT_SIZE = 8 + 4 + 4;
+
+    /**
+     * Positions are packed into the low bits alongside the part, which limits data files to 256TB.
+     */
+    private static final int POSITION_BITS = 48;
+
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+    private static final int MAX_PARTS = (1 << 64 - POSITION_BITS) - 1;
+
+    /**
+     * Record length written in place of a record to mark a sync point, see {@link SequenceFile}.
+     */
+    private static final int SYNC_ESCAPE = -1;
+
+    private static final int SYNC_HASH_SIZE = 16;
+
+    private static final int READ_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Where a key's value is.
+     */
+    public static final class Entry {
+
+        private final int part;
+
+        private final ValueLocation location;
+
+        private Entry(final int part, final ValueLocation location) {
+            this.part = part;
+            this.location = location;
+        }
+
+        /**
+         * @return the location of the serialized value in the part's data file
+         */
+        public ValueLocation getLocation() {
+            return location;
+        }
+
+        /**
+         * @return the index of the part in the manifest
+         */
+        public int getPart() {
+            return part;
+        }
+    }
+
+    private final int numKeys;
+
+    private final int numBuckets;
+
+    /**
+     * The seeds of the buckets followed by the slots.
+     */
+    private final ByteBuffer tables;
+
+    private DataSetHashIndex(final int numKeys, final int numBuckets, final ByteBuffer tables) {
+
+        this.numKeys = numKeys;
+        this.numBuckets = numBuckets;
+        this.tables = tables;
+    }
+
+    /**
+     * Finds where the value of a key is, if the key is in the dataset. A key that is not in the dataset is very rarely
+     * given the location of another key's value, so the key stored in front of the value should be checked.
+     * 
+     * @return where the value is, or null if the key is not in the dataset
+     */
+    public Entry get(final Writable key) throws IOException {
+
+        DataOutputBuffer serialized = new DataOutputBuffer();
+        key.write(serialized);
+
+        return get(serialized.getData(), serialized.getLength());
+    }
+
+    /**
+     * @param key
+     *        the serialized key
+     * @see #get(Writable)
+     */
+    public Entry get(final byte[] key, final int length) {
+
+        if (numKeys == 0) {
+            return null;
+        }
+
+        long hash = hash(key, length);
+        int seed = tables.getInt(4 * bucket(hash, numBuckets));
+        int slot = seed < 0 ? -seed - 1 : slot(hash, seed, numKeys);
+
+        int offset = 4 * numBuckets + slot * SLOT_SIZE;
+        if (tables.getInt(offset + 12) != (int) hash) {
+            return null;
+        }
+
+        long location = tables.getLong(offset);
+        return new Entry((int) (location >>> POSITION_BITS), new ValueLocation(location & POSITION_MASK, tables
+                .getInt(offset + 8)));
+    }
+
+    /**
+     * @return the number of bytes held by the tables
+     */
+    public long getSizeInBytes() {
+        return tables.capacity();
+    }
+
+    /**
+     * @return the number of keys indexed
+     */
+    public int size() {
+        return numKeys;
+    }
+
+    @Override
+    public String toString() {
+        return "DataSetHashIndex [keys=" + numKeys + ", buckets=" + numBuckets + ", bytes=" + getSizeInBytes() + "]";
+    }
+
+    /**
+     * Builds the index of a dataset from the parts listed in its manifest, replacing any existing index. Every data
+     * file is read through once. Where a key is in more than one part, the first part listed wins, the same as looking
+     * through the parts in turn.
+     * 
+     * @return true if the index was written, false if the dataset can't be indexed
+     */
+    public static boolean build(final FileSystem fs, final Path dir, final Configuration conf) throws IOException {
+
+        DataSetManifest manifest = DataSetManifest.read(fs, dir);
+        if (manifest == null) {
+            LOG.warn("Can't build hash index of dataset without a manifest: " + dir);
+            return false;
+        }
+
+        List<Part> parts = manifest.getParts();
+        long totalKeys = 0;
+        for (Part part : parts) {
+            totalKeys += part.getRecordCount();
+        }
+
+        if (parts.size() > MAX_PARTS || totalKeys > MAX_KEYS) {
+            LOG.warn("Dataset is too large to build hash index of: " + dir + " parts=" + parts.size() + " keys="
+                    + totalKeys);
+            return false;
+        }
+
+        Keys keys = new Keys((int) totalKeys);
+        for (int i = 0; i < parts.size(); i++) {
+
+            if (!keys.scan(fs, new Path(new Path(dir, parts.get(i).getName()), MapFile.DATA_FILE_NAME), i, conf)) {
+                LOG.warn("Can't build hash index of dataset with compressed parts: " + dir);
+                return false;
+            }
+        }
+
+        Table table = new Table(keys);
+        write(fs, dir, parts, table);
+
+        LOG.info("Built hash index of dataset: " + dir + " keys=" + table.numKeys + " buckets=" + table.seeds.length);
+        return true;
+    }
+
+    /**
+     * Opens the index of a dataset, if it has one that matches the parts in its manifest. An index on the local
+     * filesystem is memory mapped, anything else is read into memory.
+     * 
+     * @param offHeap
+     *        read an index that is not on the local filesystem into a direct buffer instead of onto the heap
+     * @return the index or null if there is no index or it is out of date
+     */
+    public static DataSetHashIndex open(final FileSystem fs, final Path dir, final DataSetManifest manifest,
+            final boolean offHeap) throws IOException {
+
+        Path path = new Path(dir, INDEX_FILE_NAME);
+
+        FSDataInputStream in;
+        try {
+            in = fs.open(path);
+
+        } catch (FileNotFoundException fnfe) {
+            return null;
+        }
+
+        try {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported dataset hash index version: " + version);
+            }
+
+            int numKeys = in.readInt();
+            int numBuckets = in.readInt();
+
+            if (!matches(in, manifest.getParts())) {
+                LOG.warn("Ignoring out of date hash index of dataset: " + dir);
+                return null;
+            }
+
+            long start = in.getPos();
+            long length = 4L * numBuckets + (long) SLOT_SIZE * numKeys;
+            if (start + length != fs.getFileStatus(path).getLen()) {
+                throw new IOException("Dataset hash index is the wrong length: " + path);
+            }
+
+            ByteBuffer tables;
+            File file = MappedDataFile.toLocalFile(fs, path);
+
+            if (file != null) {
+                tables = map(file, start, length);
+
+            } else if (offHeap) {
+                tables = read(in, start, ByteBuffer.allocateDirect((int) length));
+
+            } else {
+                tables = read(in, start, ByteBuffer.allocate((int) length));
+            }
+
+            return new DataSetHashIndex(numKeys, numBuckets, tables);
+
+        } finally {
+            IOUtils.closeStream(in);
+        }
+    }
+
+    /**
+     * Every key in the dataset, as hashes, in the order they were read.
+     */
+    private static final class Keys {
+
+        private final long[] hashes;
+
+        private final long[] locations;
+
+        private final int[] lengths;
+
+        private int size;
+
+        private Keys(final int capacity) {
+
+            hashes = new long[capacity];
+            locations = new long[capacity];
+            lengths = new int[capacity];
+        }
+
+        /**
+         * Reads the lengths and keys of every record in a data file, skipping over the values.
+         * 
+         * @return false if the data file is compressed
+         */
+        private boolean scan(final FileSystem fs, final Path dataPath, final int part, final Configuration conf)
+                throws IOException {
+
+            // records, or a sync mark, start straight after the header
+            long position;
+            SequenceFile.Reader header = new SequenceFile.Reader(fs, dataPath, conf);
+            try {
+                if (header.isCompressed()) {
+                    return false;
+                }
+
+                position = header.getPosition();
+
+            } finally {
+                header.close();
+            }
+
+            FSDataInputStream in = fs.open(dataPath);
+            try {
+                in.seek(position);
+                byte[] key = new byte[64];
+
+                while (true) {
+
+                    int recordLength;
+                    try {
+                        recordLength = in.readInt();
+
+                    } catch (EOFException eofe) {
+                        return true;
+                    }
+
+                    if (recordLength == SYNC_ESCAPE) {
+                        IOUtils.skipFully(in, SYNC_HASH_SIZE);
+                        position += 4 + SYNC_HASH_SIZE;
+                        continue;
+                    }
+
+                    int keyLength = in.readInt();
+                    if (keyLength > key.length) {
+                        key = new byte[Math.max(keyLength, key.length * 2)];
+                    }
+
+                    in.readFully(key, 0, keyLength);
+                    IOUtils.skipFully(in, recordLength - keyLength);
+
+                    add(dataPath, hash(key, keyLength), part, position + 8 + keyLength, recordLength - keyLength);
+                    position += 8 + recordLength;
+                }
+
+            } finally {
+                IOUtils.closeStream(in);
+            }
+        }
+
+        private void add(final Path dataPath, final long hash, final int part, final long position, final int length)
+                throws IOException {
+
+            if (size == hashes.length) {
+                throw new IOException("Data file has more records than its manifest lists: " + dataPath);
+            }
+
+            if (position > POSITION_MASK) {
+                throw new IOException("Data file is too large to index: " + dataPath);
+            }
+
+            hashes[size] = hash;
+            locations[size] = (long) part << POSITION_BITS | position;
+            lengths[size] = length;
+            size++;
+        }
+    }
+
+    /**
+     * The seeds and slots, built from the keys.
+     */
+    private static final class Table {
+
+        private final Keys keys;
+
+        private final int[] seeds;
+
+        /**
+         * The key in each slot.
+         */
+        private final int[] slots;
+
+        private final int numKeys;
+
+        private Table(final Keys keys) throws IOException {
+
+            this.keys = keys;
+            seeds = new int[Math.max(1, (keys.size + KEYS_PER_BUCKET - 1) / KEYS_PER_BUCKET)];
+
+            // keys grouped by bucket
+            int[] bucketStarts = new int[seeds.length + 1];
+            for (int i = 0; i < keys.size; i++) {
+                bucketStarts[bucket(keys.hashes[i], seeds.length) + 1]++;
+            }
+
+            for (int i = 0; i < seeds.length; i++) {
+                bucketStarts[i + 1] += bucketStarts[i];
+            }
+
+            int[] members = new int[keys.size];
+            int[] filled = Arrays.copyOf(bucketStarts, seeds.length);
+            for (int i = 0; i < keys.size; i++) {
+                members[filled[bucket(keys.hashes[i], seeds.length)]++] = i;
+            }
+
+            // a key in more than one part only keeps its first location
+            int[] bucketSizes = new int[seeds.length];
+            int maxBucketSize = 0;
+            int distinct = 0;
+
+            for (int i = 0; i < seeds.length; i++) {
+
+                bucketSizes[i] = dropDuplicates(members, bucketStarts[i], bucketStarts[i + 1]);
+                maxBucketSize = Math.max(maxBucketSize, bucketSizes[i]);
+                distinct += bucketSizes[i];
+            }
+
+            numKeys = distinct;
+            slots = new int[numKeys];
+            Arrays.fill(slots, -1);
+
+            // buckets from largest to smallest
+            int[] sizeStarts = new int[maxBucketSize + 2];
+            for (int size : bucketSizes) {
+                sizeStarts[maxBucketSize - size + 1]++;
+            }
+
+            for (int i = 0; i <= maxBucketSize; i++) {
+                sizeStarts[i + 1] += sizeStarts[i];
+            }
+
+            int[] order = new int[seeds.length];
+            for (int i = 0; i < seeds.length; i++) {
+                order[sizeStarts[maxBucketSize - bucketSizes[i]]++] = i;
+            }
+
+            int[] placed = new int[maxBucketSize];
+            int free = 0;
+
+            for (int bucket : order) {
+
+                int start = bucketStarts[bucket];
+                int size = bucketSizes[bucket];
+
+                if (size == 1) {
+
+                    // no seed can clash within the bucket, so take the next free slot directly
+                    while (slots[free] >= 0) {
+                        free++;
+                    }
+
+                    slots[free] = members[start];
+                    seeds[bucket] = -free - 1;
+
+                } else if (size > 1) {
+                    seeds[bucket] = place(members, start, size, placed);
+                }
+            }
+        }
+
+        /**
+         * Finds the first seed that puts every key of a bucket into a free slot, and fills those slots.
+         */
+        private int place(final int[] members, final int start, final int size, final int[] placed)
+                throws IOException {
+
+            for (int seed = 0; seed < Integer.MAX_VALUE; seed++) {
+
+                int count = 0;
+                for (; count < size; count++) {
+
+                    int slot = slot(keys.hashes[members[start + count]], seed, numKeys);
+                    if (slots[slot] >= 0 || contains(placed, count, slot)) {
+                        break;
+                    }
+
+                    placed[count] = slot;
+                }
+
+                if (count == size) {
+
+                    for (int i = 0; i < size; i++) {
+                        slots[placed[i]] = members[start + i];
+                    }
+
+                    return seed;
+                }
+            }
+
+            throw new IOException("Could not find a seed for a bucket of keys: size=" + size);
+        }
+
+        /**
+         * Sorts the keys of a bucket by hash, keeping only the first read of any that are the same.
+         * 
+         * @return the number of keys left, from the start of the bucket
+         */
+        private int dropDuplicates(final int[] members, final int start, final int end) {
+
+            // buckets are small
+            for (int i = start + 1; i < end; i++) {
+
+                int member = members[i];
+                int j = i - 1;
+                for (; j >= start && compare(members[j], member) > 0; j--) {
+                    members[j + 1] = members[j];
+                }
+
+                members[j + 1] = member;
+            }
+
+            int size = 0;
+            for (int i = start; i < end; i++) {
+
+                if (size == 0 || keys.hashes[members[start + size - 1]] != keys.hashes[members[i]]) {
+                    members[start + size++] = members[i];
+                }
+            }
+
+            return size;
+        }
+
+        private int compare(final int key1, final int key2) {
+
+            long hash1 = keys.hashes[key1];
+            long hash2 = keys.hashes[key2];
+
+            if (hash1 != hash2) {
+                return hash1 < hash2 ? -1 : 1;
+            }
+
+            return key1 - key2;
+        }
+
+        private static boolean contains(final int[] values, final int count, final int value) {
+
+            for (int i = 0; i < count; i++) {
+                if (values[i] == value) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Writes the index beside any old one first, so a reader never sees a partial file.
+     */
+    private static void write(final FileSystem fs, final Path dir, final List<Part> parts, final Table table)
+            throws IOException {
+
+        Path indexPath = new Path(dir, INDEX_FILE_NAME);
+        Path tmpPath = new Path(dir, INDEX_FILE_NAME + ".tmp");
+
+        FSDataOutputStream out = fs.create(tmpPath, true);
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(table.numKeys);
+            out.writeInt(table.seeds.length);
+
+            WritableUtils.writeVInt(out, parts.size());
+            for (Part part : parts) {
+                Text.writeString(out, part.getName());
+                WritableUtils.writeVLong(out, part.getDataLength());
+            }
+
+            for (int seed : table.seeds) {
+                out.writeInt(seed);
+            }
+
+            Keys keys = table.keys;
+            for (int key : table.slots) {
+                out.writeLong(keys.locations[key]);
+                out.writeInt(keys.lengths[key]);
+                out.writeInt((int) keys.hashes[key]);
+            }
+
+        } finally {
+            IOUtils.closeStream(out);
+        }
+
+        fs.delete(indexPath, false);
+        if (!fs.rename(tmpPath, indexPath)) {
+            throw new IOException("Could not rename dataset hash index into place: " + indexPath);
+        }
+    }
+
+    /**
+     * @return true if the parts the index was built over are the ones in the manifest
+     */
+    private static boolean matches(final DataInputStream in, final List<Part> parts) throws IOException {
+
+        int numParts = WritableUtils.readVInt(in);
+        if (numParts != parts.size()) {
+            return false;
+        }
+
+        for (Part part : parts) {
+
+            String name = Text.readString(in);
+            long dataLength = WritableUtils.readVLong(in);
+
+            if (!part.getName().equals(name) || part.getDataLength() != dataLength) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static ByteBuffer map(final File file, final long position, final long length) throws IOException {
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, position, length);
+
+        } finally {
+
+            // the mapping stays valid until it is garbage collected
+            in.close();
+        }
+    }
+
+    private static ByteBuffer read(final FSDataInputStream in, final long position, final ByteBuffer tables)
+            throws IOException {
+
+        byte[] chunk = new byte[Math.min(READ_CHUNK_SIZE, Math.max(1, tables.capacity()))];
+        while (tables.hasRemaining()) {
+
+            int length = Math.min(chunk.length, tables.remaining());
+            in.readFully(position + tables.position(), chunk, 0, length);
+            tables.put(chunk, 0, length);
+        }
+
+        tables.clear();
+        return tables;
+    }
+
+    /**
+     * FNV-1a over the serialized key, finished off with the MurmurHash3 mix so that every bit is well spread.
+     */
+    static long hash(final byte[] key, final int length) {
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= key[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * The bucket comes from the high bits of the hash, the fingerprint is the low bits.
+     */
+    private static int bucket(final long hash, final int numBuckets) {
+        return (int) (((hash >>> 32) * numBuckets) >>> 32);
+    }
+
+    private static int slot(final long hash, final int seed, final int numSlots) {
+        return (int) (((mix(hash + seed * 0x9e3779b97f4a7c15L) >>> 32) * numSlots) >>> 32);
+    }
+
+    private static long mix(final long value) {
+
+        long mixed = value;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xff51afd7ed558ccdL;
+        mixed ^= mixed >>> 33;
+        mixed *= 0xc4ceb9fe1a85ec53L;
+        mixed ^= mixed >>> 33;
+
+        return mixed;
+    }
+}
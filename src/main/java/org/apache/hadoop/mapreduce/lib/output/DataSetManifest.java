@@ -0,0 +1,405 @@
+package org.apache.hadoop.mapreduce.lib.output;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFile;
+import org.apache.hadoop.io.BloomMapFileWriter;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Describes a directory of {@link BloomMapFile}s, or dataset, so that it can be opened without listing the directory
+ * and every part in it. Lists every part with its sizes, record count and key range, along with the key, value and
+ * partitioner classes the parts were written with.
+ * 
+ * <p>
+ * Written to {@value #MANIFEST_FILE_NAME} in the dataset directory by {@link BloomMapFileOutputFormat} at the end of a
+ * job and by the converters. The manifest is trusted as is, so any part added to the directory by other means will not
+ * be seen until the manifest is removed or rewritten.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class DataSetManifest implements Writable {
+
+    /**
+     * Name of the manifest file in a dataset directory. Hidden, like the other files Hadoop leaves beside job output.
+     */
+    public static final String MANIFEST_FILE_NAME = "_manifest";
+
+    private static final int VERSION = 1;
+
+    /**
+     * One {@link BloomMapFile} in a dataset.
+     */
+    public static final class Part implements Writable {
+
+        private String name;
+
+        private long dataLength;
+
+        private long indexLength;
+
+        private long recordCount;
+
+        private byte[] firstKey;
+
+        private byte[] lastKey;
+
+        Part() {
+            // for deserialization
+        }
+
+        /**
+         * @param firstKey
+         *        serialized first key, null if the part is empty
+         * @param lastKey
+         *        serialized last key, null if the part is empty
+         */
+        public Part(final String name, final long dataLength, final long indexLength, final long recordCount,
+                final byte[] firstKey, final byte[] lastKey) {
+
+            this.name = name;
+            this.dataLength = dataLength;
+            this.indexLength = indexLength;
+            this.recordCount = recordCount;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+
+        public long getDataLength() {
+            return dataLength;
+        }
+
+        /**
+         * Deserializes the first key of the part into the given key.
+         * 
+         * @return the key or null if the part is empty
+         */
+        public <K extends Writable> K getFirstKey(final K key) throws IOException {
+            return readKey(firstKey, key);
+        }
+
+        public long getIndexLength() {
+            return indexLength;
+        }
+
+        /**
+         * Deserializes the last key of the part into the given key.
+         * 
+         * @return the key or null if the part is empty
+         */
+        public <K extends Writable> K getLastKey(final K key) throws IOException {
+            return readKey(lastKey, key);
+        }
+
+        /**
+         * @return the name of the {@link BloomMapFile} directory, relative to the dataset directory
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        @Override
+        public void readFields(final DataInput in) throws IOException {
+
+            name = Text.readString(in);
+            dataLength = WritableUtils.readVLong(in);
+            indexLength = WritableUtils.readVLong(in);
+            recordCount = WritableUtils.readVLong(in);
+            firstKey = readBytes(in);
+            lastKey = readBytes(in);
+        }
+
+        @Override
+        public void write(final DataOutput out) throws IOException {
+
+            Text.writeString(out, name);
+            WritableUtils.writeVLong(out, dataLength);
+            WritableUtils.writeVLong(out, indexLength);
+            WritableUtils.writeVLong(out, recordCount);
+            writeBytes(out, firstKey);
+            writeBytes(out, lastKey);
+        }
+
+        /**
+         * Summarizes a {@link BloomMapFile} that has just been written and closed.
+         */
+        public static Part summarize(final FileSystem fs, final Path dir, final BloomMapFileWriter writer)
+                throws IOException {
+
+            long dataLength = fs.getFileStatus(new Path(dir, MapFile.DATA_FILE_NAME)).getLen();
+            long indexLength = fs.getFileStatus(new Path(dir, MapFile.INDEX_FILE_NAME)).getLen();
+
+            return new Part(dir.getName(), dataLength, indexLength, writer.getRecordCount(), writer.getFirstKey(),
+                    writer.getLastKey());
+        }
+
+        private static <K extends Writable> K readKey(final byte[] bytes, final K key) throws IOException {
+
+            if (bytes == null) {
+                return null;
+            }
+
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(bytes, bytes.length);
+            key.readFields(in);
+
+            return key;
+        }
+    }
+
+    private String keyClassName;
+
+    private String valueClassName;
+
+    private String partitionerClassName;
+
+    private final List<Part> parts = new ArrayList<Part>();
+
+    DataSetManifest() {
+        // for deserialization
+    }
+
+    /**
+     * @param partitionerClass
+     *        the partitioner that assigned keys to parts, null if keys were not partitioned
+     */
+    public DataSetManifest(final Class<?> keyClass, final Class<?> valueClass, final Class<?> partitionerClass) {
+
+        keyClassName = keyClass.getName();
+        valueClassName = valueClass.getName();
+        partitionerClassName = partitionerClass == null ? null : partitionerClass.getName();
+    }
+
+    /**
+     * Adds a part, replacing any part with the same name. Parts are kept sorted by name.
+     */
+    public void addPart(final Part part) {
+
+        for (int i = 0; i < parts.size(); i++) {
+
+            if (parts.get(i).getName().equals(part.getName())) {
+                parts.set(i, part);
+                return;
+            }
+        }
+
+        parts.add(part);
+        Collections.sort(parts, new Comparator<Part>() {
+
+            @Override
+            public int compare(final Part part1, final Part part2) {
+                return part1.getName().compareTo(part2.getName());
+            }
+        });
+    }
+
+    public String getKeyClassName() {
+        return keyClassName;
+    }
+
+    /**
+     * @return the partitioner that assigned keys to parts, or null if keys were not partitioned
+     */
+    public String getPartitionerClassName() {
+        return partitionerClassName;
+    }
+
+    /**
+     * @return all parts, sorted by name
+     */
+    public List<Part> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    public String getValueClassName() {
+        return valueClassName;
+    }
+
+    @Override
+    public void readFields(final DataInput in) throws IOException {
+
+        int version = WritableUtils.readVInt(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported dataset manifest version: " + version);
+        }
+
+        keyClassName = Text.readString(in);
+        valueClassName = Text.readString(in);
+        partitionerClassName = in.readBoolean() ? Text.readString(in) : null;
+
+        int numParts = WritableUtils.readVInt(in);
+        parts.clear();
+
+        for (int i = 0; i < numParts; i++) {
+
+            Part part = new Part();
+            part.readFields(in);
+            parts.add(part);
+        }
+    }
+
+    @Override
+    public void write(final DataOutput out) throws IOException {
+
+        WritableUtils.writeVInt(out, VERSION);
+        Text.writeString(out, keyClassName);
+        Text.writeString(out, valueClassName);
+
+        out.writeBoolean(partitionerClassName != null);
+        if (partitionerClassName != null) {
+            Text.writeString(out, partitionerClassName);
+        }
+
+        WritableUtils.writeVInt(out, parts.size());
+        for (Part part : parts) {
+            part.write(out);
+        }
+    }
+
+    /**
+     * Writes the manifest into a dataset directory, replacing any existing one. The manifest is written beside the old
+     * one first so a reader never sees a partial file.
+     */
+    public void write(final FileSystem fs, final Path dir) throws IOException {
+
+        Path manifestPath = new Path(dir, MANIFEST_FILE_NAME);
+        Path tmpPath = new Path(dir, MANIFEST_FILE_NAME + ".tmp");
+
+        FSDataOutputStream out = fs.create(tmpPath, true);
+        try {
+            write(out);
+        } finally {
+            IOUtils.closeStream(out);
+        }
+
+        fs.delete(manifestPath, false);
+        if (!fs.rename(tmpPath, manifestPath)) {
+            throw new IOException("Could not rename dataset manifest into place: " + manifestPath);
+        }
+    }
+
+    /**
+     * Adds a single {@link BloomMapFile} to the manifest of the dataset directory it was written in, as the converters
+     * do. A manifest is only started if the part is alone in the directory, since any other parts already there would
+     * otherwise be hidden. Adding a new part to an existing manifest drops its partitioner, since keys can no longer be
+     * routed by it.
+     * 
+     * @return true if the manifest was written
+     */
+    public static boolean update(final FileSystem fs, final Path dir, final Part part, final Class<?> keyClass,
+            final Class<?> valueClass) throws IOException {
+
+        DataSetManifest manifest = read(fs, dir);
+
+        if (manifest == null) {
+
+            for (FileStatus status : fs.listStatus(dir)) {
+
+                String name = status.getPath().getName();
+                if (!isHidden(name) && !name.equals(part.getName())) {
+                    return false;
+                }
+            }
+
+            manifest = new DataSetManifest(keyClass, valueClass, null);
+
+        } else if (manifest.getPart(part.getName()) == null) {
+            manifest.partitionerClassName = null;
+        }
+
+        manifest.addPart(part);
+        manifest.write(fs, dir);
+
+        return true;
+    }
+
+    /**
+     * @return true if the name is of a file that is not part of a dataset, like a manifest or job logs
+     */
+    public static boolean isHidden(final String name) {
+        return name.startsWith("_") || name.startsWith(".");
+    }
+
+    /**
+     * Reads the manifest of a dataset directory with a single open.
+     * 
+     * @return the manifest or null if the directory has none
+     */
+    public static DataSetManifest read(final FileSystem fs, final Path dir) throws IOException {
+
+        FSDataInputStream in;
+        try {
+            in = fs.open(new Path(dir, MANIFEST_FILE_NAME));
+
+        } catch (FileNotFoundException fnfe) {
+            return null;
+        }
+
+        try {
+            DataSetManifest manifest = new DataSetManifest();
+            manifest.readFields(in);
+
+            return manifest;
+
+        } finally {
+            IOUtils.closeStream(in);
+        }
+    }
+
+    private Part getPart(final String name) {
+
+        for (Part part : parts) {
+            if (part.getName().equals(name)) {
+                return part;
+            }
+        }
+
+        return null;
+    }
+
+    private static byte[] readBytes(final DataInput in) throws IOException {
+
+        int length = WritableUtils.readVInt(in);
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return bytes;
+    }
+
+    private static void writeBytes(final DataOutput out, final byte[] bytes) throws IOException {
+
+        if (bytes == null) {
+            WritableUtils.writeVInt(out, -1);
+            return;
+        }
+
+        WritableUtils.writeVInt(out, bytes.length);
+        out.write(bytes);
+    }
+}
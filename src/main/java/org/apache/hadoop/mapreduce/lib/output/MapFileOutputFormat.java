@@ -25,8 +25,8 @@ public class MapFileOutputFormat<T> extends FileOutputFormat<WritableComparable<
             throws IOException, InterruptedException {
 
         // get the path of the temporary output file
-        Path file = getDefaultWorkFile(context, "");
-        FileSystem fs = file.getFileSystem(context.getConfiguration());
+        final Path file = getDefaultWorkFile(context, "");
+        final FileSystem fs = file.getFileSystem(context.getConfiguration());
 
         CompressionCodec codec = null;
         CompressionType compressionType = CompressionType.NONE;
@@ -47,6 +47,7 @@ public class MapFileOutputFormat<T> extends FileOutputFormat<WritableComparable<
             @Override
             public void close(final TaskAttemptContext context) throws IOException, InterruptedException {
                 out.close();
+                mapFileWriterClosed(context, fs, file, out);
             }
 
             @Override
@@ -64,6 +65,14 @@ public class MapFileOutputFormat<T> extends FileOutputFormat<WritableComparable<
                 compressionType, codec, context);
     }
 
+    /**
+     * Called once a task has finished writing and closed its {@link MapFile}, does nothing by default.
+     */
+    protected void mapFileWriterClosed(final TaskAttemptContext context, final FileSystem fs, final Path file,
+            final MapFile.Writer writer) throws IOException {
+        // nothing to do
+    }
+
     /**
      * Get an entry from output generated by this class.
      */
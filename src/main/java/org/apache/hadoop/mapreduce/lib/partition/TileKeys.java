@@ -0,0 +1,180 @@
+package org.apache.hadoop.mapreduce.lib.partition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Encodes map tile coordinates into keys that sort tiles that are close on the map close together. A tile at zoom z,
+ * column x and row y becomes the two digit zoom, a dash and the quadkey of the tile, followed by any extension, so
+ * 3/5/2.png becomes "03-121.png".
+ * 
+ * <p>
+ * The quadkey has one base-4 digit per zoom level, each one the bit of x plus twice the bit of y at that level, most
+ * significant first. Within a zoom level, keys therefore sort in Morton (Z-order) order, where the tiles of any square
+ * block of the map are contiguous and those of a viewport are spread over only a few runs. The zoom comes first so that
+ * the levels don't interleave, as they would with bare quadkeys.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public final class TileKeys {
+
+    /**
+     * Deepest zoom level that can be encoded, at which a quadkey takes 60 bits.
+     */
+    public static final int MAX_ZOOM = 30;
+
+    /**
+     * A tile path relative to a dataset: zoom/x/y with an optional extension.
+     */
+    private static final Pattern TILE_PATH_PATTERN = Pattern.compile("(\\d{1,2})/(\\d{1,10})/(\\d{1,10})(\\.[^/]*)?");
+
+    private TileKeys() {
+    }
+
+    /**
+     * @return the key of a tile, without an extension
+     * @throws IllegalArgumentException
+     *         if the tile is not on the map at that zoom level
+     */
+    public static String encode(final int zoom, final long x, final long y) {
+        return encode(zoom, x, y, "");
+    }
+
+    /**
+     * @param extension
+     *        appended to the key as is, including any leading "."
+     * @return the key of a tile
+     * @throws IllegalArgumentException
+     *         if the tile is not on the map at that zoom level
+     */
+    public static String encode(final int zoom, final long x, final long y, final String extension) {
+
+        if (!isOnMap(zoom, x, y)) {
+            throw new IllegalArgumentException("Tile is not on the map: zoom=" + zoom + " x=" + x + " y=" + y);
+        }
+
+        StringBuilder key = new StringBuilder(3 + zoom + extension.length());
+        key.append((char) ('0' + zoom / 10)).append((char) ('0' + zoom % 10)).append('-');
+
+        for (int level = zoom - 1; level >= 0; level--) {
+            key.append((char) ('0' + ((x >>> level) & 1) + (((y >>> level) & 1) << 1)));
+        }
+
+        return key.append(extension).toString();
+    }
+
+    /**
+     * Turns a tile path, zoom/x/y with an optional extension, into the key of the tile.
+     * 
+     * @return the key or null if the path isn't a tile on the map
+     */
+    public static String fromPath(final String path) {
+
+        Matcher matcher = TILE_PATH_PATTERN.matcher(path);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        int zoom = Integer.parseInt(matcher.group(1));
+        long x = Long.parseLong(matcher.group(2));
+        long y = Long.parseLong(matcher.group(3));
+
+        if (!isOnMap(zoom, x, y)) {
+            return null;
+        }
+
+        return encode(zoom, x, y, matcher.group(4) == null ? "" : matcher.group(4));
+    }
+
+    /**
+     * The keys of the tiles around a tile at the same zoom level, with the same extension. Tiles off the edge of the map
+     * are left out.
+     * 
+     * @return up to eight keys, none if the key is not a tile key
+     */
+    public static List<String> getNeighbours(final String key) {
+
+        long position = getPosition(new Text(key));
+        if (position < 0) {
+            return Collections.emptyList();
+        }
+
+        int zoom = (key.charAt(0) - '0') * 10 + key.charAt(1) - '0';
+        String extension = key.substring(3 + zoom);
+
+        // undo the interleaving of the quadkey
+        long x = 0;
+        long y = 0;
+        for (int level = 0; level < zoom; level++) {
+
+            int digit = key.charAt(2 + zoom - level) - '0';
+            x |= (long) (digit & 1) << level;
+            y |= (long) (digit >> 1) << level;
+        }
+
+        List<String> neighbours = new ArrayList<String>(8);
+        for (long dy = -1; dy <= 1; dy++) {
+            for (long dx = -1; dx <= 1; dx++) {
+
+                if ((dx != 0 || dy != 0) && isOnMap(zoom, x + dx, y + dy)) {
+                    neighbours.add(encode(zoom, x + dx, y + dy, extension));
+                }
+            }
+        }
+
+        return neighbours;
+    }
+
+    /**
+     * The position of a tile along the Z-order curve at {@link #MAX_ZOOM}, that is of its top left corner. A tile and
+     * everything under it at deeper zoom levels have positions in the same range.
+     * 
+     * @return the position, from 0 up to 2<sup>60</sup>, or -1 if the key is not a tile key
+     */
+    public static long getPosition(final Text key) {
+
+        byte[] bytes = key.getBytes();
+        int length = key.getLength();
+
+        if (length < 3 || !isDigit(bytes[0]) || !isDigit(bytes[1]) || bytes[2] != '-') {
+            return -1;
+        }
+
+        int zoom = (bytes[0] - '0') * 10 + bytes[1] - '0';
+        if (zoom > MAX_ZOOM || length < 3 + zoom) {
+            return -1;
+        }
+
+        long position = 0;
+        for (int i = 3; i < 3 + zoom; i++) {
+
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 3) {
+                return -1;
+            }
+
+            position = position << 2 | digit;
+        }
+
+        // anything after the quadkey has to be an extension
+        if (length > 3 + zoom && bytes[3 + zoom] != '.') {
+            return -1;
+        }
+
+        return position << 2 * (MAX_ZOOM - zoom);
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isOnMap(final int zoom, final long x, final long y) {
+        return zoom >= 0 && zoom <= MAX_ZOOM && x >= 0 && y >= 0 && x < 1L << zoom && y < 1L << zoom;
+    }
+}
@@ -0,0 +1,34 @@
+package org.apache.hadoop.mapreduce.lib.partition;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.lib.output.BloomMapFileOutputFormat;
+
+/**
+ * Partitions {@link TileKeys tile keys} by range, so that each partition holds one contiguous stretch of the map. The
+ * Z-order curve at {@link TileKeys#MAX_ZOOM} is split into equal ranges, one per partition, and each tile goes to the
+ * partition that holds its top left corner. Tiles that are close on the map, at any zoom level, therefore land in the
+ * same part and, since keys sort by zoom then quadkey, a viewport's tiles sit together in that part's data file.
+ * 
+ * <p>
+ * Used with {@link BloomMapFileOutputFormat}, the partitioner is recorded in the dataset manifest so that lookups are
+ * routed straight to the owning part. Partitions are only as even as the tiles are spread over the map. Any key that is
+ * not a tile key is hash partitioned, the same as {@link HashPartitioner}.
+ * </p>
+ * 
+ * @author Josh Devins
+ */
+public class TileRangePartitioner<V> extends Partitioner<Text, V> {
+
+    @Override
+    public int getPartition(final Text key, final V value, final int numPartitions) {
+
+        long position = TileKeys.getPosition(key);
+        if (position < 0) {
+            return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+
+        // top 32 bits of the 60 bit position, scaled to the number of partitions
+        return (int) (((position >>> (2 * TileKeys.MAX_ZOOM - 32)) * numPartitions) >>> 32);
+    }
+}
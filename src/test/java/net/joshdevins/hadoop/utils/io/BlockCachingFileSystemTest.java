@@ -0,0 +1,131 @@
+package net.joshdevins.hadoop.utils.io;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.joshdevins.hadoop.utils.MainUtils;
+import net.joshdevins.hadoop.utils.io.converter.FilesIntoBloomMapFile;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFileReader;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockCachingFileSystemTest {
+
+    private static final String TEST_OUTPUT = "target/test/output/BlockCachingFileSystemTest";
+
+    private static final String TEST_BLOOMMAPFILE = TEST_OUTPUT + "/dataset/bloom.map";
+
+    private static final File TEST_CACHE_DIR = new File(TEST_OUTPUT + "/cache");
+
+    private Configuration conf;
+
+    private FileSystem fs;
+
+    @Before
+    public void before() throws Exception {
+
+        FileUtils.createDirectoryDestructive(TEST_OUTPUT);
+
+        conf = new Configuration();
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        fs = FileSystem.getLocal(conf);
+
+        MainUtils.toolRunnerWithoutExit(new FilesIntoBloomMapFile(), new String[] { "src/test/resources/input/files",
+                TEST_BLOOMMAPFILE });
+    }
+
+    @Test
+    public void testOpen() throws IOException {
+
+        // small blocks, so that records and the index span several of them
+        LocalBlockCache cache = new LocalBlockCache(TEST_CACHE_DIR, 1024 * 1024, 64);
+        BlockCachingFileSystem cachingFs = new BlockCachingFileSystem(fs, cache);
+
+        Path dataPath = new Path(TEST_BLOOMMAPFILE, MapFile.DATA_FILE_NAME);
+        byte[] expected = readFully(fs, dataPath);
+        Assert.assertArrayEquals(expected, readFully(cachingFs, dataPath));
+        Assert.assertTrue(cache.getMissCount() > 0);
+
+        // now all from local disk
+        long misses = cache.getMissCount();
+        Assert.assertArrayEquals(expected, readFully(cachingFs, dataPath));
+        Assert.assertEquals(misses, cache.getMissCount());
+
+        // positional reads across a block boundary
+        FSDataInputStream in = cachingFs.open(dataPath);
+        byte[] range = new byte[100];
+        in.readFully(30, range);
+        in.close();
+
+        for (int i = 0; i < range.length; i++) {
+            Assert.assertEquals(expected[30 + i], range[i]);
+        }
+
+        // the Bloom filter isn't cached
+        Assert.assertEquals(fs.open(new Path(TEST_BLOOMMAPFILE, "bloom")).getClass(), cachingFs.open(
+                new Path(TEST_BLOOMMAPFILE, "bloom")).getClass());
+    }
+
+    @Test
+    public void testBloomMapFileReader() throws IOException {
+
+        LocalBlockCache cache = new LocalBlockCache(TEST_CACHE_DIR, 1024 * 1024, 64);
+        assertLookups(new BlockCachingFileSystem(fs, cache));
+
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        Assert.assertTrue(misses > 0);
+
+        // blocks survive a restart
+        cache = new LocalBlockCache(TEST_CACHE_DIR, 1024 * 1024, 64);
+        Assert.assertTrue(cache.size() > 0);
+
+        assertLookups(new BlockCachingFileSystem(fs, cache));
+        Assert.assertEquals(0, cache.getMissCount());
+        Assert.assertTrue(cache.getHitCount() > hits);
+    }
+
+    private void assertLookups(final FileSystem cachingFs) throws IOException {
+
+        BloomMapFileReader reader = new BloomMapFileReader(cachingFs, TEST_BLOOMMAPFILE, conf);
+        try {
+            Assert.assertTrue(reader.isPositionalReads());
+            Assert.assertFalse(reader.isMappedReads());
+
+            for (int i = 0; i < 3; i++) {
+
+                BytesWritable value = (BytesWritable) reader.get(new Text(i + ".txt"), new BytesWritable());
+                Assert.assertEquals("Contents of file " + i, new String(value.getBytes(), 0, value.getLength()));
+            }
+
+            Assert.assertNull(reader.get(new Text("foo.txt"), new BytesWritable()));
+
+        } finally {
+            IOUtils.closeStream(reader);
+        }
+    }
+
+    private static byte[] readFully(final FileSystem fs, final Path path) throws IOException {
+
+        byte[] bytes = new byte[(int) fs.getFileStatus(path).getLen()];
+
+        FSDataInputStream in = fs.open(path);
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,109 @@
+package net.joshdevins.hadoop.utils.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.joshdevins.hadoop.utils.io.LocalBlockCache.FileKey;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalBlockCacheTest {
+
+    private static final String TEST_OUTPUT = "target/test/output/LocalBlockCacheTest";
+
+    private static final File TEST_CACHE_DIR = new File(TEST_OUTPUT + "/cache");
+
+    @Before
+    public void before() throws IOException {
+        FileUtils.createDirectoryDestructive(TEST_OUTPUT);
+    }
+
+    @Test
+    public void testPutAndRead() throws IOException {
+
+        LocalBlockCache cache = new LocalBlockCache(TEST_CACHE_DIR, 1024, 10);
+        FileKey key = cache.getKey(newStatus("/a", 25, 1));
+
+        Assert.assertEquals(10, cache.getBlockLength(key, 0));
+        Assert.assertEquals(5, cache.getBlockLength(key, 2));
+
+        byte[] bytes = new byte[10];
+        Assert.assertEquals(-1, cache.read(key, 2, 0, bytes, 0, bytes.length));
+
+        cache.put(key, 2, "abcde".getBytes(), 5);
+        Assert.assertEquals(3, cache.read(key, 2, 2, bytes, 1, bytes.length - 1));
+        Assert.assertEquals("cde", new String(bytes, 1, 3));
+
+        // a new version of the file has none of the old blocks
+        FileKey replaced = cache.getKey(newStatus("/a", 25, 2));
+        Assert.assertEquals(-1, cache.read(replaced, 2, 0, bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void testRead_Truncated() throws IOException {
+
+        LocalBlockCache cache = new LocalBlockCache(TEST_CACHE_DIR, 1024, 10);
+        FileKey key = cache.getKey(newStatus("/a", 20, 1));
+        cache.put(key, 0, "0123456789".getBytes(), 10);
+
+        FileOutputStream out = new FileOutputStream(TEST_CACHE_DIR.listFiles()[0]);
+        out.write("01234".getBytes());
+        out.close();
+
+        // treated as a miss, and gone from the cache
+        byte[] bytes = new byte[10];
+        Assert.assertEquals(-1, cache.read(key, 0, 0, bytes, 0, bytes.length));
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.sizeInBytes());
+        Assert.assertEquals(0, TEST_CACHE_DIR.list().length);
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+
+        LocalBlockCache cache = new LocalBlockCache(TEST_CACHE_DIR, 30, 10);
+        FileKey key = cache.getKey(newStatus("/a", 100, 1));
+        byte[] bytes = new byte[10];
+
+        for (int i = 0; i < 3; i++) {
+            cache.put(key, i, bytes, bytes.length);
+        }
+
+        // touch the first block, so that the second is least recently used
+        Assert.assertEquals(10, cache.read(key, 0, 0, bytes, 0, bytes.length));
+        cache.put(key, 3, bytes, bytes.length);
+
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(30, cache.sizeInBytes());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertEquals(-1, cache.read(key, 1, 0, bytes, 0, bytes.length));
+        Assert.assertEquals(3, TEST_CACHE_DIR.list().length);
+    }
+
+    @Test
+    public void testRecover() throws IOException {
+
+        LocalBlockCache cache = new LocalBlockCache(TEST_CACHE_DIR, 1024, 10);
+        FileKey key = cache.getKey(newStatus("/a", 20, 1));
+        cache.put(key, 0, "0123456789".getBytes(), 10);
+        cache.put(key, 1, "abcdefghij".getBytes(), 10);
+
+        // a half-written block and a block cut short
+        File[] blocks = TEST_CACHE_DIR.listFiles();
+        new FileOutputStream(new File(TEST_CACHE_DIR, "partial.1.tmp")).close();
+        new FileOutputStream(blocks[0]).close();
+
+        cache = new LocalBlockCache(TEST_CACHE_DIR, 1024, 10);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(1, TEST_CACHE_DIR.list().length);
+    }
+
+    private static FileStatus newStatus(final String path, final long length, final long modificationTime) {
+        return new FileStatus(length, false, 1, 64 * 1024 * 1024, modificationTime, new Path(path));
+    }
+}
@@ -0,0 +1,36 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void testTryAdmit() {
+
+        AdmissionControl admission = new AdmissionControl(3, 2);
+
+        Assert.assertTrue(admission.tryAdmit("/busy"));
+        Assert.assertTrue(admission.tryAdmit("/busy"));
+
+        // busy dataset is at its own bound, others aren't affected
+        Assert.assertFalse(admission.tryAdmit("/busy"));
+        Assert.assertEquals(1, admission.getDataSetRejectionCount());
+        Assert.assertTrue(admission.tryAdmit("/quiet"));
+
+        // server is at its bound
+        Assert.assertFalse(admission.tryAdmit("/other"));
+        Assert.assertEquals(1, admission.getRejectionCount());
+        Assert.assertEquals(3, admission.getInFlight());
+
+        admission.finish("/busy");
+        Assert.assertTrue(admission.tryAdmit("/busy"));
+
+        admission.finish("/busy");
+        admission.finish("/busy");
+        admission.finish("/quiet");
+        Assert.assertEquals(0, admission.getInFlight());
+        Assert.assertEquals(0, admission.getInFlight("/busy"));
+        Assert.assertEquals(0, admission.getInFlight("/other"));
+    }
+}
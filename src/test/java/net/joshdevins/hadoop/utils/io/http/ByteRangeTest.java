@@ -0,0 +1,44 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testParse() {
+
+        assertRange(0, 499, ByteRange.parse("bytes=0-499").resolve(1000));
+        assertRange(500, 999, ByteRange.parse("bytes=500-").resolve(1000));
+        assertRange(500, 999, ByteRange.parse("bytes=-500").resolve(1000));
+        assertRange(900, 999, ByteRange.parse("Bytes=900-5000").resolve(1000));
+        assertRange(0, 999, ByteRange.parse("bytes=-5000").resolve(1000));
+    }
+
+    @Test
+    public void testParse_Invalid() {
+
+        Assert.assertNull(ByteRange.parse(null));
+        Assert.assertNull(ByteRange.parse("items=0-1"));
+        Assert.assertNull(ByteRange.parse("bytes=0-1,5-6"));
+        Assert.assertNull(ByteRange.parse("bytes=-"));
+        Assert.assertNull(ByteRange.parse("bytes=5-1"));
+        Assert.assertNull(ByteRange.parse("bytes=a-b"));
+        Assert.assertNull(ByteRange.parse("bytes=--5"));
+    }
+
+    @Test
+    public void testResolve_Unsatisfiable() {
+
+        Assert.assertNull(ByteRange.parse("bytes=1000-").resolve(1000));
+        Assert.assertNull(ByteRange.parse("bytes=-0").resolve(1000));
+        Assert.assertNull(ByteRange.parse("bytes=-10").resolve(0));
+    }
+
+    private static void assertRange(final long first, final long last, final ByteRange range) {
+
+        Assert.assertEquals(first, range.getFirst());
+        Assert.assertEquals(last, range.getLast());
+        Assert.assertEquals(last - first + 1, range.getLength());
+    }
+}
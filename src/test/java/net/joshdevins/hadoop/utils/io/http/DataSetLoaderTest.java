@@ -0,0 +1,199 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.joshdevins.hadoop.utils.MainUtils;
+import net.joshdevins.hadoop.utils.io.http.DataSet.LookupMode;
+import net.joshdevins.hadoop.utils.io.FileUtils;
+import net.joshdevins.hadoop.utils.io.converter.FilesIntoBloomMapFile;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFileReader;
+import org.apache.hadoop.io.BloomMapFileWriter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.output.DataSetHashIndex;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataSetLoaderTest {
+
+    private static final String TEST_OUTPUT = "target/test/output/DataSetLoaderTest";
+
+    private Configuration conf;
+
+    private ExecutorService executor;
+
+    @Before
+    public void before() throws Exception {
+
+        FileUtils.createDirectoryDestructive(TEST_OUTPUT);
+        MainUtils.toolRunnerWithoutExit(new FilesIntoBloomMapFile(), new String[] { "src/test/resources/input/files",
+                TEST_OUTPUT + "/pinned/bloom.map" });
+
+        conf = new Configuration();
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testLoad_Pinned() throws Exception {
+
+        MemoryBudget budget = new MemoryBudget(1024 * 1024);
+        DataSet dataset = newLoader(budget).load("/pinned");
+
+        BloomMapFileReader reader = dataset.getReaders()[0];
+        Assert.assertTrue(reader.isPinned());
+        Assert.assertTrue(dataset.getPinnedSize() > reader.getDataLength());
+        Assert.assertEquals(dataset.getPinnedSize(), budget.getUsed());
+
+        ByteBuffer value = dataset.getValue(new Text("1.txt"));
+        byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        Assert.assertEquals("Contents of file 1", new String(bytes));
+
+        // memory is given back once the readers are closed
+        dataset.retire();
+        Assert.assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testLoad_PinnedOverBudget() throws Exception {
+
+        MemoryBudget budget = new MemoryBudget(16);
+        DataSet dataset = newLoader(budget).load("/pinned");
+
+        // still served, just from the filesystem
+        Assert.assertFalse(dataset.getReaders()[0].isPinned());
+        Assert.assertNotNull(dataset.getValue(new Text("1.txt")));
+        Assert.assertEquals(0, budget.getUsed());
+
+        dataset.retire();
+        Assert.assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testLoad_FoundFiles() throws Exception {
+
+        DataSet dataset = newLoader(new MemoryBudget(16)).load("/pinned");
+        LocationCache foundFiles = dataset.getFoundFiles();
+
+        for (int i = 0; i < 2; i++) {
+
+            ByteBuffer value = dataset.getValue(new Text("1.txt"));
+            byte[] bytes = new byte[value.remaining()];
+            value.get(bytes);
+            Assert.assertEquals("Contents of file 1", new String(bytes));
+        }
+
+        // second lookup is read from where the first found it
+        Assert.assertEquals(1, foundFiles.size());
+        Assert.assertEquals(1, foundFiles.getHitCount());
+
+        DataSet.StoredValue stored = dataset.locateValue(new Text("1.txt"));
+        Assert.assertEquals("Contents of file 1".length(), stored.getLength());
+        Assert.assertEquals(2, foundFiles.getHitCount());
+
+        dataset.retire();
+    }
+
+    @Test
+    public void testLoad_HashIndex() throws Exception {
+
+        Assert.assertTrue(DataSetHashIndex.build(FileSystem.getLocal(conf), new Path(TEST_OUTPUT + "/pinned"), conf));
+        DataSet dataset = newLoader(new MemoryBudget(16)).load("/pinned");
+
+        Assert.assertNotNull(dataset.getHashIndex());
+        Assert.assertNull(dataset.getFoundFiles());
+
+        ByteBuffer value = dataset.getValue(new Text("1.txt"));
+        byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        Assert.assertEquals("Contents of file 1", new String(bytes));
+
+        DataSet.StoredValue stored = dataset.locateValue(new Text("1.txt"));
+        Assert.assertEquals("Contents of file 1".length(), stored.getLength());
+        Assert.assertNull(dataset.getValue(new Text("missing.txt")));
+
+        // neither the Bloom filter nor the index of the part was needed
+        BloomMapFileReader reader = dataset.getReaders()[0];
+        Assert.assertEquals(0, reader.getBloomProbeCount());
+        Assert.assertFalse(reader.isIndexLoaded());
+
+        dataset.retire();
+    }
+
+    @Test
+    public void testLoad_KeyRanges() throws Exception {
+
+        // two converter runs over files that don't overlap
+        MainUtils.toolRunnerWithoutExit(new FilesIntoBloomMapFile(), new String[] { "src/test/resources/input/files",
+                TEST_OUTPUT + "/ranges/one.map" });
+        FileSystem fs = FileSystem.getLocal(conf);
+        BloomMapFileWriter writer = new BloomMapFileWriter(conf, fs, TEST_OUTPUT + "/ranges/two.map", Text.class,
+                BytesWritable.class, CompressionType.NONE);
+        writer.append(new Text("z.txt"), new BytesWritable("Contents of file z".getBytes()));
+        IOUtils.closeStream(writer);
+
+        Path part = new Path(TEST_OUTPUT + "/ranges/two.map");
+        DataSetManifest.update(fs, part.getParent(), Part.summarize(fs, part, writer), Text.class,
+                BytesWritable.class);
+
+        DataSet dataset = newLoader(new MemoryBudget(16)).load("/ranges");
+        Assert.assertEquals(LookupMode.PARTITIONED, dataset.getLookupMode());
+
+        Assert.assertNotNull(dataset.getValue(new Text("z.txt")));
+        Assert.assertNotNull(dataset.getValue(new Text("1.txt")));
+        Assert.assertNull(dataset.getValue(new Text("y.txt")));
+
+        // a single Bloom filter checked for each
+        Assert.assertEquals(3, dataset.getBloomProbeCount());
+
+        dataset.retire();
+    }
+
+    @Test
+    public void testLoad_Interrupted() throws Exception {
+
+        DataSetLoader loader = newLoader(new MemoryBudget(16));
+
+        // waits for the parts being opened, so they can be closed, and keeps the interrupt
+        Thread.currentThread().interrupt();
+        try {
+            loader.load("/pinned");
+            Assert.fail("Expected exception");
+
+        } catch (HttpErrorException hee) {
+            Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, hee.getStatusCode());
+
+        } finally {
+            Assert.assertTrue(Thread.interrupted());
+        }
+    }
+
+    private DataSetLoader newLoader(final MemoryBudget budget) throws Exception {
+        DataSetLoader loader = new DataSetLoader(FileSystem.getLocal(conf), conf, TEST_OUTPUT, 1024, 60000,
+                64 * 1024, Collections.singleton("/pinned"), budget, true);
+        loader.setExecutor(executor);
+
+        return loader;
+    }
+}
@@ -0,0 +1,74 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import net.joshdevins.hadoop.utils.MainUtils;
+import net.joshdevins.hadoop.utils.io.FileUtils;
+import net.joshdevins.hadoop.utils.io.converter.FilesIntoBloomMapFile;
+import net.joshdevins.hadoop.utils.io.http.DataSet.LookupMode;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.BloomMapFileReader;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataSetTest {
+
+    private static final String TEST_BLOOMMAPFILE = "target/test/output/DataSetTest/dataset/bloom.map";
+
+    private DataSet dataset;
+
+    @Before
+    public void before() throws Exception {
+
+        FileUtils.createDirectoryDestructive("target/test/output/DataSetTest");
+        MainUtils.toolRunnerWithoutExit(new FilesIntoBloomMapFile(), new String[] { "src/test/resources/input/files",
+                TEST_BLOOMMAPFILE });
+
+        Configuration conf = new Configuration();
+        BloomMapFileReader reader = new BloomMapFileReader(FileSystem.getLocal(conf), TEST_BLOOMMAPFILE, conf);
+
+        dataset = new DataSet("/dataset", new BloomMapFileReader[] { reader }, LookupMode.SCAN, new NegativeCache(
+                1024, 60000), 1);
+    }
+
+    @Test
+    public void testRetire() throws Exception {
+
+        Assert.assertTrue(dataset.acquire());
+        dataset.retire();
+
+        // a request in flight can still use the readers, but no new ones can start
+        Assert.assertFalse(dataset.acquire());
+        Assert.assertTrue(dataset.get(new Text("0.txt"), new BytesWritable()));
+        Assert.assertNotNull(dataset.getReaders()[0]);
+
+        // closed once the last request is done
+        dataset.release();
+        Assert.assertNull(dataset.getReaders()[0]);
+        Assert.assertFalse(dataset.acquire());
+    }
+
+    @Test
+    public void testRetire_Idle() {
+
+        dataset.retire();
+        Assert.assertNull(dataset.getReaders()[0]);
+
+        // only the first retire drops the handler's reference
+        dataset.retire();
+        Assert.assertFalse(dataset.acquire());
+    }
+
+    @Test
+    public void testGetCacheKey() {
+
+        DataSet other = new DataSet("/dataset", new BloomMapFileReader[0], LookupMode.SCAN, new NegativeCache(1024,
+                60000), 1);
+
+        Assert.assertTrue(dataset.getCacheKey().startsWith("/dataset"));
+        Assert.assertFalse(dataset.getCacheKey().equals(other.getCacheKey()));
+    }
+}
@@ -0,0 +1,15 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Runs all of the server tests again with lookups done on the I/O executor.
+ */
+public class HttpHdfsFileServerAsyncTest extends HttpHdfsFileServerTest {
+
+    @Override
+    protected void configure(final Configuration conf) {
+        conf.setBoolean(JettyBloomMapFileHandler.ASYNC_KEY, true);
+        conf.setInt(JettyBloomMapFileHandler.IO_THREADS_KEY, 2);
+    }
+}
@@ -10,6 +10,8 @@ import net.joshdevins.hadoop.utils.io.FileUtils;
 import net.joshdevins.hadoop.utils.io.IOUtils;
 import net.joshdevins.hadoop.utils.io.converter.FilesIntoBloomMapFile;
 
+import org.apache.hadoop.conf.Configuration;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -31,9 +33,11 @@ public class HttpHdfsFileServerTest {
         }
     }
 
+    private static final int DEFAULT_MAX_THREADS = 256;
+
     private static final String TEST_ROOT = "target/test/output/HttpHdfsFileServerTest";
 
-    private HttpHdfsFileServer server;
+    protected HttpHdfsFileServer server;
 
     private Runner runner;
 
@@ -56,12 +60,14 @@ public class HttpHdfsFileServerTest {
         // create the server
         port = IOUtils.getRandomUnusedPort();
         server = new HttpHdfsFileServer(port, TEST_ROOT);
+        configure(((AbstractJettyHdfsFileHandler) server.getJettyServer().getHandler()).getConfiguration());
 
         // run the server
         runner = new Runner(server);
         runner.start();
 
-        while (server.getJettyServer().isStarting()) {
+        // the runner might not have begun starting the server yet, and warm-up runs as the handler starts
+        while (!server.getJettyServer().isStarted() && !server.getJettyServer().isFailed()) {
             Thread.sleep(100);
         }
 
@@ -69,6 +75,13 @@ public class HttpHdfsFileServerTest {
         Thread.sleep(100);
     }
 
+    /**
+     * Hook to configure the handler before the server is started.
+     */
+    protected void configure(final Configuration conf) {
+        // defaults
+    }
+
     public String makeHttpGetRequest(final String path) throws IOException {
 
         InputStream is = makeHttpGetRequestRaw(path);
@@ -101,6 +114,46 @@ public class HttpHdfsFileServerTest {
         return connection.getInputStream();
     }
 
+    @Test
+    public void testCreateConnectorAndThreadPool() {
+
+        Assert.assertEquals(DEFAULT_MAX_THREADS, server.getThreadPool().getMaxThreads());
+        Assert.assertTrue(server.getConnector().getStatsOn());
+
+        Configuration conf = new Configuration();
+        conf.setInt(HttpHdfsFileServer.ACCEPT_QUEUE_SIZE_KEY, 10);
+        conf.setInt(HttpHdfsFileServer.IDLE_TIMEOUT_KEY, 1000);
+        conf.setBoolean(HttpHdfsFileServer.DIRECT_BUFFERS_KEY, false);
+        conf.setInt(HttpHdfsFileServer.MAX_THREADS_KEY, 8);
+
+        SelectChannelConnector connector = HttpHdfsFileServer.createConnector(8080, conf);
+        Assert.assertEquals(8080, connector.getPort());
+        Assert.assertEquals(10, connector.getAcceptQueueSize());
+        Assert.assertEquals(1000, connector.getMaxIdleTime());
+        Assert.assertFalse(connector.getUseDirectBuffers());
+
+        Assert.assertEquals(8, HttpHdfsFileServer.createThreadPool(conf, HttpHdfsFileServer.createJobQueue(conf))
+                .getMaxThreads());
+    }
+
+    @Test
+    public void testServerMetrics() throws Exception {
+
+        makeHttpGetRequest("/dataset/0.txt");
+
+        ServerMetrics metrics = ((JettyBloomMapFileHandler) server.getJettyServer().getHandler()).getMetrics()
+                .getServerMetrics();
+        Assert.assertTrue(metrics.isStatsOn());
+        Assert.assertTrue(metrics.getConnectionCount() >= 1);
+        Assert.assertTrue(metrics.getOpenConnectionCount() <= metrics.getConnectionCount());
+        Assert.assertTrue(metrics.getThreadCount() > 0);
+        Assert.assertEquals(DEFAULT_MAX_THREADS, metrics.getMaxThreadCount());
+
+        String stats = makeHttpGetRequest(JettyBloomMapFileHandler.STATS_PATH);
+        Assert.assertTrue(stats.contains("\"connector\":{\"statsOn\":true"));
+        Assert.assertTrue(stats.contains("\"threadPool\":{\"threads\":"));
+    }
+
     @Test
     public void testCustom404() throws Exception {
 
@@ -115,6 +168,11 @@ public class HttpHdfsFileServerTest {
         Assert.assertTrue(makeHttpGetRequest("/dataset/foo.txt").contains("404"));
     }
 
+    @Test
+    public void testReady() throws Exception {
+        Assert.assertEquals("ready", makeHttpGetRequest(JettyBloomMapFileHandler.READY_PATH));
+    }
+
     @Test
     public void testSuccess() throws Exception {
 
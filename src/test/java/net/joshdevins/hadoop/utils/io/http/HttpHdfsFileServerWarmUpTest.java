@@ -0,0 +1,78 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.joshdevins.hadoop.utils.io.FileUtils;
+import net.joshdevins.hadoop.utils.io.IOUtils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs all of the server tests again with a dataset and some of its files warmed up on startup.
+ */
+public class HttpHdfsFileServerWarmUpTest extends HttpHdfsFileServerTest {
+
+    private static final String TEST_OUTPUT = "target/test/output/HttpHdfsFileServerWarmUpTest";
+
+    private static final String WARM_FILES = TEST_OUTPUT + "/warm.txt";
+
+    @Override
+    protected void configure(final Configuration conf) {
+
+        try {
+            FileUtils.createDirectoryDestructive(TEST_OUTPUT);
+
+            FileOutputStream out = new FileOutputStream(WARM_FILES);
+            try {
+                out.write("/dataset/0.txt\n/dataset/1.txt\n/dataset/foo.txt\n\n".getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+
+        conf.set(JettyBloomMapFileHandler.WARM_DATASETS_KEY, "/dataset");
+        conf.set(JettyBloomMapFileHandler.WARM_FILES_KEY, WARM_FILES);
+    }
+
+    @Test
+    public void testWarmUp() {
+
+        JettyBloomMapFileHandler handler = getHandler();
+
+        Assert.assertTrue(handler.isReady());
+        Assert.assertNotNull(handler.getLookupMode("/dataset"));
+        Assert.assertEquals(2, handler.getValueCache().size());
+    }
+
+    @Test
+    public void testSaveWarmFiles() throws IOException {
+
+        getHandler().saveWarmFiles();
+
+        FileInputStream in = new FileInputStream(WARM_FILES);
+        List<String> lines;
+        try {
+            lines = Arrays.asList(new String(IOUtils.getBytesFromInputStream(in), "UTF-8").split("\n"));
+        } finally {
+            in.close();
+        }
+
+        Collections.sort(lines);
+
+        Assert.assertEquals(Arrays.asList("/dataset/0.txt", "/dataset/1.txt"), lines);
+    }
+
+    private JettyBloomMapFileHandler getHandler() {
+        return (JettyBloomMapFileHandler) server.getJettyServer().getHandler();
+    }
+}
@@ -1,8 +1,21 @@
 package net.joshdevins.hadoop.utils.io.http;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -11,18 +24,27 @@ import net.joshdevins.hadoop.utils.MainUtils;
 import net.joshdevins.hadoop.utils.Pair;
 import net.joshdevins.hadoop.utils.io.FileUtils;
 import net.joshdevins.hadoop.utils.io.converter.FilesIntoBloomMapFile;
+import net.joshdevins.hadoop.utils.io.http.DataSet.LookupMode;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BloomMapFileWriter;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.output.BloomMapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.mapreduce.lib.partition.TileKeys;
+import org.apache.hadoop.mapreduce.lib.partition.TileRangePartitioner;
 import org.eclipse.jetty.server.Request;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 public class JettyBloomMapFileHandlerTest {
@@ -88,6 +110,65 @@ public class JettyBloomMapFileHandlerTest {
         Mockito.verify(mockResponse, Mockito.times(3)).setStatus(HttpServletResponse.SC_OK);
     }
 
+    @Test
+    public void testHandleWithExceptionTranslation_POST() throws IOException {
+
+        ByteArrayOutputStream baos = setupMockOutputStream();
+
+        Mockito.when(mockRequest.getMethod()).thenReturn("POST");
+        setupMockInputStream("2.txt\n0.txt\n\nfoo.txt\n0.txt\n");
+
+        handler.handleWithExceptionTranslation("/dataset", baseRequest, mockRequest, mockResponse);
+
+        // in key order, then misses
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        assertBatchEntry(in, "0.txt", "Contents of file 0");
+        assertBatchEntry(in, "2.txt", "Contents of file 2");
+        assertBatchEntry(in, "foo.txt", null);
+        assertBatchEnd(in);
+
+        Mockito.verify(mockResponse).setContentType(JettyBloomMapFileHandler.BATCH_CONTENT_TYPE);
+        Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        // misses are now known, hits are cached
+        baos.reset();
+        setupMockInputStream("foo.txt\n2.txt\n1.txt");
+        handler.handleWithExceptionTranslation("/dataset/", baseRequest, mockRequest, mockResponse);
+
+        in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        assertBatchEntry(in, "2.txt", "Contents of file 2");
+        assertBatchEntry(in, "1.txt", "Contents of file 1");
+        assertBatchEntry(in, "foo.txt", null);
+        assertBatchEnd(in);
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_POST_Error() throws IOException {
+
+        // the client goes away part way through the first entry
+        ServletOutputStream os = new ServletOutputStream() {
+
+            private int written;
+
+            @Override
+            public void write(final int b) throws IOException {
+                if (++written > 8) {
+                    throw new IOException("Connection reset");
+                }
+            }
+        };
+
+        Mockito.when(mockResponse.getOutputStream()).thenReturn(os);
+        Mockito.when(mockRequest.getMethod()).thenReturn("POST");
+        setupMockInputStream("0.txt\n1.txt\n");
+
+        // no error page, it's too late for one
+        handler.handleWithExceptionTranslation("/dataset", baseRequest, mockRequest, mockResponse);
+
+        Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(mockResponse, Mockito.never()).getWriter();
+    }
+
     @Test
     public void testHandleWithExceptionTranslation_GET() throws IOException {
 
@@ -108,6 +189,181 @@ public class JettyBloomMapFileHandlerTest {
         baos.reset();
 
         Mockito.verify(mockResponse, Mockito.times(3)).setStatus(HttpServletResponse.SC_OK);
+
+        // never chunked, whether read from the file or the cache
+        Mockito.verify(mockResponse, Mockito.times(2)).setContentLength("Contents of file 1".length());
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_Conditional() throws IOException {
+
+        ByteArrayOutputStream baos = setupMockOutputStream();
+
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents of file 1", baos.toString());
+        baos.reset();
+
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Long> lastModified = ArgumentCaptor.forClass(Long.class);
+        Mockito.verify(mockResponse).setHeader(Mockito.eq("ETag"), etag.capture());
+        Mockito.verify(mockResponse).setDateHeader(Mockito.eq("Last-Modified"), lastModified.capture());
+
+        // revalidate by entity tag, among others
+        Mockito.when(mockRequest.getHeader("If-None-Match")).thenReturn("\"other\", W/" + etag.getValue());
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals(0, baos.size());
+
+        // a different file has a different tag
+        handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents of file 0", baos.toString());
+        baos.reset();
+
+        // revalidate by date
+        Mockito.when(mockRequest.getHeader("If-None-Match")).thenReturn(null);
+        Mockito.when(mockRequest.getDateHeader("If-Modified-Since")).thenReturn(lastModified.getValue());
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals(0, baos.size());
+
+        Mockito.when(mockRequest.getDateHeader("If-Modified-Since")).thenReturn(lastModified.getValue() - 60000);
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents of file 1", baos.toString());
+
+        Mockito.verify(mockResponse, Mockito.times(2)).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Mockito.verify(mockResponse, Mockito.times(3)).setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_Range() throws IOException {
+
+        ByteArrayOutputStream baos = setupMockOutputStream();
+
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+        Mockito.when(mockRequest.getHeader("Range")).thenReturn("bytes=0-7");
+
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents", baos.toString());
+        baos.reset();
+
+        Mockito.verify(mockResponse).setHeader("Content-Range", "bytes 0-7/18");
+
+        // suffix
+        Mockito.when(mockRequest.getHeader("Range")).thenReturn("bytes=-6");
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("file 1", baos.toString());
+        baos.reset();
+
+        Mockito.verify(mockResponse, Mockito.times(2)).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+        // a stale If-Range gets the whole file
+        Mockito.when(mockRequest.getHeader("If-Range")).thenReturn("\"stale\"");
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents of file 1", baos.toString());
+        baos.reset();
+
+        Mockito.verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        // from the value cache, now that the whole file has been read
+        Mockito.when(mockRequest.getHeader("If-Range")).thenReturn(null);
+        Mockito.when(mockRequest.getHeader("Range")).thenReturn("bytes=9-");
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("of file 1", baos.toString());
+        baos.reset();
+
+        Mockito.verify(mockResponse).setHeader("Content-Range", "bytes 9-17/18");
+
+        Mockito.when(mockRequest.getHeader("Range")).thenReturn("bytes=18-");
+        try {
+            handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+            Assert.fail("Expected exception");
+
+        } catch (HttpErrorException hee) {
+            Assert.assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, hee.getStatusCode());
+        }
+
+        Mockito.verify(mockResponse).setHeader("Content-Range", "bytes */18");
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_Overloaded() throws IOException {
+
+        ByteArrayOutputStream baos = setupMockOutputStream();
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        baos.reset();
+
+        // fill up the server
+        AdmissionControl admission = handler.getAdmissionControl();
+        for (int i = 0; admission.tryAdmit("/other" + i); i++) {
+            // keep going
+        }
+
+        try {
+            handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+            Assert.fail("Expected exception");
+
+        } catch (HttpErrorException hee) {
+            Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, hee.getStatusCode());
+        }
+
+        Mockito.verify(mockResponse).setHeader("Retry-After", "1");
+
+        // no read needed
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents of file 1", baos.toString());
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_OverloadedDataSet() throws IOException {
+
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+        // reads of a dataset are bounded by its name, before it has even been opened
+        AdmissionControl admission = handler.getAdmissionControl();
+        while (admission.tryAdmit("/dataset")) {
+            // keep going
+        }
+        long rejections = admission.getDataSetRejectionCount();
+
+        try {
+            handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+            Assert.fail("Expected exception");
+
+        } catch (HttpErrorException hee) {
+            Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, hee.getStatusCode());
+        }
+
+        Assert.assertEquals(rejections + 1, admission.getDataSetRejectionCount());
+        Assert.assertEquals(0, admission.getRejectionCount());
+
+        // turned away without opening the dataset
+        Assert.assertNull(handler.getLookupMode("/dataset"));
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_POST_OverloadedDataSet() throws IOException {
+
+        Mockito.when(mockRequest.getMethod()).thenReturn("POST");
+        setupMockInputStream("0.txt\n");
+
+        AdmissionControl admission = handler.getAdmissionControl();
+        while (admission.tryAdmit("/dataset")) {
+            // keep going
+        }
+        long rejections = admission.getDataSetRejectionCount();
+
+        try {
+            handler.handleWithExceptionTranslation("/dataset", baseRequest, mockRequest, mockResponse);
+            Assert.fail("Expected exception");
+
+        } catch (HttpErrorException hee) {
+            Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, hee.getStatusCode());
+        }
+
+        Assert.assertEquals(rejections + 1, admission.getDataSetRejectionCount());
+        Assert.assertNull(handler.getLookupMode("/dataset"));
     }
 
     @Test
@@ -132,6 +388,324 @@ public class JettyBloomMapFileHandlerTest {
             Assert.assertEquals(404, hee.getStatusCode());
             Assert.assertTrue(hee.getMessage().contains("cached"));
         }
+
+        // a miss is never cached by clients or proxies
+        Mockito.verify(mockResponse, Mockito.never()).setHeader(Mockito.eq("ETag"), Mockito.anyString());
+        Mockito.verify(mockResponse, Mockito.never()).setHeader(Mockito.eq("Cache-Control"), Mockito.anyString());
+        Mockito.verify(mockResponse, Mockito.never()).setDateHeader(Mockito.eq("Last-Modified"), Mockito.anyLong());
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_Stats() throws IOException {
+
+        setupMockOutputStream();
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+        handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                handler.handleWithExceptionTranslation("/dataset/foo.txt", baseRequest, mockRequest, mockResponse);
+                Assert.fail("Expected exception");
+
+            } catch (HttpErrorException hee) {
+                Assert.assertEquals(404, hee.getStatusCode());
+            }
+        }
+
+        DataSetMetrics totals = handler.getMetrics().getTotals();
+        Assert.assertEquals(1, totals.getHitCount());
+        Assert.assertEquals(1, totals.getMissCount());
+        Assert.assertEquals(1, totals.getCachedNotFoundCount());
+        Assert.assertEquals("Contents of file 1".length(), totals.getBytesServed());
+        Assert.assertEquals(1, totals.getLoadCount());
+        Assert.assertTrue(totals.getBloomProbeCount() > 0);
+
+        DataSetMetrics dataset = handler.getMetrics().getDataSetMetrics("/dataset");
+        Assert.assertEquals(1, dataset.getHitCount());
+        Assert.assertEquals(3, dataset.getRequestCount());
+
+        StringWriter json = new StringWriter();
+        Mockito.when(mockResponse.getWriter()).thenReturn(new PrintWriter(json));
+
+        handler.handleWithExceptionTranslation(JettyBloomMapFileHandler.STATS_PATH, baseRequest, mockRequest,
+                mockResponse);
+
+        Mockito.verify(mockResponse).setContentType("application/json");
+        Assert.assertTrue(json.toString(), json.toString().contains("\"/dataset\":{"));
+        Assert.assertTrue(json.toString(), json.toString().contains("\"hit\":{\"count\":1,"));
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_Partitioned() throws IOException {
+
+        writePartitionedDataSet("partitioned", 3);
+        writePartitionedDataSet("unconfigured", 3);
+        handler.getConfiguration().set(JettyBloomMapFileHandler.PARTITIONER_KEY_PREFIX + "/partitioned",
+                HashPartitioner.class.getName());
+
+        ByteArrayOutputStream baos = setupMockOutputStream();
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+        for (int i = 0; i < 10; i++) {
+
+            handler.handleWithExceptionTranslation("/partitioned/" + i + ".txt", baseRequest, mockRequest,
+                    mockResponse);
+            Assert.assertEquals("Contents of file " + i, baos.toString());
+            baos.reset();
+        }
+
+        Assert.assertEquals(LookupMode.PARTITIONED, handler.getLookupMode("/partitioned"));
+
+        // part names alone don't say how keys were partitioned
+        handler.handleWithExceptionTranslation("/unconfigured/0.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents of file 0", baos.toString());
+        Assert.assertEquals(LookupMode.SCAN, handler.getLookupMode("/unconfigured"));
+        baos.reset();
+
+        // unknown layouts fall back to probing every reader
+        handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals(LookupMode.SCAN, handler.getLookupMode("/dataset"));
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_PartitionedManifest() throws IOException {
+
+        writePartitionedDataSet("manifest", 3);
+
+        Configuration conf = new Configuration();
+        Path dir = new Path(TEST_OUTPUT + "/manifest");
+        FileSystem fs = dir.getFileSystem(conf);
+
+        DataSetManifest manifest = new DataSetManifest(Text.class, BytesWritable.class, HashPartitioner.class);
+        for (int i = 0; i < 3; i++) {
+            manifest.addPart(new Part("part-r-0000" + i, 0, 0, 0, null, null));
+        }
+        manifest.write(fs, dir);
+
+        // a part not in the manifest is never opened, but listing it would break routing
+        BloomMapFileWriter writer = new BloomMapFileWriter(conf, fs, TEST_OUTPUT + "/manifest/part-r-00003",
+                Text.class, BytesWritable.class, CompressionType.NONE);
+        IOUtils.closeStream(writer);
+
+        ByteArrayOutputStream baos = setupMockOutputStream();
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+        for (int i = 0; i < 10; i++) {
+
+            handler.handleWithExceptionTranslation("/manifest/" + i + ".txt", baseRequest, mockRequest, mockResponse);
+            Assert.assertEquals("Contents of file " + i, baos.toString());
+            baos.reset();
+        }
+
+        Assert.assertEquals(LookupMode.PARTITIONED, handler.getLookupMode("/manifest"));
+
+        // the converter wrote a manifest without a partitioner
+        Assert.assertNotNull(DataSetManifest.read(fs, new Path(TEST_OUTPUT + "/dataset")));
+        handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals(LookupMode.SCAN, handler.getLookupMode("/dataset"));
+    }
+
+    @Test(timeout = 30000)
+    public void testHandleWithExceptionTranslation_GET_Restart() throws Exception {
+
+        ByteArrayOutputStream baos = setupMockOutputStream();
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+        handler.start();
+        handler.stop();
+
+        // cold datasets can still be opened after a restart
+        handler.start();
+        try {
+            handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+            Assert.assertEquals("Contents of file 0", baos.toString());
+            baos.reset();
+
+        } finally {
+            handler.stop();
+        }
+
+        // and datasets that were open before the stop are opened again
+        handler.start();
+        try {
+            handler.handleWithExceptionTranslation("/dataset/1.txt", baseRequest, mockRequest, mockResponse);
+            Assert.assertEquals("Contents of file 1", baos.toString());
+
+        } finally {
+            handler.stop();
+        }
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_Tiles() throws Exception {
+
+        writeTileDataSet("tiles", 4);
+
+        handler.getConfiguration().set(JettyBloomMapFileHandler.TILE_DATASETS_KEY, "/tiles");
+        handler.start();
+        try {
+            ByteArrayOutputStream baos = setupMockOutputStream();
+            Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+            for (int x = 0; x < 4; x++) {
+                for (int y = 0; y < 4; y++) {
+
+                    handler.handleWithExceptionTranslation("/tiles/2/" + x + "/" + y + ".png", baseRequest,
+                            mockRequest, mockResponse);
+                    Assert.assertEquals("Tile 2/" + x + "/" + y, baos.toString());
+                    baos.reset();
+                }
+            }
+
+            Assert.assertEquals(LookupMode.PARTITIONED, handler.getLookupMode("/tiles"));
+            Mockito.verify(mockResponse, Mockito.atLeastOnce()).setContentType("image/png");
+
+            // tiles are also found by key, and can be listed either way in a batch
+            handler.handleWithExceptionTranslation("/tiles/02-31.png", baseRequest, mockRequest, mockResponse);
+            Assert.assertEquals("Tile 2/3/2", baos.toString());
+            baos.reset();
+
+            Mockito.when(mockRequest.getMethod()).thenReturn("POST");
+            setupMockInputStream("2/3/2.png\n02-00.png\n");
+
+            handler.handleWithExceptionTranslation("/tiles", baseRequest, mockRequest, mockResponse);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+            assertBatchEntry(in, "02-00.png", "Tile 2/0/0");
+            assertBatchEntry(in, "02-31.png", "Tile 2/3/2");
+            assertBatchEnd(in);
+
+        } finally {
+            handler.stop();
+        }
+
+        // not a tile dataset, so the path is taken as is
+        Pair<String, String> pair = handler.splitTargetIntoDatasetAndFilename("/dataset/2/3/2.png");
+        Assert.assertEquals("/dataset/2/3", pair.getA());
+        Assert.assertEquals("2.png", pair.getB());
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_TilesPrefetch() throws Exception {
+
+        writeTileDataSet("tiles", 4);
+
+        handler.getConfiguration().set(JettyBloomMapFileHandler.TILE_DATASETS_KEY, "/tiles");
+        handler.getConfiguration().setBoolean(JettyBloomMapFileHandler.PREFETCH_KEY, true);
+        handler.start();
+        try {
+            ByteArrayOutputStream baos = setupMockOutputStream();
+            Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+            handler.handleWithExceptionTranslation("/tiles/2/1/1.png", baseRequest, mockRequest, mockResponse);
+            Assert.assertEquals("Tile 2/1/1", baos.toString());
+            baos.reset();
+
+            // all eight neighbours are read in the background
+            ValueCache cache = handler.getValueCache();
+            for (int i = 0; i < 100 && cache.getPrefetchCount() < 8; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(8, cache.getPrefetchCount());
+
+            handler.handleWithExceptionTranslation("/tiles/2/2/2.png", baseRequest, mockRequest, mockResponse);
+            Assert.assertEquals("Tile 2/2/2", baos.toString());
+            Assert.assertEquals(1, cache.getPrefetchHitCount());
+
+        } finally {
+            handler.stop();
+        }
+    }
+
+    @Test
+    public void testHandleWithExceptionTranslation_GET_Coalesced() throws Exception {
+
+        int numRequests = 16;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<String>> responses = new ArrayList<Future<String>>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(numRequests);
+        try {
+            for (int i = 0; i < numRequests; i++) {
+
+                final HttpServletRequest request = Mockito.mock(Request.class);
+                Mockito.when(request.getMethod()).thenReturn("GET");
+
+                final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+                    @Override
+                    public void write(final int b) throws IOException {
+                        baos.write(b);
+                    }
+                });
+
+                responses.add(executor.submit(new Callable<String>() {
+
+                    @Override
+                    public String call() throws Exception {
+
+                        startLatch.await();
+                        handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, request, response);
+                        return baos.toString();
+                    }
+                }));
+            }
+
+            startLatch.countDown();
+            for (Future<String> response : responses) {
+                Assert.assertEquals("Contents of file 0", response.get());
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // every request was served by its own lookup, someone else's lookup or the cache, and with a single part
+        // every lookup probes a single Bloom filter
+        DataSetMetrics totals = handler.getMetrics().getTotals();
+        Assert.assertEquals(numRequests, totals.getBloomProbeCount() + totals.getCoalescedCount()
+                + handler.getValueCache().getHitCount());
+    }
+
+    @Test
+    public void testReloadChangedDataSets() throws IOException {
+
+        ByteArrayOutputStream baos = setupMockOutputStream();
+        Mockito.when(mockRequest.getMethod()).thenReturn("GET");
+
+        handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents of file 0", baos.toString());
+        baos.reset();
+
+        // nothing changed, so nothing is reopened
+        handler.reloadChangedDataSets();
+        handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("Contents of file 0", baos.toString());
+        baos.reset();
+
+        // republish the file, the manifest is rewritten with it
+        Configuration conf = new Configuration();
+        FileSystem fs = new Path(TEST_BLOOMMAPFILE).getFileSystem(conf);
+        BloomMapFileWriter writer = new BloomMapFileWriter(conf, fs, TEST_BLOOMMAPFILE, Text.class,
+                BytesWritable.class, CompressionType.NONE);
+        writer.append(new Text("0.txt"), new BytesWritable("NEW Contents of file 0".getBytes()));
+        IOUtils.closeStream(writer);
+
+        Path dir = new Path(TEST_BLOOMMAPFILE).getParent();
+        DataSetManifest.update(fs, dir, Part.summarize(fs, new Path(TEST_BLOOMMAPFILE), writer), Text.class,
+                BytesWritable.class);
+
+        // make sure the new version is newer, regardless of timestamp resolution
+        new File(TEST_OUTPUT + "/dataset/" + DataSetManifest.MANIFEST_FILE_NAME)
+                .setLastModified(System.currentTimeMillis() + 10000);
+
+        handler.reloadChangedDataSets();
+        handler.handleWithExceptionTranslation("/dataset/0.txt", baseRequest, mockRequest, mockResponse);
+        Assert.assertEquals("NEW Contents of file 0", baos.toString());
+        baos.reset();
     }
 
     @Test
@@ -159,6 +733,106 @@ public class JettyBloomMapFileHandlerTest {
         Assert.assertEquals("b", pair.getB());
     }
 
+    /**
+     * Writes keys into parts the same way a job with {@link BloomMapFileOutputFormat} and {@link HashPartitioner}
+     * would.
+     */
+    private void writePartitionedDataSet(final String dataset, final int numParts) throws IOException {
+
+        HashPartitioner<Text, BytesWritable> partitioner = new HashPartitioner<Text, BytesWritable>();
+        Configuration conf = new Configuration();
+        FileSystem fs = new Path(TEST_OUTPUT).getFileSystem(conf);
+
+        BloomMapFileWriter[] writers = new BloomMapFileWriter[numParts];
+        for (int i = 0; i < numParts; i++) {
+            writers[i] = new BloomMapFileWriter(conf, fs, TEST_OUTPUT + "/" + dataset + "/part-r-0000" + i,
+                    Text.class, BytesWritable.class, CompressionType.NONE);
+        }
+
+        for (int i = 0; i < 10; i++) {
+
+            Text key = new Text(i + ".txt");
+            BytesWritable value = new BytesWritable(("Contents of file " + i).getBytes());
+            writers[partitioner.getPartition(key, value, numParts)].append(key, value);
+        }
+
+        for (BloomMapFileWriter writer : writers) {
+            IOUtils.closeStream(writer);
+        }
+    }
+
+    /**
+     * Writes every tile at zoom 2 into parts the same way a job with {@link BloomMapFileOutputFormat} and
+     * {@link TileRangePartitioner} would.
+     */
+    private void writeTileDataSet(final String dataset, final int numParts) throws IOException {
+
+        Configuration conf = new Configuration();
+        Path dir = new Path(TEST_OUTPUT + "/" + dataset);
+        FileSystem fs = dir.getFileSystem(conf);
+
+        TileRangePartitioner<BytesWritable> partitioner = new TileRangePartitioner<BytesWritable>();
+        BloomMapFileWriter[] writers = new BloomMapFileWriter[numParts];
+        for (int i = 0; i < numParts; i++) {
+            writers[i] = new BloomMapFileWriter(conf, fs, TEST_OUTPUT + "/" + dataset + "/part-r-0000" + i,
+                    Text.class, BytesWritable.class, CompressionType.NONE);
+        }
+
+        // in key order
+        for (int position = 0; position < 16; position++) {
+
+            int x = (position & 1) | (position >> 1 & 2);
+            int y = (position >> 1 & 1) | (position >> 2 & 2);
+
+            Text key = new Text(TileKeys.encode(2, x, y, ".png"));
+            BytesWritable value = new BytesWritable(("Tile 2/" + x + "/" + y).getBytes());
+            writers[partitioner.getPartition(key, value, numParts)].append(key, value);
+        }
+
+        DataSetManifest manifest = new DataSetManifest(Text.class, BytesWritable.class, TileRangePartitioner.class);
+        for (int i = 0; i < numParts; i++) {
+            IOUtils.closeStream(writers[i]);
+            manifest.addPart(new Part("part-r-0000" + i, 0, 0, 0, null, null));
+        }
+        manifest.write(fs, dir);
+    }
+
+    private void assertBatchEntry(final DataInputStream in, final String key, final String value) throws IOException {
+
+        byte[] keyBytes = new byte[in.readInt()];
+        in.readFully(keyBytes);
+        Assert.assertEquals(key, new String(keyBytes, "UTF-8"));
+
+        int length = in.readInt();
+        if (value == null) {
+            Assert.assertEquals(-1, length);
+            return;
+        }
+
+        byte[] valueBytes = new byte[length];
+        in.readFully(valueBytes);
+        Assert.assertEquals(value, new String(valueBytes, "UTF-8"));
+    }
+
+    private void assertBatchEnd(final DataInputStream in) throws IOException {
+        Assert.assertEquals(-1, in.readInt());
+        Assert.assertEquals(-1, in.read());
+    }
+
+    private void setupMockInputStream(final String body) throws IOException {
+
+        final ByteArrayInputStream bais = new ByteArrayInputStream(body.getBytes("UTF-8"));
+        ServletInputStream is = new ServletInputStream() {
+
+            @Override
+            public int read() throws IOException {
+                return bais.read();
+            }
+        };
+
+        Mockito.when(mockRequest.getInputStream()).thenReturn(is);
+    }
+
     private ByteArrayOutputStream setupMockOutputStream() throws IOException {
 
         // setup output stream
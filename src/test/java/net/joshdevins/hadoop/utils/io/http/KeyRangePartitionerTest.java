@@ -0,0 +1,97 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyRangePartitionerTest {
+
+    @Test
+    public void testGetPartition() throws IOException {
+
+        // part names don't sort in key order
+        KeyRangePartitioner partitioner = KeyRangePartitioner.fromManifest(newManifest(newPart("a", "m", "p"),
+                newPart("b", "a", "f"), newPart("c", null, null), newPart("d", "g", "k")));
+
+        Assert.assertEquals(1, getPartition(partitioner, "a"));
+        Assert.assertEquals(1, getPartition(partitioner, "c"));
+        Assert.assertEquals(3, getPartition(partitioner, "g"));
+        Assert.assertEquals(3, getPartition(partitioner, "k"));
+        Assert.assertEquals(0, getPartition(partitioner, "m"));
+        Assert.assertEquals(0, getPartition(partitioner, "p"));
+
+        // outside of every range goes to the nearest part, never an empty one
+        Assert.assertEquals(1, getPartition(partitioner, "0"));
+        Assert.assertEquals(3, getPartition(partitioner, "l"));
+        Assert.assertEquals(0, getPartition(partitioner, "z"));
+    }
+
+    @Test
+    public void testFromManifest_Overlapping() throws IOException {
+
+        Assert.assertNull(KeyRangePartitioner.fromManifest(newManifest(newPart("a", "a", "m"), newPart("b", "f",
+                "z"))));
+
+        // a key can't be in two parts
+        Assert.assertNull(KeyRangePartitioner.fromManifest(newManifest(newPart("a", "a", "f"), newPart("b", "f",
+                "z"))));
+    }
+
+    @Test
+    public void testFromManifest_NoKeys() throws IOException {
+        Assert.assertNull(KeyRangePartitioner.fromManifest(newManifest(newPart("a", null, null), newPart("b", null,
+                null))));
+    }
+
+    @Test
+    public void testFromManifest_OnePart() throws IOException {
+        Assert.assertNull(KeyRangePartitioner.fromManifest(newManifest(newPart("a", "a", "f"))));
+    }
+
+    @Test
+    public void testFromManifest_NotText() throws IOException {
+
+        DataSetManifest manifest = new DataSetManifest(BytesWritable.class, BytesWritable.class, null);
+        manifest.addPart(newPart("a", "a", "f"));
+        manifest.addPart(newPart("b", "g", "k"));
+
+        Assert.assertNull(KeyRangePartitioner.fromManifest(manifest));
+    }
+
+    private static int getPartition(final KeyRangePartitioner partitioner, final String key) {
+        return partitioner.getPartition(new Text(key), null, 4);
+    }
+
+    private static DataSetManifest newManifest(final Part... parts) {
+
+        DataSetManifest manifest = new DataSetManifest(Text.class, BytesWritable.class, null);
+        for (Part part : Arrays.asList(parts)) {
+            manifest.addPart(part);
+        }
+
+        return manifest;
+    }
+
+    private static Part newPart(final String name, final String firstKey, final String lastKey) throws IOException {
+        return new Part(name, 100, 10, firstKey == null ? 0 : 2, serialize(firstKey), serialize(lastKey));
+    }
+
+    private static byte[] serialize(final String key) throws IOException {
+
+        if (key == null) {
+            return null;
+        }
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        new Text(key).write(out);
+
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+}
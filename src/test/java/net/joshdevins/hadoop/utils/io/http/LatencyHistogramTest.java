@@ -0,0 +1,55 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucket() {
+
+        // exact at the bottom
+        for (int i = 0; i < 16; i++) {
+            Assert.assertEquals(i, LatencyHistogram.bucket(i));
+            Assert.assertEquals(i, LatencyHistogram.upperBound(i));
+        }
+
+        // every value is within its bucket, and within an eighth of the bucket's upper bound
+        for (long micros = 16; micros < 1L << 36; micros = micros * 3 / 2 + 1) {
+
+            int bucket = LatencyHistogram.bucket(micros);
+            long upper = LatencyHistogram.upperBound(bucket);
+
+            Assert.assertTrue(micros <= upper);
+            Assert.assertTrue(micros > LatencyHistogram.upperBound(bucket - 1));
+            Assert.assertTrue(upper - micros <= micros / 8);
+        }
+    }
+
+    @Test
+    public void testGetPercentile() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(0.99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(500500.0, histogram.getMean(), 0.1);
+
+        assertWithinAnEighth(500000, histogram.getPercentile(0.5));
+        assertWithinAnEighth(990000, histogram.getPercentile(0.99));
+
+        // never past the slowest request recorded
+        Assert.assertEquals(1000000, histogram.getPercentile(1.0));
+    }
+
+    private static void assertWithinAnEighth(final long expected, final long actual) {
+        Assert.assertTrue("expected ~" + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 8);
+    }
+}
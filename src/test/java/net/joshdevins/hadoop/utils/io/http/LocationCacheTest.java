@@ -0,0 +1,72 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import org.apache.hadoop.io.ValueLocation;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LocationCacheTest {
+
+    @Test
+    public void testPutGet() {
+
+        LocationCache cache = new LocationCache(1024 * 1024);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put("file-" + i + ".png", i % 7, new ValueLocation(i * 100L, i + 4));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+
+            LocationCache.Entry entry = cache.get("file-" + i + ".png");
+            Assert.assertEquals(i % 7, entry.getPart());
+            Assert.assertEquals(i * 100L, entry.getLocation().getPosition());
+            Assert.assertEquals(i + 4, entry.getLocation().getLength());
+
+            Assert.assertNull(cache.get("other-" + i + ".png"));
+        }
+
+        Assert.assertEquals(1000, cache.size());
+        Assert.assertEquals(1000, cache.getHitCount());
+        Assert.assertEquals(2000, cache.getLookupCount());
+    }
+
+    @Test
+    public void testPut_Replace() {
+
+        LocationCache cache = new LocationCache(1024 * 1024);
+        cache.put("file.png", 1, new ValueLocation(100, 10));
+        cache.put("file.png", 2, new ValueLocation(200, 20));
+
+        LocationCache.Entry entry = cache.get("file.png");
+        Assert.assertEquals(2, entry.getPart());
+        Assert.assertEquals(200, entry.getLocation().getPosition());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testPut_Unstorable() {
+
+        LocationCache cache = new LocationCache(1024 * 1024);
+        cache.put("file.png", LocationCache.MAX_PART + 1, new ValueLocation(100, 10));
+        cache.put("other.png", 1, new ValueLocation(1L << 48, 10));
+
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testBounded() {
+
+        // 16 segments of 8 slots
+        LocationCache cache = new LocationCache(16 * 8 * LocationCache.BYTES_PER_SLOT);
+
+        for (int i = 0; i < 10000; i++) {
+            cache.put("file-" + i + ".png", 0, new ValueLocation(i, 10));
+        }
+
+        Assert.assertTrue(cache.size() <= 128);
+        Assert.assertEquals(16 * 8 * LocationCache.BYTES_PER_SLOT, cache.getSizeInBytes());
+
+        // most recent is still remembered
+        Assert.assertEquals(9999, cache.get("file-9999.png").getLocation().getPosition());
+    }
+}
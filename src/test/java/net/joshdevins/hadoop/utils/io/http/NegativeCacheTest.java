@@ -0,0 +1,74 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NegativeCacheTest {
+
+    @Test
+    public void testAddContains() {
+
+        NegativeCache cache = new NegativeCache(1024 * 1024, 60 * 1000);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.add("missing-" + i + ".png");
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(cache.contains("missing-" + i + ".png"));
+            Assert.assertFalse(cache.contains("present-" + i + ".png"));
+        }
+
+        Assert.assertEquals(1000, cache.size());
+        Assert.assertEquals(0.5, cache.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testBounded() {
+
+        // 64 slots per generation
+        NegativeCache cache = new NegativeCache(1024, 60 * 1000);
+
+        for (int i = 0; i < 10000; i++) {
+            cache.add("missing-" + i + ".png");
+        }
+
+        Assert.assertTrue(cache.size() <= 128);
+        Assert.assertEquals(1024, cache.getSizeInBytes());
+
+        // most recent are still remembered
+        Assert.assertTrue(cache.contains("missing-9999.png"));
+        Assert.assertFalse(cache.contains("missing-0.png"));
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+
+        NegativeCache cache = new NegativeCache(1024, 100);
+        cache.add("missing.png");
+
+        Thread.sleep(60);
+        Assert.assertTrue(cache.contains("missing.png"));
+
+        // one generation to move it to previous, another to drop it
+        Thread.sleep(60);
+        cache.contains("other.png");
+        Thread.sleep(60);
+        Assert.assertFalse(cache.contains("missing.png"));
+    }
+
+    @Test
+    public void testExpiry_Previous() throws InterruptedException {
+
+        NegativeCache cache = new NegativeCache(1024, 1000);
+        cache.add("missing.png");
+
+        // moved to the previous generation just before it expires
+        Thread.sleep(900);
+        Assert.assertTrue(cache.contains("missing.png"));
+
+        // the current generation is still young, but the entry is not
+        Thread.sleep(300);
+        Assert.assertFalse(cache.contains("missing.png"));
+    }
+}
@@ -0,0 +1,138 @@
+package net.joshdevins.hadoop.utils.io.http;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ValueCacheTest {
+
+    private static final int VALUE_SIZE = 1024;
+
+    @Test
+    public void testGetPut_OffHeap() {
+
+        ValueCache cache = new ValueCache(1024 * 1024, VALUE_SIZE, true);
+        byte[] bytes = "Contents of file 0".getBytes();
+
+        Assert.assertNull(cache.get("/dataset", "0.txt"));
+        Assert.assertTrue(cache.put("/dataset", "0.txt", bytes, bytes.length));
+
+        ByteBuffer value = cache.get("/dataset", "0.txt");
+        Assert.assertFalse(value.hasArray());
+
+        byte[] actual = new byte[value.remaining()];
+        value.get(actual);
+        Assert.assertArrayEquals(bytes, actual);
+
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidate() {
+
+        ValueCache cache = new ValueCache(1024 * 1024, VALUE_SIZE, false);
+
+        cache.put("/dataset", "0.txt", new byte[10], 10);
+        cache.put("/dataset/sub", "0.txt", new byte[10], 10);
+        cache.invalidate("/dataset");
+
+        Assert.assertNull(cache.get("/dataset", "0.txt"));
+        Assert.assertNotNull(cache.get("/dataset/sub", "0.txt"));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testPrefetch() {
+
+        ValueCache cache = new ValueCache(1024 * 1024, VALUE_SIZE, false);
+
+        for (int i = 0; i < 3; i++) {
+            cache.get("/dataset", "0.png");
+        }
+        Assert.assertTrue(cache.frequency("/dataset", "0.png") >= 3);
+
+        Assert.assertTrue(cache.prefetch("/dataset", "1.png", ByteBuffer.wrap(new byte[VALUE_SIZE]), 3));
+        Assert.assertTrue(cache.prefetch("/dataset", "2.png", ByteBuffer.wrap(new byte[VALUE_SIZE]), 3));
+        Assert.assertEquals(2, cache.getPrefetchCount());
+
+        // checking for a file is not a request for it
+        Assert.assertTrue(cache.contains("/dataset", "1.png"));
+        Assert.assertFalse(cache.contains("/dataset", "3.png"));
+        Assert.assertEquals(0, cache.getHitCount());
+
+        // only the first request for a prefetched file counts
+        Assert.assertNotNull(cache.get("/dataset", "1.png"));
+        Assert.assertNotNull(cache.get("/dataset", "1.png"));
+        Assert.assertEquals(1, cache.getPrefetchHitCount());
+
+        // nor does a file that is replaced before it's requested
+        cache.put("/dataset", "2.png", new byte[VALUE_SIZE], VALUE_SIZE);
+        Assert.assertNotNull(cache.get("/dataset", "2.png"));
+        Assert.assertEquals(1, cache.getPrefetchHitCount());
+    }
+
+    @Test
+    public void testPut_MaxEntrySize() {
+
+        ValueCache cache = new ValueCache(1024 * 1024, VALUE_SIZE, false);
+
+        Assert.assertFalse(cache.put("/dataset", "big.png", new byte[VALUE_SIZE + 1], VALUE_SIZE + 1));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPut_RejectedKeepsEntries() {
+
+        // one segment with room for two values
+        ValueCache cache = new ValueCache(2 * (VALUE_SIZE + 128), 2 * VALUE_SIZE, false, 1);
+
+        Assert.assertTrue(cache.put("/dataset", "cold.png", new byte[100], 100));
+        for (int i = 0; i < 5; i++) {
+            cache.get("/dataset", "popular.png");
+        }
+        Assert.assertTrue(cache.put("/dataset", "popular.png", new byte[VALUE_SIZE], VALUE_SIZE));
+
+        // would push out both, but only the cold one is less popular
+        for (int i = 0; i < 2; i++) {
+            cache.get("/dataset", "new.png");
+        }
+        Assert.assertFalse(cache.put("/dataset", "new.png", new byte[2000], 2000));
+        Assert.assertTrue(cache.contains("/dataset", "cold.png"));
+
+        // nor is the previous value dropped when its replacement doesn't fit
+        Assert.assertFalse(cache.put("/dataset", "cold.png", new byte[2000], 2000));
+        Assert.assertEquals(100, cache.get("/dataset", "cold.png").remaining());
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(0, cache.getEvictionCount());
+        Assert.assertEquals(2, cache.getRejectionCount());
+    }
+
+    @Test
+    public void testPut_ScanDoesNotFlushPopular() {
+
+        // room for about one value per segment
+        ValueCache cache = new ValueCache(16 * (VALUE_SIZE + 256), VALUE_SIZE, false);
+
+        for (int i = 0; i < 5; i++) {
+            cache.get("/dataset", "popular.png");
+        }
+
+        Assert.assertTrue(cache.put("/dataset", "popular.png", new byte[VALUE_SIZE], VALUE_SIZE));
+
+        // one-off requests for lots of other files
+        for (int i = 0; i < 500; i++) {
+
+            String filename = i + ".png";
+            if (cache.get("/dataset", filename) == null) {
+                cache.put("/dataset", filename, new byte[VALUE_SIZE], VALUE_SIZE);
+            }
+        }
+
+        Assert.assertNotNull(cache.get("/dataset", "popular.png"));
+        Assert.assertTrue(cache.getRejectionCount() > 0);
+        Assert.assertTrue(cache.sizeInBytes() <= 16 * (VALUE_SIZE + 256));
+    }
+}
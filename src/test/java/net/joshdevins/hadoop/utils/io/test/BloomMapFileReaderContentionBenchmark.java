@@ -0,0 +1,112 @@
+package net.joshdevins.hadoop.utils.io.test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.joshdevins.hadoop.utils.io.FileUtils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFileReader;
+import org.apache.hadoop.io.BloomMapFileWriter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Compares throughput of many threads doing lookups on a single {@link BloomMapFileReader}, with and without positional
+ * reads. Run by hand.
+ */
+public class BloomMapFileReaderContentionBenchmark {
+
+    private static final String TEST_BLOOMMAPFILE = "target/test/output/BloomMapFileReaderContentionBenchmark/bloom.map";
+
+    private static final int NUM_KEYS = 100000;
+
+    private static final int LOOKUPS_PER_THREAD = 50000;
+
+    @Ignore
+    @Test
+    public void testContention() throws Exception {
+
+        Configuration conf = new Configuration();
+        FileSystem fs = new Path(TEST_BLOOMMAPFILE).getFileSystem(conf);
+
+        FileUtils.createDirectoryDestructive(TEST_BLOOMMAPFILE);
+        BloomMapFileWriter writer = new BloomMapFileWriter(conf, fs, TEST_BLOOMMAPFILE, Text.class,
+                BytesWritable.class, CompressionType.NONE);
+
+        byte[] value = new byte[2048];
+        for (int i = 0; i < NUM_KEYS; i++) {
+            writer.append(new Text(String.format("%08d", i)), new BytesWritable(value));
+        }
+
+        IOUtils.closeStream(writer);
+
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+
+            for (boolean positionalReads : new boolean[] { false, true }) {
+
+                conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, positionalReads);
+                BloomMapFileReader reader = new BloomMapFileReader(fs, TEST_BLOOMMAPFILE, conf);
+
+                try {
+                    System.out.printf("threads=%d pread=%s lookups/s=%d\n", threads, positionalReads, run(reader,
+                            threads));
+                } finally {
+                    IOUtils.closeStream(reader);
+                }
+            }
+        }
+    }
+
+    private long run(final BloomMapFileReader reader, final int threads) throws InterruptedException {
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong found = new AtomicLong();
+
+        for (int t = 0; t < threads; t++) {
+
+            final Random random = new Random(t);
+            new Thread() {
+
+                @Override
+                public void run() {
+
+                    BytesWritable value = new BytesWritable();
+
+                    try {
+                        start.await();
+
+                        for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                            if (reader.get(new Text(String.format("%08d", random.nextInt(NUM_KEYS))), value) != null) {
+                                found.incrementAndGet();
+                            }
+                        }
+
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+
+        return found.get() * 1000000000L / elapsed;
+    }
+}
@@ -0,0 +1,325 @@
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.joshdevins.hadoop.utils.io.FileUtils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BloomMapFileReaderTest {
+
+    private static final String TEST_OUTPUT = "target/test/output/BloomMapFileReaderTest";
+
+    private static final String TEST_BLOOMMAPFILE = TEST_OUTPUT + "/bloom.map";
+
+    private Configuration conf;
+
+    private FileSystem fs;
+
+    @Before
+    public void before() throws Exception {
+
+        FileUtils.createDirectoryDestructive(TEST_OUTPUT);
+
+        conf = new Configuration();
+        fs = new Path(TEST_OUTPUT).getFileSystem(conf);
+
+        // only even keys, with values big enough that there are sync markers between records
+        BloomMapFileWriter writer = new BloomMapFileWriter(conf, fs, TEST_BLOOMMAPFILE, Text.class,
+                BytesWritable.class, CompressionType.NONE);
+
+        try {
+            for (int i = 0; i < 1000; i += 2) {
+                writer.append(key(i), new BytesWritable(value(i)));
+            }
+        } finally {
+            IOUtils.closeStream(writer);
+        }
+    }
+
+    @Test
+    public void testGet_PositionalReads() throws IOException {
+
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        BloomMapFileReader reader = new BloomMapFileReader(fs, TEST_BLOOMMAPFILE, conf);
+
+        try {
+            Assert.assertTrue(reader.isPositionalReads());
+            assertAllKeys(reader);
+
+        } finally {
+            IOUtils.closeStream(reader);
+        }
+    }
+
+    @Test
+    public void testGet_PositionalReads_IndexSkip() throws IOException {
+
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        conf.setInt("io.map.index.skip", 2);
+        BloomMapFileReader reader = new BloomMapFileReader(fs, TEST_BLOOMMAPFILE, conf);
+
+        try {
+            assertAllKeys(reader);
+        } finally {
+            IOUtils.closeStream(reader);
+        }
+    }
+
+    @Test
+    public void testOpen_PositionalReads() throws IOException {
+
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        conf.setBoolean(BloomMapFileReader.MAPPED_READS_KEY, false);
+
+        final AtomicInteger opens = new AtomicInteger();
+        FileSystem countingFs = new FilterFileSystem(fs) {
+
+            @Override
+            public FSDataInputStream open(final Path path, final int bufferSize) throws IOException {
+                opens.incrementAndGet();
+                return super.open(path, bufferSize);
+            }
+        };
+
+        BloomMapFileReader reader = new BloomMapFileReader(countingFs, TEST_BLOOMMAPFILE, conf);
+
+        try {
+            // Bloom filter, data and index
+            Assert.assertEquals(3, opens.get());
+            Assert.assertEquals(Text.class, reader.getKeyClass());
+            Assert.assertEquals(BytesWritable.class, reader.getValueClass());
+            assertAllKeys(reader);
+            Assert.assertEquals(3, opens.get());
+
+            // the stream based methods still work, opening the streams on first use
+            Text key = new Text();
+            BytesWritable value = new BytesWritable();
+            Assert.assertTrue(reader.next(key, value));
+            Assert.assertEquals(key(0), key);
+            Assert.assertArrayEquals(value(0), trim(value));
+
+        } finally {
+            IOUtils.closeStream(reader);
+        }
+    }
+
+    @Test
+    public void testLocateAndRead() throws IOException {
+
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        assertLocateAndRead(true);
+
+        conf.setBoolean(BloomMapFileReader.MAPPED_READS_KEY, false);
+        assertLocateAndRead(false);
+    }
+
+    @Test
+    public void testPin() throws IOException {
+
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+
+        // mapped from local disk
+        assertPinned(fs, false, true);
+
+        // copied from anywhere else, on or off of the heap
+        assertPinned(new FilterFileSystem(fs), false, false);
+        assertPinned(new FilterFileSystem(fs), true, true);
+    }
+
+    @Test
+    public void testGet_CompactIndex() throws IOException {
+
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        conf.setBoolean(BloomMapFileReader.COMPACT_INDEX_KEY, true);
+        assertCompactIndex();
+
+        conf.setBoolean(BloomMapFileReader.COMPACT_INDEX_OFF_HEAP_KEY, true);
+        assertCompactIndex();
+
+        conf.setInt("io.map.index.skip", 2);
+        assertCompactIndex();
+    }
+
+    @Test
+    public void testCompactIndex_FindEntry() throws IOException {
+
+        // an index entry for every key, so that there are many runs of prefix compressed keys
+        String dirName = TEST_OUTPUT + "/dense.map";
+        conf.setInt("io.map.index.interval", 1);
+
+        BloomMapFileWriter writer = new BloomMapFileWriter(conf, fs, dirName, Text.class, BytesWritable.class,
+                CompressionType.NONE);
+
+        try {
+            for (int i = 0; i < 1000; i += 2) {
+                writer.append(key(i), new BytesWritable(value(i)));
+            }
+        } finally {
+            IOUtils.closeStream(writer);
+        }
+
+        WritableComparator comparator = WritableComparator.get(Text.class);
+        MapFileIndex expected = MapFileIndex.read(fs, dirName, comparator, conf);
+
+        for (boolean offHeap : new boolean[] { false, true }) {
+
+            CompactMapFileIndex index = CompactMapFileIndex.read(fs, dirName, comparator, conf, offHeap);
+            Assert.assertEquals(offHeap, index.isOffHeap());
+            Assert.assertEquals(500, index.size());
+
+            for (int i = 0; i < 1000; i++) {
+
+                int entry = index.findEntry(key(i));
+                Assert.assertEquals("Wrong entry for key: " + i, expected.findEntry(key(i)), entry);
+                Assert.assertEquals(expected.getPosition(entry), index.getPosition(entry));
+            }
+
+            Assert.assertEquals(-1, index.findEntry(new Text("")));
+            Assert.assertEquals(499, index.findEntry(new Text("zzz")));
+        }
+    }
+
+    @Test
+    public void testGet_Stream() throws IOException {
+
+        BloomMapFileReader reader = new BloomMapFileReader(fs, TEST_BLOOMMAPFILE, conf);
+
+        try {
+            Assert.assertFalse(reader.isPositionalReads());
+            assertAllKeys(reader);
+
+        } finally {
+            IOUtils.closeStream(reader);
+        }
+    }
+
+    private void assertAllKeys(final BloomMapFileReader reader) throws IOException {
+
+        BytesWritable value = new BytesWritable();
+
+        for (int i = 0; i < 1000; i++) {
+
+            Writable found = reader.get(key(i), value);
+
+            if (i % 2 == 0) {
+                Assert.assertNotNull("Missing key: " + i, found);
+                Assert.assertArrayEquals(value(i), trim(value));
+
+            } else {
+                Assert.assertNull("Unexpected key: " + i, found);
+            }
+        }
+
+        // either side of the first and last keys
+        Assert.assertNull(reader.get(new Text(""), value));
+        Assert.assertNull(reader.get(new Text("zzz"), value));
+    }
+
+    private void assertPinned(final FileSystem readerFs, final boolean offHeap, final boolean direct)
+            throws IOException {
+
+        BloomMapFileReader reader = new BloomMapFileReader(readerFs, TEST_BLOOMMAPFILE, conf);
+
+        try {
+            Assert.assertFalse(reader.isPinned());
+            Assert.assertEquals(0, reader.getPinnedSize());
+
+            // the data file plus an int per record
+            long size = reader.pin(offHeap);
+            Assert.assertTrue(reader.isPinned());
+            Assert.assertEquals(reader.getDataLength() + 4 * 500, size);
+            Assert.assertEquals(size, reader.getPinnedSize());
+
+            assertAllKeys(reader);
+
+            ValueLocation location = reader.locate(key(10));
+            ByteBuffer buffer = reader.read(location);
+            Assert.assertEquals(direct, buffer.isDirect());
+            Assert.assertEquals(value(10).length, buffer.getInt());
+
+            reader.unpin();
+            Assert.assertFalse(reader.isPinned());
+            assertAllKeys(reader);
+
+        } finally {
+            IOUtils.closeStream(reader);
+        }
+    }
+
+    private void assertCompactIndex() throws IOException {
+
+        BloomMapFileReader reader = new BloomMapFileReader(fs, TEST_BLOOMMAPFILE, conf);
+
+        try {
+            Assert.assertTrue(reader.isCompactIndex());
+            assertAllKeys(reader);
+
+        } finally {
+            IOUtils.closeStream(reader);
+        }
+    }
+
+    private void assertLocateAndRead(final boolean mapped) throws IOException {
+
+        BloomMapFileReader reader = new BloomMapFileReader(fs, TEST_BLOOMMAPFILE, conf);
+
+        try {
+            Assert.assertEquals(mapped, reader.isMappedReads());
+
+            for (int i = 0; i < 1000; i++) {
+
+                ValueLocation location = reader.locate(key(i));
+                if (i % 2 != 0) {
+                    Assert.assertNull("Unexpected key: " + i, location);
+                    continue;
+                }
+
+                ByteBuffer buffer = reader.read(location);
+                Assert.assertEquals(location.getLength(), buffer.remaining());
+                Assert.assertEquals(mapped, buffer.isDirect());
+
+                // serialized BytesWritable, length first
+                Assert.assertEquals(value(i).length, buffer.getInt());
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                Assert.assertArrayEquals(value(i), bytes);
+            }
+
+        } finally {
+            IOUtils.closeStream(reader);
+        }
+    }
+
+    private static Text key(final int i) {
+        return new Text(String.format("%05d.txt", i));
+    }
+
+    private static byte[] trim(final BytesWritable value) {
+
+        byte[] bytes = new byte[value.getLength()];
+        System.arraycopy(value.getBytes(), 0, bytes, 0, value.getLength());
+
+        return bytes;
+    }
+
+    private static byte[] value(final int i) {
+
+        byte[] bytes = new byte[100 + i];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = (byte) (i + j);
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,29 @@
+package org.apache.hadoop.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MapFileRecordLocatorTest {
+
+    @Test
+    public void testIsThreadSafe() {
+
+        // registered raw comparator
+        Assert.assertTrue(MapFileRecordLocator.isThreadSafe(WritableComparator.get(Text.class)));
+
+        // generic comparator, deserializes into shared keys
+        Assert.assertFalse(MapFileRecordLocator.isThreadSafe(new WritableComparator(MD5Hash.class, true)));
+
+        // only the object compare is overridden, the raw compare still deserializes into shared keys
+        WritableComparator reversed = new WritableComparator(Text.class, true) {
+
+            @Override
+            @SuppressWarnings("rawtypes")
+            public int compare(final WritableComparable a, final WritableComparable b) {
+                return -super.compare(a, b);
+            }
+        };
+
+        Assert.assertFalse(MapFileRecordLocator.isThreadSafe(reversed));
+    }
+}
@@ -0,0 +1,176 @@
+package org.apache.hadoop.mapreduce.lib.output;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.joshdevins.hadoop.utils.io.FileUtils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFileReader;
+import org.apache.hadoop.io.BloomMapFileWriter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.ValueLocation;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataSetHashIndexTest {
+
+    private static final String TEST_OUTPUT = "target/test/output/DataSetHashIndexTest";
+
+    private Configuration conf;
+
+    private FileSystem fs;
+
+    private Path dir;
+
+    @Before
+    public void before() throws IOException {
+
+        FileUtils.createDirectoryDestructive(TEST_OUTPUT);
+
+        conf = new Configuration();
+        conf.setBoolean(BloomMapFileReader.POSITIONAL_READS_KEY, true);
+        dir = new Path(TEST_OUTPUT);
+        fs = dir.getFileSystem(conf);
+    }
+
+    @Test
+    public void testBuildAndGet() throws IOException {
+
+        DataSetManifest manifest = writeDataSet(3, 5000, CompressionType.NONE);
+        Assert.assertTrue(DataSetHashIndex.build(fs, dir, conf));
+
+        DataSetHashIndex index = DataSetHashIndex.open(fs, dir, manifest, false);
+        Assert.assertEquals(15000, index.size());
+        Assert.assertTrue(index.getSizeInBytes() <= 17 * 15000);
+
+        // every key is where the reader finds it
+        for (int part = 0; part < 3; part++) {
+
+            BloomMapFileReader reader = new BloomMapFileReader(fs, new Path(dir, "part-r-0000" + part).toString(),
+                    conf);
+            try {
+                for (int i = 0; i < 5000; i++) {
+
+                    Text key = new Text(part + "-" + i);
+                    DataSetHashIndex.Entry entry = index.get(key);
+                    ValueLocation location = reader.locate(key);
+
+                    Assert.assertEquals(part, entry.getPart());
+                    Assert.assertEquals(location.getPosition(), entry.getLocation().getPosition());
+                    Assert.assertEquals(location.getLength(), entry.getLocation().getLength());
+                }
+
+            } finally {
+                IOUtils.closeStream(reader);
+            }
+        }
+
+        // and almost every other key is turned away
+        int accepted = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (index.get(new Text("missing-" + i)) != null) {
+                accepted++;
+            }
+        }
+
+        Assert.assertTrue(accepted < 3);
+    }
+
+    @Test
+    public void testBuild_AllSlotsUsed() throws IOException {
+
+        DataSetManifest manifest = writeDataSet(1, 20000, CompressionType.NONE);
+        Assert.assertTrue(DataSetHashIndex.build(fs, dir, conf));
+
+        DataSetHashIndex index = DataSetHashIndex.open(fs, dir, manifest, true);
+        Set<Long> positions = new HashSet<Long>();
+
+        for (int i = 0; i < 20000; i++) {
+            positions.add(index.get(new Text("0-" + i)).getLocation().getPosition());
+        }
+
+        Assert.assertEquals(20000, positions.size());
+    }
+
+    @Test
+    public void testBuild_Compressed() throws IOException {
+
+        writeDataSet(2, 10, CompressionType.BLOCK);
+        Assert.assertFalse(DataSetHashIndex.build(fs, dir, conf));
+    }
+
+    @Test
+    public void testBuild_Empty() throws IOException {
+
+        DataSetManifest manifest = writeDataSet(2, 0, CompressionType.NONE);
+        Assert.assertTrue(DataSetHashIndex.build(fs, dir, conf));
+
+        DataSetHashIndex index = DataSetHashIndex.open(fs, dir, manifest, false);
+        Assert.assertEquals(0, index.size());
+        Assert.assertNull(index.get(new Text("missing")));
+    }
+
+    @Test
+    public void testOpen_Missing() throws IOException {
+        Assert.assertNull(DataSetHashIndex.open(fs, dir, writeDataSet(1, 10, CompressionType.NONE), false));
+    }
+
+    @Test
+    public void testOpen_OutOfDate() throws IOException {
+
+        writeDataSet(2, 10, CompressionType.NONE);
+        Assert.assertTrue(DataSetHashIndex.build(fs, dir, conf));
+
+        // a part rewritten after the index was built
+        BloomMapFileWriter writer = writePart("part-r-00001", 1, 20, CompressionType.NONE);
+        DataSetManifest.update(fs, dir, Part.summarize(fs, new Path(dir, "part-r-00001"), writer), Text.class,
+                BytesWritable.class);
+
+        Assert.assertNull(DataSetHashIndex.open(fs, dir, DataSetManifest.read(fs, dir), false));
+    }
+
+    private DataSetManifest writeDataSet(final int numParts, final int keysPerPart,
+            final CompressionType compressionType) throws IOException {
+
+        DataSetManifest manifest = new DataSetManifest(Text.class, BytesWritable.class, null);
+        for (int part = 0; part < numParts; part++) {
+
+            String name = "part-r-0000" + part;
+            BloomMapFileWriter writer = writePart(name, part, keysPerPart, compressionType);
+            manifest.addPart(Part.summarize(fs, new Path(dir, name), writer));
+        }
+
+        manifest.write(fs, dir);
+        return manifest;
+    }
+
+    private BloomMapFileWriter writePart(final String name, final int part, final int numKeys,
+            final CompressionType compressionType) throws IOException {
+
+        BloomMapFileWriter writer = new BloomMapFileWriter(conf, fs, new Path(dir, name).toString(), Text.class,
+                BytesWritable.class, compressionType);
+
+        // keys sorted as text
+        Set<String> keys = new TreeSet<String>();
+        for (int i = 0; i < numKeys; i++) {
+            keys.add(part + "-" + i);
+        }
+
+        for (String key : keys) {
+            writer.append(new Text(key), new BytesWritable(key.getBytes()));
+        }
+
+        IOUtils.closeStream(writer);
+        return writer;
+    }
+}
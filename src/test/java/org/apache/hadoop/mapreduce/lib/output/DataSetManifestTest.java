@@ -0,0 +1,126 @@
+package org.apache.hadoop.mapreduce.lib.output;
+
+import java.io.IOException;
+
+import net.joshdevins.hadoop.utils.io.FileUtils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFileWriter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.output.DataSetManifest.Part;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataSetManifestTest {
+
+    private static final String TEST_OUTPUT = "target/test/output/DataSetManifestTest";
+
+    private Configuration conf;
+
+    private FileSystem fs;
+
+    private Path dir;
+
+    @Before
+    public void before() throws IOException {
+
+        FileUtils.createDirectoryDestructive(TEST_OUTPUT);
+
+        conf = new Configuration();
+        dir = new Path(TEST_OUTPUT);
+        fs = dir.getFileSystem(conf);
+    }
+
+    @Test
+    public void testRead_Missing() throws IOException {
+        Assert.assertNull(DataSetManifest.read(fs, dir));
+    }
+
+    @Test
+    public void testSummarize() throws IOException {
+
+        BloomMapFileWriter writer = writePart("part-r-00000", "a", "b", "c");
+        Part part = Part.summarize(fs, new Path(dir, "part-r-00000"), writer);
+
+        Assert.assertEquals("part-r-00000", part.getName());
+        Assert.assertEquals(3, part.getRecordCount());
+        Assert.assertEquals(new Text("a"), part.getFirstKey(new Text()));
+        Assert.assertEquals(new Text("c"), part.getLastKey(new Text()));
+        Assert.assertTrue(part.getDataLength() > 0);
+        Assert.assertTrue(part.getIndexLength() > 0);
+
+        // empty parts have no key range
+        Part empty = Part.summarize(fs, new Path(dir, "part-r-00001"), writePart("part-r-00001"));
+        Assert.assertEquals(0, empty.getRecordCount());
+        Assert.assertNull(empty.getFirstKey(new Text()));
+        Assert.assertNull(empty.getLastKey(new Text()));
+    }
+
+    @Test
+    public void testUpdate() throws IOException {
+
+        BloomMapFileWriter writer = writePart("one", "a");
+        Assert.assertTrue(DataSetManifest.update(fs, dir, Part.summarize(fs, new Path(dir, "one"), writer),
+                Text.class, BytesWritable.class));
+
+        writer = writePart("two", "b");
+        Assert.assertTrue(DataSetManifest.update(fs, dir, Part.summarize(fs, new Path(dir, "two"), writer),
+                Text.class, BytesWritable.class));
+
+        DataSetManifest manifest = DataSetManifest.read(fs, dir);
+        Assert.assertEquals(2, manifest.getParts().size());
+        Assert.assertEquals("one", manifest.getParts().get(0).getName());
+        Assert.assertEquals("two", manifest.getParts().get(1).getName());
+        Assert.assertNull(manifest.getPartitionerClassName());
+
+        // without a manifest, parts already in the directory would be hidden by one
+        fs.delete(new Path(dir, DataSetManifest.MANIFEST_FILE_NAME), false);
+        writer = writePart("three", "c");
+        Assert.assertFalse(DataSetManifest.update(fs, dir, Part.summarize(fs, new Path(dir, "three"), writer),
+                Text.class, BytesWritable.class));
+        Assert.assertNull(DataSetManifest.read(fs, dir));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+
+        DataSetManifest manifest = new DataSetManifest(Text.class, BytesWritable.class, HashPartitioner.class);
+        manifest.addPart(new Part("part-r-00001", 20, 2, 1, null, null));
+        manifest.addPart(new Part("part-r-00000", 10, 1, 0, null, null));
+        manifest.write(fs, dir);
+
+        // replaces the existing manifest
+        manifest.addPart(new Part("part-r-00000", 30, 3, 0, null, null));
+        manifest.write(fs, dir);
+
+        DataSetManifest read = DataSetManifest.read(fs, dir);
+        Assert.assertEquals(Text.class.getName(), read.getKeyClassName());
+        Assert.assertEquals(BytesWritable.class.getName(), read.getValueClassName());
+        Assert.assertEquals(HashPartitioner.class.getName(), read.getPartitionerClassName());
+
+        Assert.assertEquals(2, read.getParts().size());
+        Assert.assertEquals("part-r-00000", read.getParts().get(0).getName());
+        Assert.assertEquals(30, read.getParts().get(0).getDataLength());
+        Assert.assertEquals("part-r-00001", read.getParts().get(1).getName());
+    }
+
+    private BloomMapFileWriter writePart(final String name, final String... keys) throws IOException {
+
+        BloomMapFileWriter writer = new BloomMapFileWriter(conf, fs, new Path(dir, name).toString(), Text.class,
+                BytesWritable.class, CompressionType.NONE);
+
+        for (String key : keys) {
+            writer.append(new Text(key), new BytesWritable(key.getBytes()));
+        }
+
+        IOUtils.closeStream(writer);
+        return writer;
+    }
+}
@@ -0,0 +1,93 @@
+package org.apache.hadoop.mapreduce.lib.partition;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TileKeysTest {
+
+    @Test
+    public void testEncode() {
+
+        Assert.assertEquals("00-", TileKeys.encode(0, 0, 0));
+        Assert.assertEquals("01-0", TileKeys.encode(1, 0, 0));
+        Assert.assertEquals("01-1", TileKeys.encode(1, 1, 0));
+        Assert.assertEquals("01-2", TileKeys.encode(1, 0, 1));
+        Assert.assertEquals("01-3", TileKeys.encode(1, 1, 1));
+        Assert.assertEquals("03-121.png", TileKeys.encode(3, 5, 2, ".png"));
+        Assert.assertEquals("30-333333333333333333333333333333", TileKeys.encode(30, (1L << 30) - 1,
+                (1L << 30) - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncode_OffMap() {
+        TileKeys.encode(3, 8, 0);
+    }
+
+    @Test
+    public void testEncode_Order() {
+
+        // each 2x2 block of tiles is contiguous, and blocks follow each other in Z-order
+        String[] expected = new String[] { "02-00", "02-01", "02-02", "02-03", "02-10", "02-11", "02-12", "02-13" };
+        String[] keys = new String[] { TileKeys.encode(2, 0, 0), TileKeys.encode(2, 1, 0), TileKeys.encode(2, 0, 1),
+                TileKeys.encode(2, 1, 1), TileKeys.encode(2, 2, 0), TileKeys.encode(2, 3, 0), TileKeys.encode(2, 2, 1),
+                TileKeys.encode(2, 3, 1) };
+
+        Assert.assertArrayEquals(expected, keys);
+
+        // zoom levels don't interleave
+        Assert.assertTrue(TileKeys.encode(2, 3, 3).compareTo(TileKeys.encode(3, 0, 0)) < 0);
+    }
+
+    @Test
+    public void testFromPath() {
+
+        Assert.assertEquals("03-121.png", TileKeys.fromPath("3/5/2.png"));
+        Assert.assertEquals("03-121", TileKeys.fromPath("3/5/2"));
+        Assert.assertEquals("12-000000000000.jpg", TileKeys.fromPath("12/0/0.jpg"));
+
+        Assert.assertNull(TileKeys.fromPath("3/8/2.png"));
+        Assert.assertNull(TileKeys.fromPath("31/0/0.png"));
+        Assert.assertNull(TileKeys.fromPath("3/5.png"));
+        Assert.assertNull(TileKeys.fromPath("a/5/2.png"));
+        Assert.assertNull(TileKeys.fromPath("0.txt"));
+    }
+
+    @Test
+    public void testGetNeighbours() {
+
+        List<String> neighbours = TileKeys.getNeighbours(TileKeys.encode(3, 5, 2, ".png"));
+        Assert.assertEquals(8, neighbours.size());
+        Assert.assertEquals(TileKeys.encode(3, 4, 1, ".png"), neighbours.get(0));
+        Assert.assertEquals(TileKeys.encode(3, 6, 3, ".png"), neighbours.get(7));
+        Assert.assertFalse(neighbours.contains(TileKeys.encode(3, 5, 2, ".png")));
+
+        // corners of the map
+        Assert.assertEquals(Arrays.asList("01-1", "01-2", "01-3"), TileKeys.getNeighbours("01-0"));
+        Assert.assertEquals(3, TileKeys.getNeighbours(TileKeys.encode(12, 4095, 4095)).size());
+        Assert.assertTrue(TileKeys.getNeighbours("00-.png").isEmpty());
+
+        Assert.assertTrue(TileKeys.getNeighbours("0.txt").isEmpty());
+    }
+
+    @Test
+    public void testGetPosition() {
+
+        Assert.assertEquals(0, TileKeys.getPosition(new Text("00-.png")));
+        Assert.assertEquals(1L << 58, TileKeys.getPosition(new Text("01-1.png")));
+        Assert.assertEquals(3L << 58 | 1L << 56, TileKeys.getPosition(new Text("02-31")));
+
+        // a tile and the tiles under it start at the same place
+        Assert.assertEquals(TileKeys.getPosition(new Text(TileKeys.encode(3, 5, 2))), TileKeys.getPosition(new Text(
+                TileKeys.encode(10, 5 << 7, 2 << 7))));
+
+        Assert.assertEquals(-1, TileKeys.getPosition(new Text("0.txt")));
+        Assert.assertEquals(-1, TileKeys.getPosition(new Text("02-4.png")));
+        Assert.assertEquals(-1, TileKeys.getPosition(new Text("02-0")));
+        Assert.assertEquals(-1, TileKeys.getPosition(new Text("02-012")));
+        Assert.assertEquals(-1, TileKeys.getPosition(new Text("31-")));
+    }
+}
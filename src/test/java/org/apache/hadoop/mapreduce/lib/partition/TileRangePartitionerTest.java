@@ -0,0 +1,72 @@
+package org.apache.hadoop.mapreduce.lib.partition;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TileRangePartitionerTest {
+
+    private final TileRangePartitioner<BytesWritable> partitioner = new TileRangePartitioner<BytesWritable>();
+
+    @Test
+    public void testGetPartition_Quadrants() {
+
+        Assert.assertEquals(0, getPartition(1, 0, 0, 4));
+        Assert.assertEquals(1, getPartition(1, 1, 0, 4));
+        Assert.assertEquals(2, getPartition(1, 0, 1, 4));
+        Assert.assertEquals(3, getPartition(1, 1, 1, 4));
+
+        // everything under a quadrant stays in it
+        Assert.assertEquals(2, getPartition(12, 1000, 3000, 4));
+        Assert.assertEquals(3, getPartition(12, 4095, 4095, 4));
+
+        // tiles that span partitions go to the one holding their corner
+        Assert.assertEquals(0, getPartition(0, 0, 0, 4));
+    }
+
+    @Test
+    public void testGetPartition_Ranges() {
+
+        int numPartitions = 7;
+        int zoom = 6;
+
+        // in key order, the partitions only ever go up
+        int last = 0;
+        int[] counts = new int[numPartitions];
+
+        for (long position = 0; position < 1L << 2 * zoom; position++) {
+
+            long x = 0;
+            long y = 0;
+            for (int level = 0; level < zoom; level++) {
+                x |= (position >>> 2 * level & 1) << level;
+                y |= (position >>> 2 * level + 1 & 1) << level;
+            }
+
+            int partition = getPartition(zoom, x, y, numPartitions);
+            Assert.assertTrue(partition >= last);
+            Assert.assertTrue(partition < numPartitions);
+
+            last = partition;
+            counts[partition]++;
+        }
+
+        // a full level is spread evenly
+        for (int count : counts) {
+            Assert.assertEquals((1 << 2 * zoom) / (double) numPartitions, count, 1.0);
+        }
+    }
+
+    @Test
+    public void testGetPartition_NotTile() {
+
+        Text key = new Text("0.txt");
+        Assert.assertEquals(new HashPartitioner<Text, BytesWritable>().getPartition(key, null, 5), partitioner
+                .getPartition(key, null, 5));
+    }
+
+    private int getPartition(final int zoom, final long x, final long y, final int numPartitions) {
+        return partitioner.getPartition(new Text(TileKeys.encode(zoom, x, y, ".png")), null, numPartitions);
+    }
+}